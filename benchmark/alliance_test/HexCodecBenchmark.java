@@ -0,0 +1,142 @@
+package alliance_test;
+
+import java.math.BigInteger;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import alliance_util.HexCodec;
+
+/**
+ * This JMH benchmark measures the hex codec used for the password hashes, without the
+ * PBKDF2 work. The substring, BigInteger and String.format based conversions the codec
+ * replaced are measured as well for comparison.
+ * <br>
+ * The benchmark is kept in its own source folder, since the library itself doesn't depend 
+ * on JMH. Compiling it requires jmh-core and jmh-generator-annprocess (1.x) in the class 
+ * path, along with the compiled classes of the src folder.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HexCodecBenchmark
+{
+	// ATTRIBUTES	-----------------------------
+	
+	// The same size as the salts and the hashes
+	private static final int BYTE_AMOUNT = 24;
+	
+	private byte[] bytes;
+	// A stored hash (algorithm:iterations:salt:hash)
+	private String storedHash;
+	private int hashStart;
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the benchmark
+	 * @param args Not used
+	 * @throws RunnerException If the benchmark couldn't be run
+	 */
+	public static void main(String[] args) throws RunnerException
+	{
+		new Runner(new OptionsBuilder().include(
+				HexCodecBenchmark.class.getSimpleName()).build()).run();
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Creates the data used in the benchmark
+	 */
+	@Setup
+	public void setUp()
+	{
+		Random random = new Random(42);
+		this.bytes = new byte[BYTE_AMOUNT];
+		random.nextBytes(this.bytes);
+		byte[] salt = new byte[BYTE_AMOUNT];
+		random.nextBytes(salt);
+		
+		this.storedHash = "sha256:20000:" + HexCodec.encode(salt) + ":" +
+				HexCodec.encode(this.bytes);
+		this.hashStart = this.storedHash.lastIndexOf(':') + 1;
+	}
+	
+	/**
+	 * @return The bytes encoded with the lookup table
+	 */
+	@Benchmark
+	public String encode()
+	{
+		return HexCodec.encode(this.bytes);
+	}
+	
+	/**
+	 * @return The bytes encoded through a BigInteger and String.format
+	 */
+	@Benchmark
+	public String encodeWithFormat()
+	{
+		BigInteger value = new BigInteger(1, this.bytes);
+		String hex = value.toString(16);
+		int paddingLength = this.bytes.length * 2 - hex.length();
+		if (paddingLength > 0)
+			return String.format("%0" + paddingLength + "d", 0) + hex;
+		return hex;
+	}
+	
+	/**
+	 * @return The hash decoded in place from the stored hash
+	 */
+	@Benchmark
+	public byte[] decode()
+	{
+		return HexCodec.decode(this.storedHash, this.hashStart, this.storedHash.length());
+	}
+	
+	/**
+	 * @return The hash decoded from a split of the stored hash, one substring per byte
+	 */
+	@Benchmark
+	public byte[] decodeWithSubstrings()
+	{
+		String hex = this.storedHash.split(":")[3];
+		byte[] binary = new byte[hex.length() / 2];
+		for (int i = 0; i < binary.length; i++)
+		{
+			binary[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return binary;
+	}
+	
+	/**
+	 * @return Does the stored hash match the computed one, compared in place
+	 */
+	@Benchmark
+	public boolean compare()
+	{
+		return HexCodec.equalsInConstantTime(this.storedHash, this.hashStart, this.bytes);
+	}
+}
@@ -5,7 +5,7 @@ USE alliance_db;
 
 CREATE TABLE entities1
 (
-	id 			bigint 			NOT NULL PRIMARY KEY AUTO_INCREMENT,
+	id 			bigint 			NOT NULL PRIMARY KEY,
 	name 		varchar(32) 	NOT NULL,
 	friendID	bigint			NOT NULL
 );
@@ -18,13 +18,39 @@ CREATE TABLE secure1
 
 CREATE TABLE loginKeys1
 (
-	userID 		bigint 			NOT NULL PRIMARY KEY,
-	userKey 	varchar(64) 	NOT NULL,
-	created 	varchar(64)
+	userKey 	varchar(64) 	NOT NULL PRIMARY KEY,
+	userID 		bigint 			NOT NULL,
+	created 	varchar(64),
+	fingerprint varchar(64),
+	lastUse 	varchar(64),
+	INDEX (userID)
+);
+
+CREATE TABLE secondLoginKeys1
+(
+	userKey 	varchar(64) 	NOT NULL PRIMARY KEY,
+	userID 		bigint 			NOT NULL,
+	created 	varchar(64),
+	fingerprint varchar(64),
+	lastUse 	varchar(64),
+	INDEX (userID)
 );
 
 CREATE TABLE tableamounts
 (
 	tableName 	varchar(32) 	NOT NULL PRIMARY KEY,
 	latestIndex int 			NOT NULL
+);
+
+CREATE TABLE maintenanceleases
+(
+	taskName 	varchar(64) 	NOT NULL PRIMARY KEY,
+	owner 		varchar(64) 	NOT NULL,
+	leaseEnd 	timestamp(3) 	NOT NULL DEFAULT CURRENT_TIMESTAMP(3)
+);
+
+CREATE TABLE indexblocks
+(
+	tableName 	varchar(32) 	NOT NULL PRIMARY KEY,
+	nextIndex 	bigint 			NOT NULL
 );
\ No newline at end of file
@@ -0,0 +1,231 @@
+package alliance_authorization;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import alliance_rest.TooManyRequestsException;
+
+/**
+ * LoginAttemptLimiter keeps track of the login attempts made for each user and rejects the 
+ * attempts that exceed the limit before any database or hashing work is done. Only the 
+ * attempts that reach the password check are counted.
+ * The attempts are counted in a sliding window. The counters are divided into separately
+ * locked stripes and each stripe only remembers a limited amount of users, the least 
+ * recently used users being forgotten first. A user that is locked out is never forgotten 
+ * before the lockout ends. If a stripe is full of locked out users, the attempts of the 
+ * other users in the same stripe are rejected as well.
+ * 
+ * @author Mikko Hilpinen
+ * @since 3.6.2015
+ */
+public class LoginAttemptLimiter
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static final int STRIPE_AMOUNT = 16;
+	
+	private final int maxAttempts;
+	private final long windowMillis;
+	private final Stripe[] stripes;
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	/**
+	 * Creates a new limiter
+	 * @param maxAttempts How many attempts are allowed for a single user within the window
+	 * @param windowSeconds The duration of the sliding window in seconds
+	 * @param maxTrackedUsers How many users are remembered at most. The memory use of the 
+	 * limiter is bound by this value.
+	 */
+	public LoginAttemptLimiter(int maxAttempts, int windowSeconds, int maxTrackedUsers)
+	{
+		this.maxAttempts = maxAttempts;
+		this.windowMillis = windowSeconds * 1000l;
+		
+		int usersPerStripe = Math.max(1, maxTrackedUsers / STRIPE_AMOUNT);
+		this.stripes = new Stripe[STRIPE_AMOUNT];
+		for (int i = 0; i < this.stripes.length; i++)
+		{
+			this.stripes[i] = new Stripe(usersPerStripe);
+		}
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Registers a new login attempt for the given user and checks that the limit hasn't
+	 * been exceeded. A rejected attempt isn't counted.
+	 * @param userID The identifier of the user the client is trying to log in as
+	 * @throws TooManyRequestsException If there have been too many attempts recently
+	 */
+	public void checkAttempt(String userID) throws TooManyRequestsException
+	{
+		if (!getStripe(userID).tryAcquire(userID, System.currentTimeMillis()))
+			throw new TooManyRequestsException(
+					"Too many login attempts, please try again later");
+	}
+	
+	/**
+	 * Cancels an attempt registered with {@link #checkAttempt(String)}. Should be called 
+	 * when the password couldn't be checked, so that the user isn't charged for an attempt 
+	 * that didn't reach the password check.
+	 * @param userID The identifier of the user the client was trying to log in as
+	 */
+	public void cancelAttempt(String userID)
+	{
+		getStripe(userID).release(userID);
+	}
+	
+	/**
+	 * Clears the attempt history of a user. Should be called after a successful login so
+	 * that only failed attempts lead to a lockout.
+	 * @param userID The identifier of the user that logged in
+	 */
+	public void reset(String userID)
+	{
+		getStripe(userID).remove(userID);
+	}
+	
+	private Stripe getStripe(String key)
+	{
+		// Spreads the hash so that similar keys don't end up in the same stripe
+		int hash = key.hashCode();
+		hash ^= (hash >>> 16);
+		return this.stripes[hash & (STRIPE_AMOUNT - 1)];
+	}
+	
+	
+	// SUBCLASSES	-------------------------
+	
+	private class Stripe
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final int maxKeys;
+		// The map is kept in access order so that the least recently used keys are
+		// evicted first
+		private final Map<String, AttemptWindow> windows = new LinkedHashMap<>(16, 0.75f, 
+				true);
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public Stripe(int maxKeys)
+		{
+			this.maxKeys = maxKeys;
+		}
+		
+		
+		// OTHER METHODS	-----------------
+		
+		public synchronized boolean tryAcquire(String key, long now)
+		{
+			AttemptWindow window = this.windows.get(key);
+			if (window == null)
+			{
+				// A full stripe rejects new keys if none of the old ones can be forgotten
+				if (this.windows.size() >= this.maxKeys && !evictUnlocked(now))
+					return false;
+				
+				window = new AttemptWindow(now);
+				this.windows.put(key, window);
+			}
+			
+			return window.tryAcquire(now);
+		}
+		
+		public synchronized void release(String key)
+		{
+			AttemptWindow window = this.windows.get(key);
+			if (window != null)
+				window.release();
+		}
+		
+		public synchronized void remove(String key)
+		{
+			this.windows.remove(key);
+		}
+		
+		private boolean evictUnlocked(long now)
+		{
+			// Forgetting a locked out key would end its lockout, so the least recently 
+			// used key that isn't locked out is forgotten instead
+			Iterator<AttemptWindow> windows = this.windows.values().iterator();
+			while (windows.hasNext())
+			{
+				if (!windows.next().isLocked(now))
+				{
+					windows.remove();
+					return true;
+				}
+			}
+			
+			return false;
+		}
+	}
+	
+	private class AttemptWindow
+	{
+		// ATTRIBUTES	---------------------
+		
+		private long windowStart;
+		private int currentCount, previousCount;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public AttemptWindow(long now)
+		{
+			this.windowStart = now;
+		}
+		
+		
+		// OTHER METHODS	-----------------
+		
+		public boolean tryAcquire(long now)
+		{
+			if (isLocked(now))
+				return false;
+			
+			this.currentCount ++;
+			return true;
+		}
+		
+		public boolean isLocked(long now)
+		{
+			long windowMillis = LoginAttemptLimiter.this.windowMillis;
+			long elapsed = now - this.windowStart;
+			
+			// Moves the window forward if necessary
+			if (elapsed >= 2 * windowMillis)
+			{
+				this.previousCount = 0;
+				this.currentCount = 0;
+				this.windowStart = now;
+				elapsed = 0;
+			}
+			else if (elapsed >= windowMillis)
+			{
+				this.previousCount = this.currentCount;
+				this.currentCount = 0;
+				this.windowStart += windowMillis;
+				elapsed -= windowMillis;
+			}
+			
+			// The previous window is weighted by how much it still overlaps the sliding
+			// window
+			double previousWeight = 1.0 - (double) elapsed / windowMillis;
+			return this.previousCount * previousWeight + this.currentCount >= 
+					LoginAttemptLimiter.this.maxAttempts;
+		}
+		
+		public void release()
+		{
+			if (this.currentCount > 0)
+				this.currentCount --;
+		}
+	}
+}
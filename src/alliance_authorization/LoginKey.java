@@ -17,6 +17,10 @@ import nexus_rest.SimpleRestData;
 import vault_database.DatabaseAccessor;
 import vault_database.DatabaseUnavailableException;
 import alliance_rest.DatabaseEntity;
+import alliance_rest.ServiceUnavailableException;
+import alliance_rest.TableVersions;
+import alliance_util.ConnectionManager;
+import alliance_util.LookupFilter;
 import alliance_util.SimpleDate;
 
 /**
@@ -47,7 +51,34 @@ public class LoginKey extends DatabaseEntity
 		
 		this.table = table;
 	}
+	
+	/**
+	 * Creates a new login key by reading its data from a table that uses integer indexing
+	 * @param rootPath The path preceding the entity
+	 * @param table The table that holds the key data.
+	 * @param id The identifier with which the correct key data is found
+	 * @throws HttpException If the entity couldn't be read or created
+	 */
+	public LoginKey(String rootPath, LoginKeyTable table, long id) throws HttpException
+	{
+		super(new SimpleRestData(), rootPath, table, id);
+		
+		this.table = table;
+	}
 
+	/**
+	 * Creates a new login key from a row that has already been read from the key table
+	 * @param rootPath The path preceding the entity
+	 * @param table The table that holds the key data
+	 * @param row The row of the key
+	 */
+	public LoginKey(String rootPath, LoginKeyTable table, Map<String, String> row)
+	{
+		super(new SimpleRestData(), rootPath, table, row);
+		
+		this.table = table;
+	}
+	
 	/**
 	 * Creates a new login key with the given parameters. The key parameter and the creation 
 	 * time parameter are generated automatically.
@@ -104,13 +135,16 @@ public class LoginKey extends DatabaseEntity
 		
 		try
 		{
+			ConnectionManager.checkAvailable();
 			DatabaseAccessor.delete(getTable(), this.table.getKeyColumnName(), 
 					parameters.get(this.table.getKeyColumnName()));
+			ConnectionManager.recordWrite(getTable().getDatabaseName());
 		}
 		catch (SQLException | DatabaseUnavailableException e)
 		{
-			throw new InternalServerException("Couldn't delete the login key", e);
+			throw ServiceUnavailableException.wrap("Couldn't delete the login key", e);
 		}
+		recordRemoved(parameters.get(this.table.getKeyColumnName()));
 	}
 	
 	
@@ -125,12 +159,15 @@ public class LoginKey extends DatabaseEntity
 	{
 		try
 		{
+			ConnectionManager.checkAvailable();
 			DatabaseAccessor.delete(getTable(), this.table.getKeyColumnName(), getKey());
+			ConnectionManager.recordWrite(getTable().getDatabaseName());
 		}
 		catch (SQLException | DatabaseUnavailableException e)
 		{
-			throw new InternalServerException("Couldn't delete " + getPath(), e);
+			throw ServiceUnavailableException.wrap("Couldn't delete " + getPath(), e);
 		}
+		recordRemoved(getKey());
 	}
 	
 	/**
@@ -141,6 +178,25 @@ public class LoginKey extends DatabaseEntity
 		return getAttributes().get(this.table.getUserIDColumnName());
 	}
 	
+	/**
+	 * @return The identifier of the user of this key as a number. -1 if the key table 
+	 * doesn't use integer user ids.
+	 */
+	public long getUserIDAsLong()
+	{
+		if (this.table.getUserIDColumnName().equals(this.table.getPrimaryColumnName()))
+			return getDatabaseIDAsLong();
+		
+		try
+		{
+			return Long.parseLong(getUserID());
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+	
 	/**
 	 * @return The unique attribute key of this key
 	 */
@@ -177,6 +233,16 @@ public class LoginKey extends DatabaseEntity
 		return parameters;
 	}
 	
+	private void recordRemoved(String key)
+	{
+		TableVersions.tableModified(getTable());
+		
+		// The removed key is no longer accepted without checking the database
+		LookupFilter filter = LookupFilter.forTable(getTable());
+		if (filter != null && filter.getColumnName().equals(this.table.getKeyColumnName()))
+			filter.recordRemoved(key);
+	}
+	
 	private static String generateAuthKey()
 	{
 		SecureRandom random = new SecureRandom();
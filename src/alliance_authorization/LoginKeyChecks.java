@@ -0,0 +1,107 @@
+package alliance_authorization;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import alliance_rest.TableVersions;
+import alliance_util.ConnectionManager;
+import alliance_util.SingleFlight;
+import alliance_util.TableOperations;
+
+/**
+ * LoginKeyChecks looks up the login keys from the database. Concurrent checks of the
+ * same key share a single query, unless the key table has been modified after the query
+ * started.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+final class LoginKeyChecks
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static final Map<LoginKeyTable, SingleFlight<String, Boolean>> checks =
+			new ConcurrentHashMap<>();
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	private LoginKeyChecks()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Checks whether the user has the given key
+	 * @param keyTable The table that holds the user's keys
+	 * @param userID The identifier of the user
+	 * @param key The key provided by the client
+	 * @return Does the key exist in the table
+	 * @throws SQLException If the key couldn't be checked
+	 */
+	static boolean keyExists(final LoginKeyTable keyTable, final String userID,
+			final String key) throws SQLException
+	{
+		SingleFlight<String, Boolean> tableChecks = checks.get(keyTable);
+		if (tableChecks == null)
+		{
+			checks.putIfAbsent(keyTable, new SingleFlight<String, Boolean>());
+			tableChecks = checks.get(keyTable);
+		}
+		
+		return tableChecks.execute(userID + '\n' + key, TableVersions.getVersion(keyTable), 
+				new SingleFlight.Operation<Boolean>()
+		{
+			@Override
+			public Boolean perform() throws SQLException
+			{
+				return findKey(keyTable, userID, key);
+			}
+		});
+	}
+	
+	private static boolean findKey(LoginKeyTable keyTable, String userID, String key)
+			throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+			return !TableOperations.findMatchingIDs(keyTable, new String[] {
+					keyTable.getUserIDColumnName(), keyTable.getKeyColumnName()}, 
+					new String[] {userID, key}, 1).isEmpty();
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(keyTable.getDatabaseName(), 
+					keyTable.getTableName() + ".check");
+			for (String tableName : TableOperations.getTableNames(keyTable))
+			{
+				try (PreparedStatement statement = connection.prepareStatement("SELECT 1 FROM " +
+						tableName + " WHERE " + keyTable.getUserIDColumnName() + " = ? AND " +
+						keyTable.getKeyColumnName() + " = ? LIMIT 1"))
+				{
+					TableOperations.setParameter(statement, 1, keyTable,
+							keyTable.getUserIDColumnName(), userID);
+					statement.setString(2, key);
+					try (ResultSet result = statement.executeQuery())
+					{
+						if (result.next())
+							return true;
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return false;
+	}
+}
@@ -0,0 +1,188 @@
+package alliance_authorization;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import alliance_rest.TableVersions;
+import alliance_rest.UnitOfWork;
+import alliance_util.ConnectionManager;
+import alliance_util.LookupFilter;
+import alliance_util.SimpleDate;
+import alliance_util.TableOperations;
+
+/**
+ * LoginKeyLimits keeps the amount of login keys per user small. The oldest keys of a user
+ * are removed when new ones are created and a client may receive its previous key again
+ * instead of a new one. The limits are applied by {@link LoginManagerEntity}.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public final class LoginKeyLimits
+{
+	// CONSTRUCTOR	-------------------------
+	
+	private LoginKeyLimits()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Removes the oldest keys of a user so that only the given amount of the user's other
+	 * keys remain. The removal is made using the given connection, so it is a part of the
+	 * same transaction as the insert of the new key.
+	 * @param connection The connection used for the removal. The connection is left open.
+	 * @param keyTable The table that holds the user's keys
+	 * @param userID The identifier of the user
+	 * @param newKey The key that was just created. It is never removed.
+	 * @param maxOtherKeys How many of the other keys the user may keep
+	 * @return How many keys were removed
+	 * @throws SQLException If the keys couldn't be removed
+	 */
+	public static int removeOldestKeys(Connection connection, final LoginKeyTable keyTable,
+			String userID, String newKey, int maxOtherKeys) throws SQLException
+	{
+		// The newest keys are in the latest physical tables
+		List<String> tableNames = TableOperations.getTableNames(keyTable);
+		List<String> keys = new ArrayList<>();
+		for (int i = tableNames.size() - 1; i >= 0; i--)
+		{
+			try (PreparedStatement statement = connection.prepareStatement("SELECT " +
+					keyTable.getKeyColumnName() + " FROM " + tableNames.get(i) + " WHERE " +
+					keyTable.getUserIDColumnName() + " = ? ORDER BY " +
+					keyTable.getCreationTimeColumnName() + " DESC"))
+			{
+				TableOperations.setParameter(statement, 1, keyTable,
+						keyTable.getUserIDColumnName(), userID);
+				try (ResultSet result = statement.executeQuery())
+				{
+					while (result.next())
+					{
+						String key = result.getString(1);
+						// Token revocations share the table but are not keys
+						if (!key.equals(newKey) && !LoginTokenAuthority.isRevocation(key))
+							keys.add(key);
+					}
+				}
+			}
+		}
+		
+		if (keys.size() <= maxOtherKeys)
+			return 0;
+		
+		final List<String> removed = keys.subList(maxOtherKeys, keys.size());
+		for (String key : removed)
+		{
+			TableOperations.delete(connection, keyTable, keyTable.getKeyColumnName(), key);
+		}
+		TableVersions.tableModified(keyTable);
+		
+		// The removed keys are no longer accepted without checking the database
+		final LookupFilter filter = LookupFilter.forTable(keyTable);
+		if (filter != null && filter.getColumnName().equals(keyTable.getKeyColumnName()))
+		{
+			UnitOfWork.afterCommit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for (String key : removed)
+					{
+						filter.recordRemoved(key);
+					}
+				}
+			});
+		}
+		
+		return removed.size();
+	}
+	
+	/**
+	 * Finds the newest key the client has received earlier
+	 * @param keyTable The table that holds the user's keys
+	 * @param userID The identifier of the user
+	 * @param fingerprintColumnName The name of the column that identifies the client
+	 * @param fingerprint The fingerprint of the client
+	 * @param maxAgeMinutes How old the key may be at most
+	 * @return The row of the key that can be given to the client again. Null if there is
+	 * no such key.
+	 * @throws SQLException If the keys couldn't be read
+	 */
+	public static Map<String, String> findReusableKey(LoginKeyTable keyTable, String userID,
+			String fingerprintColumnName, String fingerprint, int maxAgeMinutes)
+			throws SQLException
+	{
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(keyTable.getDatabaseName(),
+					keyTable.getTableName() + ".reuse");
+			
+			// The newest keys are in the latest physical tables
+			List<String> tableNames = TableOperations.getTableNames(keyTable);
+			for (int i = tableNames.size() - 1; i >= 0; i--)
+			{
+				try (PreparedStatement statement = connection.prepareStatement(
+						"SELECT * FROM " + tableNames.get(i) + " WHERE " +
+						keyTable.getUserIDColumnName() + " = ? AND " + fingerprintColumnName +
+						" = ? ORDER BY " + keyTable.getCreationTimeColumnName() + " DESC"))
+				{
+					TableOperations.setParameter(statement, 1, keyTable,
+							keyTable.getUserIDColumnName(), userID);
+					TableOperations.setParameter(statement, 2, keyTable,
+							fingerprintColumnName, fingerprint);
+					try (ResultSet result = statement.executeQuery())
+					{
+						while (result.next())
+						{
+							Map<String, String> row = TableOperations.readRow(result);
+							if (isReusable(keyTable, row, maxAgeMinutes))
+								return row;
+						}
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return null;
+	}
+	
+	private static boolean isReusable(LoginKeyTable keyTable, Map<String, String> row,
+			int maxAgeMinutes)
+	{
+		String key = row.get(keyTable.getKeyColumnName());
+		String created = row.get(keyTable.getCreationTimeColumnName());
+		if (key == null || created == null || LoginTokenAuthority.isRevocation(key))
+			return false;
+		
+		try
+		{
+			// When the uses are recorded, the age is counted from the last use
+			SimpleDate since = new SimpleDate(created);
+			LoginKeyUsage usage = LoginKeyUsage.forTable(keyTable);
+			String lastUse = usage == null ? null : row.get(usage.getLastUseColumnName());
+			if (lastUse != null && new SimpleDate(lastUse).compareTo(since) > 0)
+				since = new SimpleDate(lastUse);
+			
+			return !new SimpleDate().isPast(since.plus(maxAgeMinutes));
+		}
+		catch (ParseException e)
+		{
+			// Keys of unknown age are not reused
+			return false;
+		}
+	}
+}
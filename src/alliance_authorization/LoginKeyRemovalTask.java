@@ -1,16 +1,19 @@
 package alliance_authorization;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.List;
 
-import nexus_http.HttpException;
-import vault_database.DatabaseAccessor;
-import vault_database.DatabaseUnavailableException;
+import alliance_rest.TableVersions;
+import alliance_util.ConnectionManager;
 import alliance_util.MaintenanceTask;
 import alliance_util.SimpleDate;
+import alliance_util.TableOperations;
 
 /**
- * This task removes the login keys that are too old
+ * This task removes the login keys that are too old. If the uses of the keys are recorded 
+ * with {@link LoginKeyUsage}, the keys are removed once they haven't been used for the 
+ * given duration. The old keys are removed with a single statement per physical table.
  * @author Mikko Hilpinen
  * @since 1.5.2015
  */
@@ -19,20 +22,32 @@ public class LoginKeyRemovalTask extends MaintenanceTask
 	// ATTRIBUTES	--------------------------
 	
 	private int loginKeyDurationMinutes;
-	private LoginKeyTable keyTable;
+	private LoginKeyShards keyShards;
 	
 	
 	// CONSTRUCTOR	--------------------------
 	
 	/**
 	 * Creates a new task.
-	 * @param loginKeyDurationHours How many hours a single login key is valid for use
+	 * @param loginKeyDurationHours How many hours a single login key is valid for use 
+	 * (after its last use if the uses are recorded)
 	 * @param loginKeyTable The table that contains the login key data
 	 */
 	public LoginKeyRemovalTask(LoginKeyTable loginKeyTable, int loginKeyDurationHours)
+	{
+		this(new LoginKeyShards(loginKeyTable), loginKeyDurationHours);
+	}
+	
+	/**
+	 * Creates a new task that removes the old keys from each shard in parallel.
+	 * @param keyShards The tables that contain the login key data
+	 * @param loginKeyDurationHours How many hours a single login key is valid for use 
+	 * (after its last use if the uses are recorded)
+	 */
+	public LoginKeyRemovalTask(LoginKeyShards keyShards, int loginKeyDurationHours)
 	{
 		this.loginKeyDurationMinutes = loginKeyDurationHours * 60;
-		this.keyTable = loginKeyTable;
+		this.keyShards = keyShards;
 	}
 	
 	
@@ -47,25 +62,77 @@ public class LoginKeyRemovalTask extends MaintenanceTask
 	@Override
 	public void run()
 	{
+		for (LoginKeyTable shard : this.keyShards.getShards())
+		{
+			removeOldKeys(shard);
+		}
+	}
+	
+	/**
+	 * Each shard is handled as a separate partition so that they can be handled in 
+	 * parallel
+	 */
+	@Override
+	public int getPartitionAmount()
+	{
+		return this.keyShards.getShards().size();
+	}
+	
+	@Override
+	public void runPartition(int partitionIndex)
+	{
+		removeOldKeys(this.keyShards.getShards().get(partitionIndex));
+	}
+	
+	
+	// OTHER METHODS	----------------------
+	
+	private void removeOldKeys(LoginKeyTable keyTable)
+	{
+		// The times are stored in a format that sorts in chronological order
+		String limit = new SimpleDate().plus(-this.loginKeyDurationMinutes).toString();
+		Connection connection = null;
 		try
 		{
-			// Finds all the login keys
-			List<String> loginKeyIDs = DatabaseAccessor.findMatchingData(this.keyTable, 
-					new String[0], new String[0], this.keyTable.getPrimaryColumnName());
+			// Keys that are in use are kept. The recent uses are written first so that they 
+			// are included.
+			String lastUse = keyTable.getCreationTimeColumnName();
+			LoginKeyUsage usage = LoginKeyUsage.forTable(keyTable);
+			if (usage != null)
+			{
+				usage.flush();
+				lastUse = "COALESCE(" + usage.getLastUseColumnName() + ", " + lastUse + ")";
+			}
 			
-			// Removes any old ones
-			for (String id : loginKeyIDs)
+			connection = ConnectionManager.openConnection(keyTable.getDatabaseName(), 
+					keyTable.getTableName() + ".expire");
+			int removed = 0;
+			for (String tableName : TableOperations.getTableNames(keyTable))
 			{
-				LoginKey key = new LoginKey("/", this.keyTable, id);
-				if (new SimpleDate().isPast(key.getCreationTime().plus(
-						this.loginKeyDurationMinutes)))
-					key.deleteWithoutAuthorization();
+				try (PreparedStatement statement = connection.prepareStatement(
+						"DELETE FROM " + tableName + " WHERE " + lastUse + " < ?"))
+				{
+					TableOperations.setParameter(statement, 1, keyTable, 
+							keyTable.getCreationTimeColumnName(), limit);
+					removed += statement.executeUpdate();
+				}
 			}
+			
+			if (removed > 0)
+			{
+				ConnectionManager.recordWrite(keyTable.getDatabaseName());
+				TableVersions.tableModified(keyTable);
+			}
+		}
+		catch (SQLException e)
+		{
+			// The timer records and reports the failure
+			throw new IllegalStateException("Failed to remove the old login keys from " + 
+					keyTable.getTableName(), e);
 		}
-		catch (DatabaseUnavailableException | SQLException | HttpException e)
+		finally
 		{
-			System.err.println("Failed to remove the old login keys");
-			e.printStackTrace();
+			ConnectionManager.closeConnection(connection);
 		}
 	}
 }
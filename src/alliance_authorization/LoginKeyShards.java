@@ -0,0 +1,88 @@
+package alliance_authorization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * LoginKeyShards spreads the login keys over multiple login key tables. The table a key
+ * belongs to is determined by the user the key is for, so all keys of a single user are
+ * always found from the same table.
+ * 
+ * @author Mikko Hilpinen
+ * @since 5.6.2015
+ */
+public class LoginKeyShards
+{
+	// ATTRIBUTES	-------------------------
+	
+	private final List<LoginKeyTable> shards;
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	/**
+	 * Creates a new set of shards
+	 * @param shards The tables the keys are divided between. The order of the tables must
+	 * stay the same between server runs or the keys won't be found anymore.
+	 */
+	public LoginKeyShards(LoginKeyTable... shards)
+	{
+		if (shards.length == 0)
+			throw new IllegalArgumentException("At least a single login key table required");
+		
+		this.shards = Collections.unmodifiableList(new ArrayList<>(Arrays.asList(shards)));
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Finds the table that holds the keys of the given user
+	 * @param userID The identifier of the user
+	 * @return The table that holds the user's keys
+	 */
+	public LoginKeyTable getShard(String userID)
+	{
+		if (this.shards.size() == 1 || userID == null)
+			return this.shards.get(0);
+		
+		return this.shards.get(getShardIndex(userID));
+	}
+	
+	/**
+	 * Finds the table that holds the keys of the given user
+	 * @param userID The identifier of the user as a number
+	 * @return The table that holds the user's keys
+	 */
+	public LoginKeyTable getShard(long userID)
+	{
+		return this.shards.get((int) Math.floorMod(userID, (long) this.shards.size()));
+	}
+	
+	/**
+	 * @return All the tables the keys are divided between
+	 */
+	public List<LoginKeyTable> getShards()
+	{
+		return this.shards;
+	}
+	
+	private int getShardIndex(String userID)
+	{
+		// Integer identifiers are divided evenly, other identifiers by their hash
+		long hash;
+		try
+		{
+			hash = Long.parseLong(userID);
+		}
+		catch (NumberFormatException e)
+		{
+			int stringHash = userID.hashCode();
+			hash = stringHash ^ (stringHash >>> 16);
+		}
+		
+		return (int) Math.floorMod(hash, (long) this.shards.size());
+	}
+}
@@ -7,10 +7,10 @@ import nexus_http.AuthorizationException;
 import nexus_http.HttpException;
 import nexus_http.InternalServerException;
 import nexus_http.InvalidParametersException;
-import vault_database.DatabaseAccessor;
+import alliance_rest.ServiceUnavailableException;
+import alliance_util.ConnectionManager;
+import alliance_util.LookupFilter;
 import vault_database.DatabaseTable;
-import vault_database.DatabaseUnavailableException;
-import vault_database.InvalidTableTypeException;
 
 /**
  * LoginKeyTables are used for storing login key entities. This interface should be 
@@ -51,20 +51,62 @@ public interface LoginKeyTable extends DatabaseTable
 		if (userID == null || key == null)
 			throw new AuthorizationException("Invalid login key");
 		
-		// Checks if there is a matching key in the database
-		String[] keyColumns = {keyTable.getUserIDColumnName(), keyTable.getKeyColumnName()};
-		String[] keyValues = {userID, key};
+		// Signed tokens are verified without accessing the key table
+		LoginTokenAuthority tokenAuthority = LoginTokenAuthority.getAuthority(keyTable);
+		if (tokenAuthority != null && LoginTokenAuthority.isToken(key))
+		{
+			tokenAuthority.verifyToken(userID, key);
+			ConnectionManager.authenticateSession(userID);
+			return;
+		}
+		// The revocation entries share the table with the keys but never work as keys
+		if (LoginTokenAuthority.isRevocation(key))
+			throw new AuthorizationException("Invalid login key");
+		
+		// Keys known to be missing are rejected without accessing the database
+		LookupFilter filter = LookupFilter.forTable(keyTable);
+		if (filter != null && !filter.getColumnName().equals(keyTable.getKeyColumnName()))
+			filter = null;
+		if (filter != null && filter.isKnownMissing(userID, key))
+			throw new AuthorizationException("Invalid login key");
 		
+		// Checks if there is a matching key in the database. Concurrent checks of the same 
+		// key share the query.
 		try
 		{
-			if (DatabaseAccessor.findMatchingIDs(keyTable, 
-					keyColumns, keyValues, 1).isEmpty())
+			if (!LoginKeyChecks.keyExists(keyTable, userID, key))
+			{
+				if (filter != null)
+					filter.recordMissing(userID, key);
 				throw new AuthorizationException("Invalid login key");
+			}
 		}
-		catch (DatabaseUnavailableException | SQLException | InvalidTableTypeException e)
+		catch (SQLException e)
 		{
-			throw new InternalServerException("Failed to check the key", e);
+			throw ServiceUnavailableException.wrap("Failed to check the key", e);
 		}
+		
+		// The key stays valid while it is used. The use is written into the table later.
+		LoginKeyUsage usage = LoginKeyUsage.forTable(keyTable);
+		if (usage != null)
+			usage.recordUse(key);
+		
+		// The user's requests see the changes they have made
+		ConnectionManager.authenticateSession(userID);
+	}
+	
+	/**
+	 * Checks if the given login key is correct. The key is checked from the shard that 
+	 * holds the user's keys.
+	 * @param keyShards The tables that hold the login key data
+	 * @param userID The unique identifier of the user the key is for
+	 * @param parameters The parameters provided by the client
+	 * @throws HttpException Throws an authorization exception if the key was not acceptable
+	 */
+	public static void checkKey(LoginKeyShards keyShards, String userID, 
+			Map<String, String> parameters) throws HttpException
+	{
+		checkKey(keyShards.getShard(userID), userID, parameters);
 	}
 	
 	/**
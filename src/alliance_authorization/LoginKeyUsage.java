@@ -0,0 +1,255 @@
+package alliance_authorization;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import alliance_util.ConnectionManager;
+import alliance_util.SimpleDate;
+import alliance_util.TableOperations;
+
+/**
+ * LoginKeyUsage keeps the login keys of a table valid as long as they are used. The uses
+ * of the keys are recorded in memory and written into the key table in batches, so that
+ * the keys in active use don't cause a database write on each request. The
+ * {@link LoginKeyRemovalTask} then removes the keys that haven't been used in a while
+ * instead of the keys that were created a while ago.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LoginKeyUsage
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static final int MAX_BATCH_SIZE = 500;
+	
+	private static final Map<LoginKeyTable, LoginKeyUsage> usages =
+			new ConcurrentHashMap<>();
+	private static ScheduledExecutorService flushExecutor = null;
+	
+	private final LoginKeyTable keyTable;
+	private final String lastUseColumnName;
+	// The uses that haven't been written yet (key, time in milliseconds)
+	private final ConcurrentHashMap<String, Long> pendingUses = new ConcurrentHashMap<>();
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	private LoginKeyUsage(LoginKeyTable keyTable, String lastUseColumnName)
+	{
+		this.keyTable = keyTable;
+		this.lastUseColumnName = lastUseColumnName;
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Starts recording the uses of the keys in the given table
+	 * @param keyTable The table that holds the login keys
+	 * @param lastUseColumnName The name of the column that holds the time the key was last
+	 * used. The column should accept the same values as the creation time column.
+	 * @param flushIntervalSeconds How often the recorded uses are written into the table
+	 * @return The usage recorder of the table. If the uses were already recorded, the
+	 * existing recorder is returned.
+	 */
+	public static synchronized LoginKeyUsage enable(LoginKeyTable keyTable,
+			String lastUseColumnName, int flushIntervalSeconds)
+	{
+		LoginKeyUsage existing = usages.get(keyTable);
+		if (existing != null)
+			return existing;
+		
+		final LoginKeyUsage usage = new LoginKeyUsage(keyTable, lastUseColumnName);
+		usages.put(keyTable, usage);
+		
+		int interval = Math.max(1, flushIntervalSeconds);
+		getFlushExecutor().scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					usage.flush();
+				}
+				catch (SQLException e)
+				{
+					System.err.println("Failed to record the uses of the login keys in " +
+							usage.keyTable.getTableName());
+					e.printStackTrace();
+				}
+			}
+		}, interval, interval, TimeUnit.SECONDS);
+		
+		return usage;
+	}
+	
+	/**
+	 * @param keyTable A login key table
+	 * @return The usage recorder of the table. Null if the uses aren't recorded.
+	 */
+	public static LoginKeyUsage forTable(LoginKeyTable keyTable)
+	{
+		return usages.get(keyTable);
+	}
+	
+	/**
+	 * @return The usage recorders of all the tables
+	 */
+	public static Collection<LoginKeyUsage> getUsages()
+	{
+		return usages.values();
+	}
+	
+	/**
+	 * Records that a key was used just now. The use is written into the table later.
+	 * @param key The key that was used
+	 */
+	public void recordUse(String key)
+	{
+		this.pendingUses.put(key, System.currentTimeMillis());
+	}
+	
+	/**
+	 * @return The name of the column that holds the time the key was last used
+	 */
+	public String getLastUseColumnName()
+	{
+		return this.lastUseColumnName;
+	}
+	
+	/**
+	 * @return How many uses are waiting to be written
+	 */
+	public int getPendingAmount()
+	{
+		return this.pendingUses.size();
+	}
+	
+	/**
+	 * Writes the recorded uses into the table. The uses of the same minute are written
+	 * with a single update per physical table. This is done automatically at the interval
+	 * given when the recording was enabled.
+	 * @return How many uses were written
+	 * @throws SQLException If the uses couldn't be written. The uses are kept for the next
+	 * attempt.
+	 */
+	public int flush() throws SQLException
+	{
+		if (this.pendingUses.isEmpty())
+			return 0;
+		
+		// Groups the keys by the time that is written for them
+		Map<String, Long> taken = new HashMap<>();
+		Map<String, List<String>> keysByTime = new HashMap<>();
+		for (String key : this.pendingUses.keySet())
+		{
+			Long time = this.pendingUses.get(key);
+			if (time == null || !this.pendingUses.remove(key, time))
+				continue;
+			taken.put(key, time);
+			
+			String timeString = new SimpleDate(new Date(time)).toString();
+			List<String> keys = keysByTime.get(timeString);
+			if (keys == null)
+			{
+				keys = new ArrayList<>();
+				keysByTime.put(timeString, keys);
+			}
+			keys.add(key);
+		}
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(this.keyTable.getDatabaseName(),
+					this.keyTable.getTableName() + ".touch");
+			for (String timeString : keysByTime.keySet())
+			{
+				List<String> keys = keysByTime.get(timeString);
+				for (int start = 0; start < keys.size(); start += MAX_BATCH_SIZE)
+				{
+					update(connection, timeString, keys.subList(start,
+							Math.min(keys.size(), start + MAX_BATCH_SIZE)));
+				}
+			}
+		}
+		catch (SQLException e)
+		{
+			// The uses are tried again later. Uses recorded in the meanwhile are newer.
+			for (String key : taken.keySet())
+			{
+				this.pendingUses.putIfAbsent(key, taken.get(key));
+			}
+			throw e;
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return taken.size();
+	}
+	
+	private void update(Connection connection, String timeString, List<String> keys)
+			throws SQLException
+	{
+		StringBuilder keyList = new StringBuilder();
+		for (int i = 0; i < keys.size(); i++)
+		{
+			if (i > 0)
+				keyList.append(", ");
+			keyList.append("?");
+		}
+		
+		for (String tableName : TableOperations.getTableNames(this.keyTable))
+		{
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " +
+					tableName + " SET " + this.lastUseColumnName + " = ? WHERE " +
+					this.keyTable.getKeyColumnName() + " IN (" + keyList + ")"))
+			{
+				TableOperations.setParameter(statement, 1, this.keyTable,
+						this.lastUseColumnName, timeString);
+				int index = 2;
+				for (String key : keys)
+				{
+					TableOperations.setParameter(statement, index ++, this.keyTable,
+							this.keyTable.getKeyColumnName(), key);
+				}
+				statement.executeUpdate();
+			}
+		}
+	}
+	
+	private static synchronized ScheduledExecutorService getFlushExecutor()
+	{
+		if (flushExecutor == null)
+		{
+			flushExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "login-key-usage");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return flushExecutor;
+	}
+}
@@ -1,5 +1,6 @@
 package alliance_authorization;
 
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -9,7 +10,11 @@ import nexus_http.MethodType;
 import nexus_http.NotFoundException;
 import nexus_rest.RestEntity;
 import nexus_rest.SimpleRestData;
+import alliance_rest.AdmissionController;
+import alliance_rest.AdmissionController.Priority;
 import alliance_rest.DatabaseTableEntity;
+import alliance_rest.ServiceUnavailableException;
+import alliance_rest.UnitOfWork;
 
 /**
  * This entity manages the login and logout activities. Login is done with GET .../userID 
@@ -22,9 +27,12 @@ public class LoginManagerEntity extends DatabaseTableEntity
 {
 	// ATTIRBUTES	--------------------------------
 	
-	private LoginKeyTable keyTable;
+	private LoginKeyShards keyShards;
 	private PasswordChecker passwordChecker;
+	private LoginTokenAuthority tokenAuthority;
 	private boolean multiUserAccounts;
+	private int maxKeysPerUser = 0, keyReuseMinutes = 0;
+	private String fingerprintColumnName = null;
 	
 	
 	// CONSTRUCTOR	--------------------------------
@@ -43,20 +51,65 @@ public class LoginManagerEntity extends DatabaseTableEntity
 	public LoginManagerEntity(String name, RestEntity parent, LoginKeyTable keyTable, 
 			PasswordChecker passwordChecker, boolean useMultiUserAccounts)
 	{
-		super(name, new SimpleRestData(), parent, keyTable);
+		this(name, parent, new LoginKeyShards(keyTable), passwordChecker, 
+				useMultiUserAccounts);
+	}
+	
+	/**
+	 * Creates a new entity that spreads the login keys over multiple tables
+	 * @param name The name of the entity
+	 * @param parent The parent of the entity
+	 * @param keyShards The tables which contain the key data
+	 * @param passwordChecker The password checker which is used for validating the 
+	 * requests (null if no validation is required)
+	 * @param useMultiUserAccounts Should the service support multiple users using the same 
+	 * account simultaneously? Allowing this can decrease the information security of the 
+	 * program but will increase usability in multi user situations.
+	 */
+	public LoginManagerEntity(String name, RestEntity parent, LoginKeyShards keyShards, 
+			PasswordChecker passwordChecker, boolean useMultiUserAccounts)
+	{
+		super(name, new SimpleRestData(), parent, keyShards.getShards().get(0));
 		
-		this.keyTable = keyTable;
+		this.keyShards = keyShards;
 		this.passwordChecker = passwordChecker;
 		this.multiUserAccounts = useMultiUserAccounts;
 	}
 	
+	/**
+	 * Creates a new entity that issues signed login tokens instead of storing login keys. 
+	 * The tokens can be checked without accessing the database. Multiple users may use the 
+	 * same account at the same time.
+	 * @param name The name of the entity
+	 * @param parent The parent of the entity
+	 * @param tokenAuthority The authority that signs the tokens
+	 * @param keyShards The tables which contain the token revocations
+	 * @param passwordChecker The password checker which is used for validating the 
+	 * requests (null if no validation is required)
+	 */
+	public LoginManagerEntity(String name, RestEntity parent, 
+			LoginTokenAuthority tokenAuthority, LoginKeyShards keyShards, 
+			PasswordChecker passwordChecker)
+	{
+		this(name, parent, keyShards, passwordChecker, true);
+		
+		this.tokenAuthority = tokenAuthority;
+	}
+	
 	
 	// IMPLEMENTED METHODS	-----------------------
 
 	@Override
 	protected RestEntity loadEntityWithID(String id) throws HttpException
 	{
-		return new LoginKey(getPath() + "/", this.keyTable, id);
+		// The keys are identified by the user ids
+		return new LoginKey(getPath() + "/", this.keyShards.getShard(id), id);
+	}
+	
+	@Override
+	protected RestEntity loadEntityWithID(long id) throws HttpException
+	{
+		return new LoginKey(getPath() + "/", this.keyShards.getShard(id), id);
 	}
 
 	@Override
@@ -85,20 +138,101 @@ public class LoginManagerEntity extends DatabaseTableEntity
 	protected RestEntity getMissingEntity(String pathPart, Map<String, String> parameters) 
 			throws HttpException
 	{
-		// Checks that the provided password (or a key) is correct
+		startRequest(parameters);
+		
+		// Logins with an existing key are cheap, password checks are not. A request with 
+		// an invalid key is admitted as a password login before its password is checked.
+		boolean keyAccepted = parameters.containsKey(
+				this.keyShards.getShard(pathPart).getKeyColumnName()) && 
+				checkKey(pathPart, parameters);
+		AdmissionController.admit(keyAccepted ? Priority.KEYED_READ : Priority.LOGIN);
+		try
+		{
+			return login(pathPart, parameters, keyAccepted);
+		}
+		finally
+		{
+			AdmissionController.release();
+		}
+	}
+	
+	@Override
+	protected Map<String, RestEntity> getMissingEntities(Map<String, String> parameters)
+	{
+		// The login manager can't offer or show multiple login keys at once since there's 
+		// No way to authorize that
+		return new HashMap<>();
+	}
+	
+	
+	// OTHER METHODS	----------------------------
+	
+	/**
+	 * Limits the amount of keys a single user may have when multi-user accounts are used. 
+	 * When a new key is created, the user's oldest keys are removed in the same 
+	 * transaction.
+	 * @param maxKeys How many keys a single user may have at once. 0 means no limit.
+	 */
+	public void limitKeysPerUser(int maxKeys)
+	{
+		this.maxKeysPerUser = Math.max(0, maxKeys);
+	}
+	
+	/**
+	 * Makes the logins of multi-user accounts return the previous key of the client 
+	 * instead of creating a new one. The clients are recognized by a fingerprint parameter, 
+	 * which is stored with the key.
+	 * @param fingerprintColumnName The name of the key table column that holds the client 
+	 * fingerprints. The clients send the fingerprint in a parameter of the same name.
+	 * @param maxKeyAgeMinutes How old keys may be reused. This should be shorter than the 
+	 * duration of the keys so that the reused keys don't expire right away.
+	 */
+	public void enableKeyReuse(String fingerprintColumnName, int maxKeyAgeMinutes)
+	{
+		this.fingerprintColumnName = fingerprintColumnName;
+		this.keyReuseMinutes = maxKeyAgeMinutes;
+	}
+	
+	private boolean checkKey(String userID, Map<String, String> parameters) 
+			throws ServiceUnavailableException
+	{
+		AdmissionController.admit(Priority.KEYED_READ);
 		try
 		{
-			LoginKeyTable.checkKey(this.keyTable, pathPart, parameters);
+			LoginKeyTable.checkKey(this.keyShards, userID, parameters);
+			return true;
 		}
 		catch (HttpException e)
 		{
-			if (this.passwordChecker != null)
-				this.passwordChecker.checkPassword(pathPart, parameters);
+			return false;
+		}
+		finally
+		{
+			AdmissionController.release();
+		}
+	}
+	
+	private RestEntity login(String pathPart, Map<String, String> parameters, 
+			boolean keyAccepted) throws HttpException
+	{
+		// Without an accepted key, the password must be correct
+		if (!keyAccepted && this.passwordChecker != null)
+			this.passwordChecker.checkPassword(pathPart, parameters);
+		
+		// In token mode, a valid token is simply returned and a new one is signed otherwise. 
+		// A client that logged in with a stored key receives a token as well.
+		if (this.tokenAuthority != null)
+		{
+			String key = parameters.get(this.keyShards.getShard(pathPart).getKeyColumnName());
+			String token = keyAccepted && LoginTokenAuthority.isToken(key) ? key : 
+					this.tokenAuthority.issueToken(pathPart);
+			return new LoginToken(this, this.keyShards.getShard(pathPart), 
+					this.tokenAuthority, pathPart, token);
 		}
 		
 		// For multi-user accounts, a new key is generated at each login
 		if (this.multiUserAccounts)
-			return new LoginKey(this, this.keyTable, pathPart, parameters);
+			return createKey(pathPart, parameters);
 		
 		// Tries to find an existing key
 		try
@@ -108,15 +242,53 @@ public class LoginManagerEntity extends DatabaseTableEntity
 		catch (NotFoundException e)
 		{
 			// If there wasn't a key already, creates a new key
-			return new LoginKey(this, this.keyTable, pathPart, parameters);
+			return new LoginKey(this, this.keyShards.getShard(pathPart), pathPart, 
+					parameters);
 		}
 	}
 	
-	@Override
-	protected Map<String, RestEntity> getMissingEntities(Map<String, String> parameters)
+	private RestEntity createKey(String userID, Map<String, String> parameters) 
+			throws HttpException
 	{
-		// The login manager can't offer or show multiple login keys at once since there's 
-		// No way to authorize that
-		return new HashMap<>();
+		LoginKeyTable keyTable = this.keyShards.getShard(userID);
+		
+		try
+		{
+			// A client that still has a valid key receives the same key again
+			String fingerprint = this.fingerprintColumnName == null ? null : 
+					parameters.get(this.fingerprintColumnName);
+			if (fingerprint != null)
+			{
+				Map<String, String> row = LoginKeyLimits.findReusableKey(keyTable, userID, 
+						this.fingerprintColumnName, fingerprint, this.keyReuseMinutes);
+				// The keys of a user share the identifier, so the key is built from the 
+				// row that was found instead of reading it again
+				if (row != null)
+					return new LoginKey(getPath() + "/", keyTable, row);
+			}
+			
+			if (this.maxKeysPerUser <= 0)
+				return new LoginKey(this, keyTable, userID, parameters);
+			
+			// The oldest keys are removed in the same transaction as the new key is added
+			UnitOfWork work = UnitOfWork.begin();
+			try
+			{
+				LoginKey key = new LoginKey(this, keyTable, userID, parameters);
+				LoginKeyLimits.removeOldestKeys(work.getConnection(
+						keyTable.getDatabaseName()), keyTable, userID, key.getKey(), 
+						this.maxKeysPerUser - 1);
+				work.commit();
+				return key;
+			}
+			finally
+			{
+				work.close();
+			}
+		}
+		catch (SQLException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't create a login key", e);
+		}
 	}
 }
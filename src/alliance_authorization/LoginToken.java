@@ -0,0 +1,95 @@
+package alliance_authorization;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import nexus_http.HttpException;
+import nexus_http.MethodNotSupportedException;
+import nexus_http.MethodType;
+import nexus_http.NotFoundException;
+import nexus_rest.RestEntity;
+import nexus_rest.SimpleRestData;
+import nexus_rest.TemporaryRestEntity;
+
+/**
+ * LoginTokens are the stateless counterparts of login keys. They are not stored anywhere
+ * but are signed by a login token authority. Deleting a token logs the user out by
+ * revoking all of the user's tokens.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LoginToken extends TemporaryRestEntity
+{
+	// ATTRIBUTES	-------------------------
+	
+	private LoginKeyTable table;
+	private LoginTokenAuthority authority;
+	private String userID;
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	/**
+	 * Creates a new token entity
+	 * @param parent The parent entity of this token
+	 * @param table The table the user's login keys would be stored in
+	 * @param authority The authority that signed the token
+	 * @param userID The identifier of the user the token is for
+	 * @param token The signed token
+	 */
+	public LoginToken(RestEntity parent, LoginKeyTable table, LoginTokenAuthority authority,
+			String userID, String token)
+	{
+		super(userID, new SimpleRestData(), parent);
+		
+		this.table = table;
+		this.authority = authority;
+		this.userID = userID;
+		
+		// The token is shown like a login key would be
+		setAttribute(table.getUserIDColumnName(), userID);
+		setAttribute(table.getKeyColumnName(), token);
+	}
+	
+	
+	// IMPLEMENTED METHODS	-------------------------------
+	
+	@Override
+	public RestEntity Post(Map<String, String> parameters) throws HttpException
+	{
+		throw new MethodNotSupportedException(MethodType.POST);
+	}
+	
+	@Override
+	public void Put(Map<String, String> parameters) throws HttpException
+	{
+		// Token data cannot be changed
+		throw new MethodNotSupportedException(MethodType.PUT);
+	}
+	
+	@Override
+	protected Map<String, RestEntity> getMissingEntities(
+			Map<String, String> parameters) throws HttpException
+	{
+		// The token has no connections
+		return new HashMap<>();
+	}
+	
+	@Override
+	protected RestEntity getMissingEntity(String pathPart,
+			Map<String, String> parameters) throws HttpException
+	{
+		throw new NotFoundException(getPath() + "/" + pathPart);
+	}
+	
+	/**
+	 * Deleting a token requires authorization. All of the user's tokens are revoked.
+	 */
+	@Override
+	protected void prepareDelete(Map<String, String> parameters) throws HttpException
+	{
+		LoginKeyTable.checkKey(this.table, this.userID, parameters);
+		this.authority.revokeTokens(this.userID);
+	}
+}
@@ -0,0 +1,368 @@
+package alliance_authorization;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import nexus_http.AuthorizationException;
+import nexus_http.HttpException;
+import nexus_http.InternalServerException;
+import alliance_rest.TableVersions;
+import alliance_util.ConnectionManager;
+import alliance_util.SimpleDate;
+import alliance_util.TableOperations;
+
+/**
+ * LoginTokenAuthority issues and verifies signed login tokens. A token contains the user
+ * id, the time it was issued and the version of the secret it was signed with, so it can
+ * be verified without accessing the database. The signing secret is derived from a master
+ * secret and changes periodically. All the server nodes that share the master secret
+ * accept each other's tokens. When a user logs out, a revocation entry is written into the
+ * login key table. The revocations are cached in memory and refreshed periodically.
+ * Because of that, a logout made on another node may take up to the refresh interval
+ * before it is noticed.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LoginTokenAuthority
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static final String TOKEN_PREFIX = "t.";
+	private static final String REVOCATION_PREFIX = "revoked:";
+	private static final String MAC_ALGORITHM = "HmacSHA256";
+	
+	private static final Map<LoginKeyTable, LoginTokenAuthority> authorities =
+			new ConcurrentHashMap<>();
+	
+	private final byte[] masterSecret;
+	private final long rotationMillis, tokenDurationMillis, revocationRefreshMillis;
+	private final LoginKeyShards keyShards;
+	
+	private final Map<String, Long> revocations = new ConcurrentHashMap<>();
+	private volatile long lastRevocationRefresh = 0;
+	private final Map<Long, byte[]> secrets = new ConcurrentHashMap<>();
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	/**
+	 * Creates a new authority and registers it for the given key tables. After this,
+	 * {@link LoginKeyTable#checkKey(LoginKeyTable, String, String)} accepts the tokens
+	 * issued by this authority for the tables.
+	 * @param keyShards The tables that hold the revocation entries
+	 * @param masterSecret The secret shared by all the server nodes. Should be at least
+	 * 32 bytes long.
+	 * @param rotationHours How often the signing secret changes. The tokens signed with the
+	 * previous secret are still accepted.
+	 * @param tokenDurationHours How long a single token is valid. Shouldn't be longer than
+	 * the time the login keys are kept in the key table, since the revocation entries are
+	 * removed along with the old keys.
+	 * @param revocationRefreshSeconds How often the revocations are read from the database
+	 */
+	public LoginTokenAuthority(LoginKeyShards keyShards, byte[] masterSecret,
+			int rotationHours, int tokenDurationHours, int revocationRefreshSeconds)
+	{
+		this.keyShards = keyShards;
+		this.masterSecret = masterSecret.clone();
+		this.rotationMillis = Math.max(1, rotationHours) * 3600000l;
+		this.tokenDurationMillis = tokenDurationHours * 3600000l;
+		this.revocationRefreshMillis = revocationRefreshSeconds * 1000l;
+		
+		for (LoginKeyTable table : keyShards.getShards())
+		{
+			authorities.put(table, this);
+		}
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Finds the authority that issues the tokens for the given table
+	 * @param keyTable A login key table
+	 * @return The authority registered for the table, null if the table doesn't use tokens
+	 */
+	public static LoginTokenAuthority getAuthority(LoginKeyTable keyTable)
+	{
+		return authorities.get(keyTable);
+	}
+	
+	/**
+	 * @param key A key provided by the client
+	 * @return Is the key a login token (instead of a stored login key)
+	 */
+	public static boolean isToken(String key)
+	{
+		return key != null && key.startsWith(TOKEN_PREFIX);
+	}
+	
+	/**
+	 * @param key A key provided by the client
+	 * @return Is the key a revocation entry written by an authority
+	 */
+	public static boolean isRevocation(String key)
+	{
+		return key != null && key.startsWith(REVOCATION_PREFIX);
+	}
+	
+	/**
+	 * Issues a new token for the given user
+	 * @param userID The identifier of the user
+	 * @return A signed token
+	 * @throws HttpException If the token couldn't be signed
+	 */
+	public String issueToken(String userID) throws HttpException
+	{
+		long issued = System.currentTimeMillis();
+		long version = issued / this.rotationMillis;
+		String payload = TOKEN_PREFIX + userID + "." + Long.toString(issued, 36) + "." +
+				Long.toString(version, 36);
+		
+		return payload + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(
+				sign(payload, version));
+	}
+	
+	/**
+	 * Checks that the token is valid for the given user. Only the revocation list may be
+	 * read from the database, and only when it needs to be refreshed.
+	 * @param userID The identifier of the user
+	 * @param token The token provided by the client
+	 * @throws HttpException If the token was not acceptable
+	 */
+	public void verifyToken(String userID, String token) throws HttpException
+	{
+		// Splits the token: t.userID.issued.version.signature
+		int signatureStart = token.lastIndexOf('.');
+		int versionStart = token.lastIndexOf('.', signatureStart - 1);
+		int issuedStart = token.lastIndexOf('.', versionStart - 1);
+		if (!isToken(token) || issuedStart <= TOKEN_PREFIX.length() ||
+				!token.regionMatches(TOKEN_PREFIX.length(), userID, 0, userID.length()) ||
+				issuedStart != TOKEN_PREFIX.length() + userID.length())
+			throw new AuthorizationException("Invalid login key");
+		
+		long issued, version;
+		byte[] signature;
+		try
+		{
+			issued = Long.parseLong(token.substring(issuedStart + 1, versionStart), 36);
+			version = Long.parseLong(token.substring(versionStart + 1, signatureStart), 36);
+			signature = Base64.getUrlDecoder().decode(token.substring(signatureStart + 1));
+		}
+		catch (IllegalArgumentException e)
+		{
+			throw new AuthorizationException("Invalid login key");
+		}
+		
+		// Only the current and the previous secrets are accepted
+		long now = System.currentTimeMillis();
+		long currentVersion = now / this.rotationMillis;
+		if (version != currentVersion && version != currentVersion - 1)
+			throw new AuthorizationException("Invalid login key");
+		if (!MessageDigest.isEqual(signature, sign(token.substring(0, signatureStart),
+				version)))
+			throw new AuthorizationException("Invalid login key");
+		if (now - issued > this.tokenDurationMillis || issued > now)
+			throw new AuthorizationException("Login key expired");
+		
+		// The tokens issued before a logout are no longer valid
+		Long revokedAt = getRevocations().get(userID);
+		if (revokedAt != null && issued <= revokedAt)
+			throw new AuthorizationException("Invalid login key");
+	}
+	
+	/**
+	 * Revokes all the tokens the user currently has. The revocation is stored into the
+	 * user's key table.
+	 * @param userID The identifier of the user
+	 * @throws HttpException If the revocation couldn't be stored
+	 */
+	public void revokeTokens(String userID) throws HttpException
+	{
+		long now = System.currentTimeMillis();
+		LoginKeyTable table = this.keyShards.getShard(userID);
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(table.getDatabaseName(), 
+					table.getTableName() + ".token");
+			connection.setAutoCommit(false);
+			
+			// Each user has only a single revocation entry
+			List<String> tableNames = TableOperations.getTableNames(table);
+			for (String tableName : tableNames)
+			{
+				try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " +
+						tableName + " WHERE " + table.getUserIDColumnName() + " = ?"))
+				{
+					TableOperations.setParameter(statement, 1, table,
+							table.getUserIDColumnName(), userID);
+					statement.executeUpdate();
+				}
+			}
+			try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " +
+					tableNames.get(tableNames.size() - 1) + " (" +
+					table.getUserIDColumnName() + ", " + table.getKeyColumnName() + ", " +
+					table.getCreationTimeColumnName() + ") VALUES (?, ?, ?)"))
+			{
+				TableOperations.setParameter(statement, 1, table,
+						table.getUserIDColumnName(), userID);
+				statement.setString(2, REVOCATION_PREFIX + now);
+				statement.setString(3, new SimpleDate().toString());
+				statement.executeUpdate();
+			}
+			
+			connection.commit();
+		}
+		catch (SQLException e)
+		{
+			try
+			{
+				if (connection != null)
+					connection.rollback();
+			}
+			catch (SQLException e1)
+			{
+				// Ignored
+			}
+			throw new InternalServerException("Couldn't revoke the login tokens", e);
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		this.revocations.put(userID, now);
+		// The user's keys were removed as well
+		TableVersions.tableModified(table);
+	}
+	
+	private Map<String, Long> getRevocations() throws HttpException
+	{
+		long now = System.currentTimeMillis();
+		if (now - this.lastRevocationRefresh < this.revocationRefreshMillis)
+			return this.revocations;
+		
+		synchronized (this)
+		{
+			if (now - this.lastRevocationRefresh >= this.revocationRefreshMillis)
+			{
+				try
+				{
+					Map<String, Long> read = readRevocations();
+					this.revocations.keySet().retainAll(read.keySet());
+					this.revocations.putAll(read);
+					this.lastRevocationRefresh = now;
+				}
+				catch (SQLException e)
+				{
+					throw new InternalServerException("Couldn't read the revoked login keys",
+							e);
+				}
+			}
+		}
+		
+		return this.revocations;
+	}
+	
+	private Map<String, Long> readRevocations() throws SQLException
+	{
+		Map<String, Long> read = new HashMap<>();
+		for (LoginKeyTable table : this.keyShards.getShards())
+		{
+			Connection connection = null;
+			try
+			{
+				connection = ConnectionManager.openConnection(table.getDatabaseName(), 
+						table.getTableName() + ".token");
+				for (String tableName : TableOperations.getTableNames(table))
+				{
+					try (PreparedStatement statement = connection.prepareStatement("SELECT " +
+							table.getUserIDColumnName() + ", " + table.getKeyColumnName() +
+							" FROM " + tableName + " WHERE " + table.getKeyColumnName() +
+							" LIKE ?"))
+					{
+						statement.setString(1, REVOCATION_PREFIX + "%");
+						try (ResultSet result = statement.executeQuery())
+						{
+							while (result.next())
+							{
+								try
+								{
+									read.put(result.getString(1), Long.parseLong(
+											result.getString(2).substring(
+											REVOCATION_PREFIX.length())));
+								}
+								catch (NumberFormatException e)
+								{
+									// Invalid entries are skipped
+								}
+							}
+						}
+					}
+				}
+			}
+			finally
+			{
+				ConnectionManager.closeConnection(connection);
+			}
+		}
+		
+		return read;
+	}
+	
+	private byte[] sign(String payload, long version) throws HttpException
+	{
+		try
+		{
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(getSecret(version), MAC_ALGORITHM));
+			return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+		}
+		catch (NoSuchAlgorithmException | InvalidKeyException e)
+		{
+			throw new InternalServerException("Couldn't sign the login token", e);
+		}
+	}
+	
+	private byte[] getSecret(long version) throws NoSuchAlgorithmException,
+			InvalidKeyException
+	{
+		byte[] secret = this.secrets.get(version);
+		if (secret == null)
+		{
+			// Each version's secret is derived from the master secret so that all the nodes
+			// end up with the same secrets
+			Mac mac = Mac.getInstance(MAC_ALGORITHM);
+			mac.init(new SecretKeySpec(this.masterSecret, MAC_ALGORITHM));
+			secret = mac.doFinal(("login-token-" + version).getBytes(StandardCharsets.UTF_8));
+			
+			// Only the recent secrets are remembered
+			Iterator<Long> versions = this.secrets.keySet().iterator();
+			while (versions.hasNext())
+			{
+				if (versions.next() < version - 1)
+					versions.remove();
+			}
+			this.secrets.put(version, secret);
+		}
+		
+		return secret;
+	}
+}
@@ -3,16 +3,27 @@ package alliance_authorization;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import nexus_http.AuthorizationException;
 import nexus_http.HttpException;
 import nexus_http.InternalServerException;
 import nexus_http.InvalidParametersException;
-import vault_database.DatabaseAccessor;
 import vault_database.DatabaseTable;
-import vault_database.DatabaseUnavailableException;
+import alliance_rest.ServiceUnavailableException;
+import alliance_util.ConnectionManager;
+import alliance_util.TableOperations;
 
 /**
  * This class is able to check if a password matches that of a user
@@ -24,8 +35,18 @@ public class PasswordChecker
 {
 	// ATTRIBUTES	-------------------------
 	
+	// The passwords are kept in memory until they are rehashed, so only a limited amount 
+	// of rehashes may wait at once
+	private static final int MAX_QUEUED_REHASHES = 100;
+	
+	private static ExecutorService rehashExecutor = null;
+	private static final Set<String> queuedRehashes = Collections.newSetFromMap(
+			new ConcurrentHashMap<String, Boolean>());
+	private static volatile boolean rehashSkipReported = false;
+	
 	private String passwordColumnName, userIDColumnName;
 	private DatabaseTable passwordTable;
+	private LoginAttemptLimiter attemptLimiter;
 	
 	
 	// CONSTRUCTOR	-------------------------
@@ -38,10 +59,26 @@ public class PasswordChecker
 	 */
 	public PasswordChecker(DatabaseTable passwordTable, String hashColumnName, 
 			String userIDColumnName)
+	{
+		this(passwordTable, hashColumnName, userIDColumnName, null);
+	}
+	
+	/**
+	 * Creates a new passwordChecker that uses the given database table as reference and 
+	 * limits the amount of login attempts
+	 * @param passwordTable The table that contains the hashed passwords
+	 * @param hashColumnName The column that holds the password hash
+	 * @param userIDColumnName The column that holds the user identifiers
+	 * @param attemptLimiter The limiter that rejects too frequent login attempts before the 
+	 * password is checked (null if the attempts shouldn't be limited)
+	 */
+	public PasswordChecker(DatabaseTable passwordTable, String hashColumnName, 
+			String userIDColumnName, LoginAttemptLimiter attemptLimiter)
 	{
 		this.passwordColumnName = hashColumnName;
 		this.userIDColumnName = userIDColumnName;
 		this.passwordTable = passwordTable;
+		this.attemptLimiter = attemptLimiter;
 	}
 	
 	
@@ -55,27 +92,70 @@ public class PasswordChecker
 	 * couldn't be checked at all
 	 */
 	public void checkPassword(String userID, String password) throws HttpException
+	{
+		// Too frequent attempts are rejected before any database or hashing work is done
+		if (this.attemptLimiter != null)
+			this.attemptLimiter.checkAttempt(userID);
+		
+		validatePassword(userID, password);
+	}
+	
+	/**
+	 * Checks if the given password matches that of the given user
+	 * @param userID The identifier of the user
+	 * @param parameters The parameters provided by the client. The password should be in 
+	 * 'password' parameter
+	 * @throws HttpException If the password or username were incorrect or the password 
+	 * couldn't be checked at all
+	 */
+	public void checkPassword(String userID, Map<String, String> parameters) throws HttpException
+	{
+		// Checks that the parameters exist
+		if (!parameters.containsKey("password"))
+			throw new InvalidParametersException("Parameter 'password' required");
+		
+		// Too frequent attempts are rejected before any database or hashing work is done
+		if (this.attemptLimiter != null)
+			this.attemptLimiter.checkAttempt(userID);
+		
+		// Checks the password
+		validatePassword(userID, parameters.get("password"));
+	}
+	
+	private void validatePassword(String userID, String password) throws HttpException
 	{
 		try
 		{
 			// Finds the correct hash
-			List<String> correctHashes = DatabaseAccessor.findMatchingData(this.passwordTable, 
+			List<String> correctHashes = TableOperations.findValues(this.passwordTable, 
 					this.userIDColumnName, userID, this.passwordColumnName);
 			
-			boolean correctFound = false;
+			String matchingHash = null;
 			// Compares the hashes
 			for (String correctHash : correctHashes)
 			{
 				if (PasswordHash.validatePassword(password, correctHash))
-					correctFound = true;
+					matchingHash = correctHash;
 			}
 			
-			if (!correctFound)
+			if (matchingHash == null)
 				throw new AuthorizationException("Invalid username or password");
+			ConnectionManager.authenticateSession(userID);
+			
+			// Hashes created with an outdated work factor are replaced in the background
+			if (PasswordHash.needsRehash(matchingHash))
+				scheduleRehash(userID, password, matchingHash);
+			
+			// Only the failed attempts count towards a lockout
+			if (this.attemptLimiter != null)
+				this.attemptLimiter.reset(userID);
 		}
-		catch (DatabaseUnavailableException | SQLException e)
+		catch (SQLException e)
 		{
-			throw new InternalServerException("Couldn't find the password data", e);
+			// The password wasn't checked, so the attempt isn't counted
+			if (this.attemptLimiter != null)
+				this.attemptLimiter.cancelAttempt(userID);
+			throw ServiceUnavailableException.wrap("Couldn't find the password data", e);
 		}
 		catch (NoSuchAlgorithmException | InvalidKeySpecException e)
 		{
@@ -83,21 +163,91 @@ public class PasswordChecker
 		}
 	}
 	
-	/**
-	 * Checks if the given password matches that of the given user
-	 * @param userID The identifier of the user
-	 * @param parameters The parameters provided by the client. The password should be in 
-	 * 'password' parameter
-	 * @throws HttpException If the password or username were incorrect or the password 
-	 * couldn't be checked at all
-	 */
-	public void checkPassword(String userID, Map<String, String> parameters) throws HttpException
+	private void scheduleRehash(final String userID, final String password, 
+			final String oldHash)
 	{
-		// Checks that the parameters exist
-		if (!parameters.containsKey("password"))
-			throw new InvalidParametersException("Parameter 'password' required");
+		// The conditional update requires the ConnectionManager
+		if (!ConnectionManager.isInitialized())
+		{
+			if (!rehashSkipReported)
+			{
+				rehashSkipReported = true;
+				System.err.println("The outdated password hashes aren't replaced since " + 
+						"the ConnectionManager hasn't been initialized");
+			}
+			return;
+		}
 		
-		// Checks the password
-		checkPassword(userID, parameters.get("password"));
+		// A user's password is rehashed only once, even if the user logs in again before 
+		// the rehash is done
+		final String rehashKey = this.passwordTable.getTableName() + "/" + userID;
+		if (!queuedRehashes.add(rehashKey))
+			return;
+		
+		try
+		{
+			getRehashExecutor().execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						rehash(userID, password, oldHash);
+					}
+					finally
+					{
+						queuedRehashes.remove(rehashKey);
+					}
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// When the queue is full, the hash is replaced at a later login instead
+			queuedRehashes.remove(rehashKey);
+		}
+	}
+	
+	private void rehash(String userID, String password, String oldHash)
+	{
+		try
+		{
+			Map<String, String> values = new HashMap<>();
+			values.put(this.passwordColumnName, PasswordHash.createHash(password));
+			
+			// The hash is only replaced if it hasn't been changed in the meanwhile
+			Map<String, String> conditions = new HashMap<>();
+			conditions.put(this.userIDColumnName, userID);
+			conditions.put(this.passwordColumnName, oldHash);
+			
+			TableOperations.update(this.passwordTable, values, conditions);
+		}
+		catch (NoSuchAlgorithmException | InvalidKeySpecException | SQLException e)
+		{
+			System.err.println("Failed to rehash the password of user " + userID);
+			e.printStackTrace();
+		}
+	}
+	
+	private static synchronized ExecutorService getRehashExecutor()
+	{
+		if (rehashExecutor == null)
+		{
+			// The rehashes that don't fit in the queue are rejected
+			rehashExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, 
+					new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REHASHES), new ThreadFactory()
+			{
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "password-rehash");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		
+		return rehashExecutor;
 	}
 }
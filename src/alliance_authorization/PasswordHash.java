@@ -33,10 +33,11 @@ import java.security.SecureRandom;
 import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.SecretKeyFactory;
 
-import java.math.BigInteger;
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
 
+import alliance_util.HexCodec;
+
 /*
  * PBKDF2 salted password hashing.
  * Author: havoc AT defuse.ca
@@ -46,16 +47,132 @@ import java.security.spec.InvalidKeySpecException;
 public class PasswordHash
 {
     public static final String PBKDF2_ALGORITHM = "PBKDF2WithHmacSHA1";
+    public static final String[] PBKDF2_ALGORITHMS = {"PBKDF2WithHmacSHA512", 
+            "PBKDF2WithHmacSHA256", PBKDF2_ALGORITHM};
 
     // The following constants may be changed without breaking existing hashes.
     public static final int SALT_BYTE_SIZE = 24;
     public static final int HASH_BYTE_SIZE = 24;
     public static final int PBKDF2_ITERATIONS = 1000;
 
+    // Hashes without an algorithm part (iterations:salt:hash) use PBKDF2_ALGORITHM
     public static final int ITERATION_INDEX = 0;
     public static final int SALT_INDEX = 1;
     public static final int PBKDF2_INDEX = 2;
 
+    private static final String[] ALGORITHM_TAGS = new String[PBKDF2_ALGORITHMS.length];
+
+    static
+    {
+        for (int i = 0; i < PBKDF2_ALGORITHMS.length; i++)
+        {
+            ALGORITHM_TAGS[i] = tagForAlgorithm(PBKDF2_ALGORITHMS[i]);
+        }
+    }
+
+    // The work factor used for new hashes. May be changed with setWorkFactor or calibrate.
+    private static volatile String algorithm = PBKDF2_ALGORITHM;
+    private static volatile int iterations = PBKDF2_ITERATIONS;
+
+    /**
+     * Changes the work factor used for creating new hashes. Existing hashes stay valid.
+     *
+     * @param   newAlgorithm    the PBKDF2 algorithm (one of PBKDF2_ALGORITHMS)
+     * @param   newIterations   the iteration count (slowness factor)
+     */
+    public static void setWorkFactor(String newAlgorithm, int newIterations)
+        throws NoSuchAlgorithmException
+    {
+        SecretKeyFactory.getInstance(newAlgorithm);
+        algorithm = newAlgorithm;
+        iterations = Math.max(PBKDF2_ITERATIONS, newIterations);
+    }
+
+    /**
+     * Picks the strongest available algorithm and the iteration count with which a 
+     * single password validation takes about the target time on this hardware. The 
+     * results are used for all new hashes. The iteration count is never set below 
+     * PBKDF2_ITERATIONS.
+     *
+     * @param   targetMillis    how long a single validation should take
+     * @return                  the chosen iteration count
+     */
+    public static int calibrate(long targetMillis)
+        throws NoSuchAlgorithmException, InvalidKeySpecException
+    {
+        // Finds the strongest supported algorithm
+        String chosenAlgorithm = null;
+        for (String candidate : PBKDF2_ALGORITHMS)
+        {
+            try
+            {
+                SecretKeyFactory.getInstance(candidate);
+                chosenAlgorithm = candidate;
+                break;
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                // Tries the next one
+            }
+        }
+        if (chosenAlgorithm == null)
+            throw new NoSuchAlgorithmException("No PBKDF2 algorithm available");
+
+        // Measures the time a sample takes. The first rounds warm up the implementation 
+        // and the fastest of the rest is used.
+        char[] samplePassword = "calibration".toCharArray();
+        byte[] sampleSalt = new byte[SALT_BYTE_SIZE];
+        int sampleIterations = 10000;
+        long bestNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++)
+        {
+            long started = System.nanoTime();
+            pbkdf2(chosenAlgorithm, samplePassword, sampleSalt, sampleIterations, 
+                    HASH_BYTE_SIZE);
+            long duration = System.nanoTime() - started;
+            if (i >= 2 && duration < bestNanos)
+                bestNanos = duration;
+        }
+
+        long chosenIterations = targetMillis * 1000000l * sampleIterations / 
+                Math.max(1, bestNanos);
+        setWorkFactor(chosenAlgorithm, (int) Math.min(Integer.MAX_VALUE, chosenIterations));
+        return iterations;
+    }
+
+    /**
+     * Checks whether a hash was created with a weaker work factor than the one currently 
+     * used for new hashes. A hash is weaker if its algorithm is weaker or if it uses fewer 
+     * iterations than currently configured. A different but stronger algorithm alone 
+     * doesn't make a hash outdated, so that nodes with different settings don't keep 
+     * replacing each other's hashes.
+     *
+     * @param   correctHash     the stored hash
+     * @return                  true if the hash should be recreated, false if not
+     */
+    public static boolean needsRehash(String correctHash)
+    {
+        // Finds the separators. Older hashes don't have the algorithm part.
+        int first = correctHash.indexOf(':');
+        int second = correctHash.indexOf(':', first + 1);
+        int third = correctHash.indexOf(':', second + 1);
+        if (first < 0 || second < 0)
+            throw new IllegalArgumentException("Invalid hash format");
+
+        String hashAlgorithm = PBKDF2_ALGORITHM;
+        int hashIterations;
+        if (third < 0)
+            hashIterations = parseDigits(correctHash, 0, first);
+        else
+        {
+            hashAlgorithm = algorithmForTag(correctHash, first);
+            hashIterations = parseDigits(correctHash, first + 1, second);
+        }
+
+        return algorithmStrength(hashAlgorithm) < algorithmStrength(algorithm) || 
+                hashIterations < iterations;
+    }
+
     /**
      * Returns a salted PBKDF2 hash of the password.
      *
@@ -83,9 +200,12 @@ public class PasswordHash
         random.nextBytes(salt);
 
         // Hash the password
-        byte[] hash = pbkdf2(password, salt, PBKDF2_ITERATIONS, HASH_BYTE_SIZE);
-        // format iterations:salt:hash
-        return PBKDF2_ITERATIONS + ":" + toHex(salt) + ":" +  toHex(hash);
+        String usedAlgorithm = algorithm;
+        int usedIterations = iterations;
+        byte[] hash = pbkdf2(usedAlgorithm, password, salt, usedIterations, HASH_BYTE_SIZE);
+        // format algorithm:iterations:salt:hash
+        return tagForAlgorithm(usedAlgorithm) + ":" + usedIterations + ":" + HexCodec.encode(salt) + 
+                ":" +  HexCodec.encode(hash);
     }
 
     /**
@@ -111,84 +231,114 @@ public class PasswordHash
     public static boolean validatePassword(char[] password, String correctHash)
         throws NoSuchAlgorithmException, InvalidKeySpecException
     {
-        // Decode the hash into its parameters
-        String[] params = correctHash.split(":");
-        int iterations = Integer.parseInt(params[ITERATION_INDEX]);
-        byte[] salt = fromHex(params[SALT_INDEX]);
-        byte[] hash = fromHex(params[PBKDF2_INDEX]);
+        // Decode the hash into its parameters. Older hashes don't have the algorithm part.
+        // The parts are read by their offsets so that no substrings need to be created.
+        int first = correctHash.indexOf(':');
+        int second = correctHash.indexOf(':', first + 1);
+        int third = correctHash.indexOf(':', second + 1);
+        if (first < 0 || second < 0)
+            throw new IllegalArgumentException("Invalid hash format");
+
+        String hashAlgorithm = PBKDF2_ALGORITHM;
+        int iterationsStart = 0, saltStart = first + 1, hashStart = second + 1;
+        if (third >= 0)
+        {
+            hashAlgorithm = algorithmForTag(correctHash, first);
+            iterationsStart = first + 1;
+            saltStart = second + 1;
+            hashStart = third + 1;
+        }
+
+        int iterations = parseDigits(correctHash, iterationsStart, saltStart - 1);
+        byte[] salt = HexCodec.decode(correctHash, saltStart, hashStart - 1);
+        int hashLength = (correctHash.length() - hashStart) / 2;
         // Compute the hash of the provided password, using the same salt, 
         // iteration count, and hash length
-        byte[] testHash = pbkdf2(password, salt, iterations, hash.length);
-        // Compare the hashes in constant time. The password is correct if
-        // both hashes match.
-        return slowEquals(hash, testHash);
-    }
-
-    /**
-     * Compares two byte arrays in length-constant time. This comparison method
-     * is used so that password hashes cannot be extracted from an on-line 
-     * system using a timing attack and then attacked off-line.
-     * 
-     * @param   a       the first byte array
-     * @param   b       the second byte array 
-     * @return          true if both byte arrays are the same, false if not
-     */
-    private static boolean slowEquals(byte[] a, byte[] b)
-    {
-        int diff = a.length ^ b.length;
-        for(int i = 0; i < a.length && i < b.length; i++)
-            diff |= a[i] ^ b[i];
-        return diff == 0;
+        byte[] testHash = pbkdf2(hashAlgorithm, password, salt, iterations, hashLength);
+        // Compare the hashes in constant time, directly against the stored hex. 
+        // The password is correct if both hashes match.
+        return HexCodec.equalsInConstantTime(correctHash, hashStart, testHash);
     }
 
     /**
      *  Computes the PBKDF2 hash of a password.
      *
+     * @param   algorithm   the PBKDF2 algorithm used
      * @param   password    the password to hash.
      * @param   salt        the salt
      * @param   iterations  the iteration count (slowness factor)
      * @param   bytes       the length of the hash to compute in bytes
      * @return              the PBDKF2 hash of the password
      */
-    private static byte[] pbkdf2(char[] password, byte[] salt, int iterations, int bytes)
+    private static byte[] pbkdf2(String algorithm, char[] password, byte[] salt, 
+            int iterations, int bytes)
         throws NoSuchAlgorithmException, InvalidKeySpecException
     {
         PBEKeySpec spec = new PBEKeySpec(password, salt, iterations, bytes * 8);
-        SecretKeyFactory skf = SecretKeyFactory.getInstance(PBKDF2_ALGORITHM);
+        SecretKeyFactory skf = SecretKeyFactory.getInstance(algorithm);
         return skf.generateSecret(spec).getEncoded();
     }
 
+    private static String tagForAlgorithm(String algorithm)
+    {
+        // Eg. PBKDF2WithHmacSHA256 -> sha256
+        return algorithm.substring(algorithm.lastIndexOf("Hmac") + 4).toLowerCase();
+    }
+
     /**
-     * Converts a string of hexadecimal characters into a byte array.
+     * Tells how strong an algorithm is compared to the other algorithms. Unknown 
+     * algorithms are considered as strong as the strongest known algorithm.
      *
-     * @param   hex         the hex string
-     * @return              the hex string decoded into a byte array
+     * @param   algorithm   the PBKDF2 algorithm
+     * @return              the strength of the algorithm, higher is stronger
      */
-    private static byte[] fromHex(String hex)
+    private static int algorithmStrength(String algorithm)
+    {
+        // The algorithms are listed from the strongest to the weakest
+        for (int i = 0; i < PBKDF2_ALGORITHMS.length; i++)
+        {
+            if (PBKDF2_ALGORITHMS[i].equals(algorithm))
+                return PBKDF2_ALGORITHMS.length - i;
+        }
+        return PBKDF2_ALGORITHMS.length;
+    }
+
+    private static String algorithmForTag(String hash, int tagEnd)
     {
-        byte[] binary = new byte[hex.length() / 2];
-        for(int i = 0; i < binary.length; i++)
+        // The known tags are matched in place
+        for (int i = 0; i < ALGORITHM_TAGS.length; i++)
         {
-            binary[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+            if (ALGORITHM_TAGS[i].length() == tagEnd && 
+                    hash.regionMatches(0, ALGORITHM_TAGS[i], 0, tagEnd))
+                return PBKDF2_ALGORITHMS[i];
         }
-        return binary;
+        return "PBKDF2WithHmac" + hash.substring(0, tagEnd).toUpperCase();
     }
 
     /**
-     * Converts a byte array into a hexadecimal string.
+     * Parses a non-negative integer from a range of decimal digits.
      *
-     * @param   array       the byte array to convert
-     * @return              a length*2 character string encoding the byte array
+     * @param   s           the string that contains the digits
+     * @param   start       the index of the first digit (inclusive)
+     * @param   end         the index after the last digit (exclusive)
+     * @return              the parsed integer
      */
-    private static String toHex(byte[] array)
+    private static int parseDigits(String s, int start, int end)
     {
-        BigInteger bi = new BigInteger(1, array);
-        String hex = bi.toString(16);
-        int paddingLength = (array.length * 2) - hex.length();
-        if(paddingLength > 0) 
-            return String.format("%0" + paddingLength + "d", 0) + hex;
-        else
-            return hex;
+        if (start >= end)
+            throw new NumberFormatException("Empty number");
+        int value = 0;
+        for(int i = start; i < end; i++)
+        {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Invalid digit at " + i);
+            // A huge iteration count would otherwise wrap around to a small one
+            if (value > (Integer.MAX_VALUE - digit) / 10)
+                throw new NumberFormatException("Number too large at " + i);
+            value = value * 10 + digit;
+        }
+        return value;
     }
 
     /**
@@ -226,6 +376,17 @@ public class PasswordHash
                     failure = true;
                 }
             }
+            // Test that an iteration count too large for an int is rejected
+            try
+            {
+                needsRehash("sha1:4294967297:00:00");
+                System.out.println("FAILURE: OVERFLOWING ITERATION COUNT ACCEPTED!");
+                failure = true;
+            }
+            catch (NumberFormatException e)
+            {
+                // Expected
+            }
             if(failure)
                 System.out.println("TESTS FAILED!");
             else
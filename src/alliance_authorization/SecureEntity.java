@@ -145,6 +145,13 @@ public abstract class SecureEntity extends DatabaseEntity
 		throw new MethodNotSupportedException(MethodType.GET);
 	}
 	
+	@Override
+	protected boolean mayBeEmbedded()
+	{
+		// The hashed information is never shown, not even in links
+		return false;
+	}
+	
 	@Override
 	public String getName()
 	{
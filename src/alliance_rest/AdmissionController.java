@@ -0,0 +1,476 @@
+package alliance_rest;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import alliance_util.LatencyHistogram;
+import alliance_util.RequestDeadline;
+
+/**
+ * AdmissionController limits how many requests may access the database at once. The
+ * other requests wait in a queue where the more important requests are served first.
+ * The controller follows how long the requests have to wait. If even the shortest wait
+ * during an interval exceeds the target delay, the server is considered overloaded and
+ * the least important requests are shed. The longer the overload lasts, the more
+ * priorities are shed: first listings, then password logins and finally keyed reads. A
+ * priority is first shed only when its requests have waited longer than the target
+ * delay. If the overload continues, the priority is rejected without waiting. Once the
+ * waits become short again, the priorities are restored one by one.
+ * <br>
+ * The controller is disabled until {@link #enable(int, long, long, long)} is called.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class AdmissionController
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static volatile AdmissionController controller = null;
+	private static final ThreadLocal<HeldPermit> heldPermits = 
+			new ThreadLocal<HeldPermit>()
+	{
+		@Override
+		protected HeldPermit initialValue()
+		{
+			return new HeldPermit();
+		}
+	};
+	
+	private final int maxConcurrent;
+	private final long targetDelayMillis, intervalMillis, maxWaitMillis;
+	
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = this.lock.newCondition();
+	private final PriorityQueue<Waiter> queue = new PriorityQueue<>();
+	private final LatencyHistogram[] waitTimes = new LatencyHistogram[Priority.values().length];
+	private final long[] admitted = new long[Priority.values().length],
+			shed = new long[Priority.values().length],
+			timedOut = new long[Priority.values().length];
+	
+	private int active = 0, shedLevel = 0;
+	private long arrivals = 0, intervalStart = System.currentTimeMillis(),
+			intervalMinDelay = Long.MAX_VALUE;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private AdmissionController(int maxConcurrent, long targetDelayMillis,
+			long intervalMillis, long maxWaitMillis)
+	{
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.targetDelayMillis = targetDelayMillis;
+		this.intervalMillis = Math.max(1, intervalMillis);
+		this.maxWaitMillis = maxWaitMillis;
+		
+		for (int i = 0; i < this.waitTimes.length; i++)
+		{
+			this.waitTimes[i] = new LatencyHistogram();
+		}
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+		this.lock.lock();
+		try
+		{
+			s.append("active ").append(this.active).append(", queued ").append(
+					this.queue.size()).append(", shedding ").append(describeShedLevel());
+			for (Priority priority : Priority.values())
+			{
+				int i = priority.ordinal();
+				s.append("\n").append(priority).append(": admitted ").append(
+						this.admitted[i]).append(", shed ").append(this.shed[i]).append(
+						", timed out ").append(this.timedOut[i]).append(", wait ").append(
+						this.waitTimes[i]);
+			}
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+		
+		return s.toString();
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Starts controlling the admission of requests
+	 * @param maxConcurrent How many requests may access the database at once
+	 * @param targetDelayMillis How long the requests may usually wait in the queue before
+	 * the server is considered overloaded (Eg. 5 ms)
+	 * @param intervalMillis How long the waits must stay above the target before more
+	 * requests are rejected (Eg. 100 ms)
+	 * @param maxWaitMillis How long a single request may wait in the queue at most. The
+	 * deadline of the request may shorten the wait further.
+	 * @return The controller that was enabled
+	 */
+	public static AdmissionController enable(int maxConcurrent, long targetDelayMillis,
+			long intervalMillis, long maxWaitMillis)
+	{
+		AdmissionController newController = new AdmissionController(maxConcurrent,
+				targetDelayMillis, intervalMillis, maxWaitMillis);
+		controller = newController;
+		return newController;
+	}
+	
+	/**
+	 * @return The controller in use. Null if the admission isn't controlled.
+	 */
+	public static AdmissionController getController()
+	{
+		return controller;
+	}
+	
+	/**
+	 * Waits until the current request may access the database. Each successful admission
+	 * must be followed by {@link #release()}. Requests that have already been admitted in
+	 * the current thread are admitted again immediately.
+	 * @param priority The priority of the request
+	 * @throws ServiceUnavailableException If the request was rejected because the server
+	 * is overloaded
+	 */
+	public static void admit(Priority priority) throws ServiceUnavailableException
+	{
+		HeldPermit held = heldPermits.get();
+		if (held.amount == 0)
+		{
+			// The permit is returned to the same controller, even if it has been replaced 
+			// in the meanwhile
+			AdmissionController current = controller;
+			if (current != null)
+				current.acquire(priority);
+			held.controller = current;
+		}
+		held.amount ++;
+	}
+	
+	/**
+	 * Informs that the request admitted in the current thread has stopped accessing the
+	 * database
+	 */
+	public static void release()
+	{
+		HeldPermit held = heldPermits.get();
+		if (held.amount <= 0)
+			return;
+		held.amount --;
+		
+		if (held.amount == 0 && held.controller != null)
+		{
+			held.controller.releasePermit();
+			held.controller = null;
+		}
+	}
+	
+	/**
+	 * @param priority A priority
+	 * @return How many requests of the priority have been admitted
+	 */
+	public long getAdmittedAmount(Priority priority)
+	{
+		this.lock.lock();
+		try
+		{
+			return this.admitted[priority.ordinal()];
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @param priority A priority
+	 * @return How many requests of the priority have been rejected because of overload
+	 */
+	public long getShedAmount(Priority priority)
+	{
+		this.lock.lock();
+		try
+		{
+			return this.shed[priority.ordinal()];
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @param priority A priority
+	 * @return How many requests of the priority have been rejected because they waited
+	 * too long
+	 */
+	public long getTimedOutAmount(Priority priority)
+	{
+		this.lock.lock();
+		try
+		{
+			return this.timedOut[priority.ordinal()];
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @param priority A priority
+	 * @return How long the admitted requests of the priority had to wait
+	 */
+	public LatencyHistogram getWaitTimes(Priority priority)
+	{
+		return this.waitTimes[priority.ordinal()];
+	}
+	
+	/**
+	 * @return How many of the lowest priorities are currently shed
+	 * [0, amount of priorities]. The last of the shed priorities is only shed when its
+	 * requests have waited longer than the target delay.
+	 */
+	public int getShedLevel()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.shedLevel;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many requests are currently waiting to be admitted
+	 */
+	public int getQueueLength()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.queue.size();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	private void acquire(Priority priority) throws ServiceUnavailableException
+	{
+		long arrived = System.currentTimeMillis();
+		int index = priority.ordinal();
+		
+		this.lock.lock();
+		try
+		{
+			updateShedLevel(arrived);
+			if (index < this.shedLevel - 1)
+			{
+				this.shed[index] ++;
+				throw new ServiceUnavailableException("The server is overloaded, " +
+						priority.getDescription() + " are not handled at this time", null);
+			}
+			
+			Waiter waiter = new Waiter(priority, this.arrivals ++);
+			this.queue.add(waiter);
+			long maxWait = this.maxWaitMillis;
+			long deadlineRemaining = RequestDeadline.getRemainingMillis();
+			if (deadlineRemaining >= 0)
+				maxWait = Math.min(maxWait, deadlineRemaining);
+			long remainingNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+			try
+			{
+				while (this.active >= this.maxConcurrent || this.queue.peek() != waiter)
+				{
+					if (remainingNanos <= 0)
+					{
+						this.timedOut[index] ++;
+						throw new ServiceUnavailableException("The server is overloaded, " +
+								"try again later", null);
+					}
+					try
+					{
+						remainingNanos = this.released.awaitNanos(remainingNanos);
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+						throw new ServiceUnavailableException("Interrupted while waiting " +
+								"for admission", e);
+					}
+				}
+			}
+			finally
+			{
+				this.queue.remove(waiter);
+				// The next waiter may be able to proceed now
+				this.released.signalAll();
+			}
+			
+			long delay = System.currentTimeMillis() - arrived;
+			this.intervalMinDelay = Math.min(this.intervalMinDelay, delay);
+			if (index == this.shedLevel - 1 && delay > this.targetDelayMillis)
+			{
+				this.shed[index] ++;
+				throw new ServiceUnavailableException("The server is overloaded, " +
+						priority.getDescription() + " are not handled at this time", null);
+			}
+			
+			this.active ++;
+			this.admitted[index] ++;
+			this.waitTimes[index].record(delay);
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	private void releasePermit()
+	{
+		this.lock.lock();
+		try
+		{
+			this.active --;
+			this.released.signalAll();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	// Must be called while holding the lock
+	private void updateShedLevel(long now)
+	{
+		if (now - this.intervalStart < this.intervalMillis)
+			return;
+		
+		// If no request could get through without waiting during the whole interval, the
+		// queue is not going to drain by itself
+		boolean overloaded;
+		if (this.intervalMinDelay == Long.MAX_VALUE)
+			overloaded = !this.queue.isEmpty();
+		else
+			overloaded = this.intervalMinDelay > this.targetDelayMillis;
+		if (overloaded && this.shedLevel < Priority.values().length)
+			this.shedLevel ++;
+		else if (!overloaded && this.shedLevel > 0)
+			this.shedLevel --;
+		
+		this.intervalStart = now;
+		this.intervalMinDelay = Long.MAX_VALUE;
+	}
+	
+	private String describeShedLevel()
+	{
+		if (this.shedLevel == 0)
+			return "nothing";
+		
+		StringBuilder s = new StringBuilder();
+		for (int i = 0; i < this.shedLevel - 1; i++)
+		{
+			s.append(Priority.values()[i].getDescription()).append(", ");
+		}
+		s.append("delayed ").append(Priority.values()[this.shedLevel - 1].getDescription());
+		return s.toString();
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	/**
+	 * The priorities of the requests, from the least important to the most important
+	 * 
+	 * @author Mikko Hilpinen
+	 * @since 11.6.2015
+	 */
+	public static enum Priority
+	{
+		/**
+		 * Listings of multiple entities, which are usually the most expensive requests
+		 */
+		LISTING("listings"),
+		/**
+		 * Logins that require a password check
+		 */
+		LOGIN("password logins"),
+		/**
+		 * Reads of single entities
+		 */
+		KEYED_READ("keyed reads");
+		
+		// ATTRIBUTES	-------------------------
+		
+		private final String description;
+		
+		// CONSTRUCTOR	-------------------------
+		
+		private Priority(String description)
+		{
+			this.description = description;
+		}
+		
+		// GETTERS & SETTERS	-----------------
+		
+		/**
+		 * @return A description of the requests that have this priority
+		 */
+		public String getDescription()
+		{
+			return this.description;
+		}
+	}
+	
+	private static class HeldPermit
+	{
+		// ATTRIBUTES	-------------------------
+		
+		// The controller the permit was acquired from. Null if the admission wasn't 
+		// controlled at the time.
+		private AdmissionController controller = null;
+		private int amount = 0;
+	}
+	
+	private static class Waiter implements Comparable<Waiter>
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final Priority priority;
+		private final long order;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		public Waiter(Priority priority, long order)
+		{
+			this.priority = priority;
+			this.order = order;
+		}
+		
+		
+		// IMPLEMENTED METHODS	-----------------
+		
+		@Override
+		public int compareTo(Waiter other)
+		{
+			// The more important requests go first, otherwise the requests are served in
+			// the order they arrived
+			if (this.priority != other.priority)
+				return other.priority.ordinal() - this.priority.ordinal();
+			return Long.compare(this.order, other.order);
+		}
+	}
+}
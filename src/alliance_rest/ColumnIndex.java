@@ -0,0 +1,97 @@
+package alliance_rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import vault_database.DatabaseTable;
+
+/**
+ * ColumnIndex maps the column names of a table to positions in a row. A single index is 
+ * shared by all the rows read from the same table so that the column names needn't be 
+ * stored for each row separately.
+ * 
+ * @author Mikko Hilpinen
+ * @since 9.6.2015
+ */
+public class ColumnIndex
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final Map<DatabaseTable, ColumnIndex> indices = new ConcurrentHashMap<>();
+	
+	private final List<String> columnNames;
+	private final Map<String, Integer> positions;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private ColumnIndex(List<String> columnNames)
+	{
+		this.columnNames = Collections.unmodifiableList(new ArrayList<>(columnNames));
+		this.positions = new HashMap<>();
+		for (int i = 0; i < this.columnNames.size(); i++)
+		{
+			this.positions.put(this.columnNames.get(i), i);
+		}
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Finds the shared column index of the given table
+	 * @param table A database table
+	 * @return The column index of the table
+	 */
+	public static ColumnIndex forTable(DatabaseTable table)
+	{
+		ColumnIndex index = indices.get(table);
+		if (index == null)
+		{
+			index = new ColumnIndex(table.getColumnNames());
+			// Column info can't be read while the database is unavailable. In that case the 
+			// index is not shared but read again next time.
+			if (!index.columnNames.isEmpty())
+			{
+				ColumnIndex existing = indices.putIfAbsent(table, index);
+				if (existing != null)
+					index = existing;
+			}
+		}
+		
+		return index;
+	}
+	
+	/**
+	 * @param columnName The name of a column
+	 * @return The position of the column in the rows, -1 if the table doesn't have such a 
+	 * column
+	 */
+	public int getPosition(String columnName)
+	{
+		Integer position = this.positions.get(columnName);
+		if (position == null)
+			return -1;
+		return position;
+	}
+	
+	/**
+	 * @return The names of the columns in the order of their positions
+	 */
+	public List<String> getColumnNames()
+	{
+		return this.columnNames;
+	}
+	
+	/**
+	 * @return How many columns there are in the table
+	 */
+	public int size()
+	{
+		return this.columnNames.size();
+	}
+}
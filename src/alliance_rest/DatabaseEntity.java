@@ -1,7 +1,12 @@
 package alliance_rest;
 
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamWriter;
@@ -12,8 +17,11 @@ import vault_database.DatabaseUnavailableException;
 import vault_database.InvalidTableTypeException;
 import vault_recording.DatabaseReadable;
 import vault_recording.DatabaseWritable;
+import alliance_util.ConnectionManager;
+import alliance_util.LookupFilter;
+import alliance_util.SingleFlight;
+import alliance_util.TableOperations;
 import nexus_http.HttpException;
-import nexus_http.InternalServerException;
 import nexus_http.InvalidParametersException;
 import nexus_http.MethodNotSupportedException;
 import nexus_http.MethodType;
@@ -24,7 +32,8 @@ import nexus_rest.TemporaryRestEntity;
 
 /**
  * These restEntities hold their data in a database. They are considered temporary since the 
- * data is not saved to the server itself.
+ * data is not saved to the server itself. The entities remember which values were last 
+ * written to or read from the database so that only the changed columns are updated.
  * 
  * @author Mikko Hilpinen
  * @since 25.1.2015
@@ -34,8 +43,16 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 {
 	// ATTRIBUTES	-------------------------
 	
+	private static final Map<DatabaseTable, SingleFlight<String, Map<String, String>>> 
+			rowReads = new ConcurrentHashMap<>();
+	
 	private DatabaseTable table;
 	private String id;
+	private long numericID = -1;
+	// The values refer to the same strings as the attributes, so only the references are
+	// stored twice. The positions come from the column index shared by the table.
+	private String[] persistedValues = null;
+	private boolean embedded = false;
 	
 	
 	// CONSTRUCTOR	-------------------------
@@ -58,15 +75,51 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 		setDatabaseID(id);
 		
 		// Loads some data from the database
-		try
-		{
-			if (!DatabaseAccessor.readObjectData(this, getDatabaseID()))
-				throw new NotFoundException(rootPath + "/" + id);
-		}
-		catch (DatabaseUnavailableException | SQLException e)
+		readFromDatabase(rootPath);
+	}
+	
+	/**
+	 * Creates a new entity by reading its data from the database. This constructor should 
+	 * be used for entities in tables that use integer indexing. The identifier is bound to 
+	 * the query as a number.
+	 * @param content The content of this entity
+	 * @param rootPath The path preceding the entity, including the last '/'
+	 * @param table The table that contains the entity's data
+	 * @param id The entity's identifier with which it can be found from the database
+	 * @throws HttpException If the entity couldn't be read from the database
+	 */
+	public DatabaseEntity(RestData content, String rootPath, 
+			DatabaseTable table, long id) throws HttpException
+	{
+		super(Long.toString(id), content, rootPath);
+		
+		// Initializes attributes
+		this.table = table;
+		setDatabaseID(id);
+		
+		// Loads some data from the database
+		readFromDatabase(rootPath);
+	}
+	
+	/**
+	 * Creates a new entity from a row that has already been read from the database. The 
+	 * database isn't accessed.
+	 * @param content The content of this entity
+	 * @param rootPath The path preceding the entity, including the last '/'
+	 * @param table The table that contains the entity's data
+	 * @param row The entity's row in the table. Must contain the primary column.
+	 */
+	public DatabaseEntity(RestData content, String rootPath, DatabaseTable table, 
+			Map<String, String> row)
+	{
+		super(row.get(table.getPrimaryColumnName()), content, rootPath);
+		
+		// Initializes attributes
+		this.table = table;
+		setDatabaseID(row.get(table.getPrimaryColumnName()));
+		for (String column : row.keySet())
 		{
-			throw new InternalServerException("Couldn't read " + rootPath + "/" + id + 
-					" from the database", e);
+			setValue(column, row.get(column));
 		}
 	}
 	
@@ -96,15 +149,29 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 		setDatabaseID(getAttributes().get(getTable().getPrimaryColumnName()));
 		
 		// Saves the entity into database
-		try
-		{
-			DatabaseAccessor.insert(this);
-		}
-		catch (SQLException | DatabaseUnavailableException e)
-		{
-			throw new InternalServerException("Couldn't write " + getPath() + 
-					" into the database", e);
-		}
+		insertToDatabase();
+	}
+	
+	/**
+	 * Creates a new entity based on the given data. This data will be registered into 
+	 * the database. This constructor should be used for entities whose indices are 
+	 * allocated in blocks instead of using auto-increment indexing.
+	 * @param content The content of this entity
+	 * @param parent The parent of this entity
+	 * @param indexAllocator The allocator that provides the entity's index. The entity is 
+	 * stored into the allocator's table.
+	 * @param parameters The parameters used for creating this entity. These parameters should 
+	 * be checked beforehand in case they can't be parsed or are otherwise invalid.
+	 * @param defaultParameters The parameters that are used if some are not provided in the 
+	 * other parameters. These should be checked beforehand as well.
+	 * @throws HttpException If the entity couldn't be initialized or written
+	 */
+	public DatabaseEntity(RestData content, RestEntity parent, 
+			IndexBlockAllocator indexAllocator, Map<String, String> parameters, 
+			Map<String, String> defaultParameters) throws HttpException
+	{
+		this(content, parent, indexAllocator.getTable(), allocateIndex(indexAllocator), 
+				parameters, defaultParameters);
 	}
 	
 	/**
@@ -135,15 +202,7 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 		setDatabaseID(id);
 		
 		// Saves the entity into database
-		try
-		{
-			DatabaseAccessor.insert(this);
-		}
-		catch (SQLException | DatabaseUnavailableException e)
-		{
-			throw new InternalServerException("Couldn't write " + getPath() + 
-					" into the database", e);
-		}
+		insertToDatabase();
 	}
 	
 	
@@ -153,13 +212,40 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 	protected void prepareDelete(Map<String, String> parameters)
 			throws HttpException
 	{
+		// Deletes within the active unit of work, if there is one
+		UnitOfWork work = UnitOfWork.getActive();
 		try
 		{
-			DatabaseAccessor.delete(getTable(), getTable().getPrimaryColumnName(), getDatabaseID());
+			if (work == null)
+			{
+				ConnectionManager.checkAvailable();
+				DatabaseAccessor.delete(getTable(), getTable().getPrimaryColumnName(), 
+						getDatabaseID());
+				ConnectionManager.recordWrite(getTable().getDatabaseName());
+			}
+			else
+				TableOperations.delete(work.getConnection(getTable().getDatabaseName()), 
+						getTable(), getTable().getPrimaryColumnName(), getDatabaseID());
 		}
 		catch (SQLException | DatabaseUnavailableException e)
 		{
-			throw new InternalServerException("Couldn't delete " + getPath(), e);
+			throw ServiceUnavailableException.wrap("Couldn't delete " + getPath(), e);
+		}
+		
+		EntityPrefetch.forget(getTable(), getDatabaseID());
+		TableVersions.tableModified(getTable());
+		final LookupFilter filter = LookupFilter.forTable(getTable());
+		if (filter != null)
+		{
+			final String value = getAttributes().get(filter.getColumnName());
+			UnitOfWork.afterCommit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					filter.recordRemoved(value);
+				}
+			});
 		}
 	}
 	
@@ -185,6 +271,19 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 		// Also writes the id as an id attribute
 		if (this.id != null)
 			writer.writeAttribute("id", getDatabaseID());
+		
+		// When the entity is linked through an expanded reference, its data is embedded 
+		// into the link
+		if (this.embedded && mayBeEmbedded())
+		{
+			String primaryColumn = getTable().getPrimaryColumnName();
+			for (String column : getTable().getColumnNames())
+			{
+				String value = getAttributes().get(column);
+				if (value != null && !column.equals(primaryColumn))
+					writer.writeAttribute(column, value);
+			}
+		}
 	}
 	
 	@Override
@@ -196,13 +295,14 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 	@Override
 	public void newIndexGenerated(int newIndex)
 	{
-		setDatabaseID(newIndex + "");
+		setDatabaseID(newIndex);
 	}
 
 	@Override
 	public void setValue(String columnName, String readValue)
 	{
 		setAttribute(columnName, readValue);
+		setPersistedValue(columnName, readValue);
 	}
 	
 	@Override
@@ -222,34 +322,338 @@ public abstract class DatabaseEntity extends TemporaryRestEntity implements Data
 		return this.id;
 	}
 	
+	/**
+	 * @return The id of this entity in the database as a number. -1 if the entity's table 
+	 * doesn't use integer indexing or if the entity doesn't have an id yet.
+	 */
+	public long getDatabaseIDAsLong()
+	{
+		return this.numericID;
+	}
+	
 	
 	// OTHER METHODS	----------------------
 	
 	/**
 	 * Updates the object's data in the database. No new data will be inserted but previous 
-	 * data may be modified.
+	 * data may be modified. Only the columns that have changed since the entity was last 
+	 * read or written are updated. If nothing has changed, the database isn't accessed.
 	 * @throws HttpException If the operation failed
 	 */
 	protected void updateToDatabase() throws HttpException
 	{
+		Map<String, String> changes = getChangedColumns();
+		if (changes.isEmpty())
+			return;
+		
+		Map<String, String> conditions = new HashMap<>();
+		conditions.put(getTable().getPrimaryColumnName(), getDatabaseID());
+		
+		UnitOfWork work = UnitOfWork.getActive();
 		try
 		{
-			DatabaseAccessor.update(this);
+			if (work != null)
+				TableOperations.update(work.getConnection(getTable().getDatabaseName()), 
+						getTable(), changes, conditions);
+			else if (ConnectionManager.isInitialized())
+				TableOperations.update(getTable(), changes, conditions);
+			else
+			{
+				// Without the ConnectionManager, the whole row is written
+				DatabaseAccessor.update(this);
+				ConnectionManager.recordWrite(getTable().getDatabaseName());
+			}
 		}
-		catch (InvalidTableTypeException | SQLException
-				| DatabaseUnavailableException e)
+		catch (InvalidTableTypeException | SQLException | DatabaseUnavailableException e)
 		{
-			throw new InternalServerException("Couldn't update " + getPath() + 
+			throw ServiceUnavailableException.wrap("Couldn't update " + getPath() + 
 					" to the database", e);
 		}
+		
+		for (String column : changes.keySet())
+		{
+			setPersistedValue(column, changes.get(column));
+		}
+		EntityPrefetch.forget(getTable(), getDatabaseID());
+		TableVersions.tableModified(getTable());
+	}
+	
+	/**
+	 * Reads the entities this entity refers to, if the client wants them expanded. The 
+	 * referenced entities can then be created without accessing the database. Subclasses 
+	 * should call this before creating the referenced entities.
+	 * @param parameters The parameters provided by the client
+	 * @throws HttpException If the parameters were invalid or if the referenced rows 
+	 * couldn't be read
+	 */
+	protected void prefetchReferences(Map<String, String> parameters) throws HttpException
+	{
+		List<EntityReference> expanded = EntityReference.getExpandedReferences(getTable(), 
+				parameters);
+		if (expanded.isEmpty())
+			return;
+		
+		try
+		{
+			EntityPrefetch.prefetchReferences(expanded, 
+					Collections.singletonList(getAttributes()));
+		}
+		catch (SQLException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't read the entities referred " + 
+					"by " + getPath(), e);
+		}
+	}
+	
+	/**
+	 * Embeds the data of a referenced entity into its link, provided that the client 
+	 * wants the reference expanded. Subclasses should call this for the entities they 
+	 * link through the references declared with {@link EntityReference}.
+	 * @param referenceName The name of the reference the entity is linked through
+	 * @param referenced The referenced entity (may be null)
+	 * @param parameters The parameters provided by the client
+	 * @throws InvalidParametersException If the client tried to expand a reference that 
+	 * doesn't exist
+	 */
+	protected void expandReference(String referenceName, DatabaseEntity referenced, 
+			Map<String, String> parameters) throws InvalidParametersException
+	{
+		if (referenced == null)
+			return;
+		
+		for (EntityReference reference : EntityReference.getExpandedReferences(getTable(), 
+				parameters))
+		{
+			if (reference.getName().equals(referenceName))
+			{
+				referenced.embedded = true;
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return Can the data of this entity be shown as a part of a link. Entities that 
+	 * hold secret information should return false.
+	 */
+	protected boolean mayBeEmbedded()
+	{
+		return true;
+	}
+	
+	/**
+	 * @return The columns whose values have changed since the entity was last read from or 
+	 * written to the database (column name, new value)
+	 */
+	protected Map<String, String> getChangedColumns()
+	{
+		Map<String, String> changes = new HashMap<>();
+		ColumnIndex columns = ColumnIndex.forTable(getTable());
+		String[] persisted = getPersistedValues(columns);
+		for (int i = 0; i < columns.size(); i++)
+		{
+			String column = columns.getColumnNames().get(i);
+			String value = getAttributes().get(column);
+			if (value == null ? persisted[i] != null : !value.equals(persisted[i]))
+				changes.put(column, value);
+		}
+		
+		return changes;
+	}
+	
+	private String[] getPersistedValues(ColumnIndex columns)
+	{
+		if (this.persistedValues == null || this.persistedValues.length != columns.size())
+			this.persistedValues = new String[columns.size()];
+		return this.persistedValues;
+	}
+	
+	private void setPersistedValue(String columnName, String value)
+	{
+		ColumnIndex columns = ColumnIndex.forTable(getTable());
+		int position = columns.getPosition(columnName);
+		if (position >= 0)
+			getPersistedValues(columns)[position] = value;
+	}
+	
+	private void markPersisted()
+	{
+		ColumnIndex columns = ColumnIndex.forTable(getTable());
+		String[] persisted = getPersistedValues(columns);
+		for (int i = 0; i < columns.size(); i++)
+		{
+			persisted[i] = getAttributes().get(columns.getColumnNames().get(i));
+		}
+		
+		// The new row is no longer missing once it has been committed
+		final LookupFilter filter = LookupFilter.forTable(getTable());
+		if (filter != null)
+		{
+			final String value = getAttributes().get(filter.getColumnName());
+			UnitOfWork.afterCommit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					filter.recordAdded(value);
+				}
+			});
+		}
+	}
+	
+	private void insertToDatabase() throws HttpException
+	{
+		// Inserts within the active unit of work, if there is one
+		UnitOfWork work = UnitOfWork.getActive();
+		try
+		{
+			if (work == null)
+			{
+				ConnectionManager.checkAvailable();
+				DatabaseAccessor.insert(this);
+				ConnectionManager.recordWrite(getTable().getDatabaseName());
+			}
+			else
+				insert(work.getConnection(getTable().getDatabaseName()));
+		}
+		catch (SQLException | DatabaseUnavailableException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't write " + getPath() + 
+					" into the database", e);
+		}
+		markPersisted();
+		TableVersions.tableModified(getTable());
+	}
+	
+	private void insert(Connection connection) throws SQLException
+	{
+		// Auto-increment indices are generated by the database
+		boolean generatesIndex = getTable().usesAutoIncrementIndexing();
+		Map<String, String> values = new HashMap<>();
+		for (String column : getTable().getColumnNames())
+		{
+			if (!generatesIndex || !column.equals(getTable().getPrimaryColumnName()))
+				values.put(column, getColumnValue(column));
+		}
+		
+		long generatedIndex = TableOperations.insert(connection, getTable(), values);
+		if (generatesIndex && generatedIndex >= 0)
+			setDatabaseID(generatedIndex);
+	}
+	
+	private static String allocateIndex(IndexBlockAllocator indexAllocator) 
+			throws HttpException
+	{
+		try
+		{
+			return Long.toString(indexAllocator.nextIndex());
+		}
+		catch (SQLException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't allocate a new index for " + 
+					"table " + indexAllocator.getTable().getTableName(), e);
+		}
+	}
+	
+	private void readFromDatabase(String rootPath) throws HttpException
+	{
+		// Integer indexed tables can't contain non-integer identifiers
+		if (getTable().usesIntegerIndexing() && this.numericID < 0)
+			throw new NotFoundException(rootPath + "/" + this.id);
+		
+		// The row may have already been read along with the other rows in the response
+		Map<String, String> prefetched = EntityPrefetch.getRow(getTable(), this.id);
+		if (prefetched != null)
+		{
+			for (String column : prefetched.keySet())
+			{
+				setValue(column, prefetched.get(column));
+			}
+			return;
+		}
+		
+		try
+		{
+			// Concurrent reads of the same row share a single query, unless the table has 
+			// been modified after the query started
+			SingleFlight<String, Map<String, String>> reads = rowReads.get(getTable());
+			if (reads == null)
+			{
+				rowReads.putIfAbsent(getTable(), 
+						new SingleFlight<String, Map<String, String>>());
+				reads = rowReads.get(getTable());
+			}
+			
+			Map<String, String> row = reads.execute(this.id, 
+					TableVersions.getVersion(getTable()), 
+					new SingleFlight.Operation<Map<String, String>>()
+			{
+				@Override
+				public Map<String, String> perform() throws SQLException
+				{
+					// Integer indexed rows are read with a numeric key
+					Map<String, String> row;
+					if (getTable().usesIntegerIndexing())
+						row = TableOperations.readRow(getTable(), getDatabaseIDAsLong());
+					else
+						row = TableOperations.readRow(getTable(), getDatabaseID());
+					
+					if (row == null)
+						return null;
+					return Collections.unmodifiableMap(row);
+				}
+			});
+			
+			if (row == null)
+				throw new NotFoundException(rootPath + "/" + this.id);
+			for (String column : row.keySet())
+			{
+				setValue(column, row.get(column));
+			}
+		}
+		catch (SQLException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't read " + rootPath + "/" + 
+					this.id + " from the database", e);
+		}
 	}
 	
 	private void setDatabaseID(String newID)
 	{
 		this.id = newID;
+		this.numericID = parseID(getTable(), newID);
 		setAttribute(getTable().getPrimaryColumnName(), newID);
 	}
 	
+	private void setDatabaseID(long newID)
+	{
+		this.numericID = newID;
+		this.id = Long.toString(newID);
+		setAttribute(getTable().getPrimaryColumnName(), this.id);
+	}
+	
+	/**
+	 * Parses an integer identifier
+	 * @param table The table the identifier is for
+	 * @param id The identifier
+	 * @return The identifier as a number. -1 if the table doesn't use integer indexing or 
+	 * if the identifier isn't a valid integer.
+	 */
+	static long parseID(DatabaseTable table, String id)
+	{
+		if (id == null || !table.usesIntegerIndexing())
+			return -1;
+		
+		try
+		{
+			return Long.parseLong(id);
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+	
 	private void initialize(Map<String, String> parameters, 
 			Map<String, String> defaultParameters) throws HttpException
 	{
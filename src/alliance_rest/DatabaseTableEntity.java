@@ -3,17 +3,21 @@ package alliance_rest;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import vault_database.DatabaseAccessor;
 import vault_database.DatabaseTable;
-import vault_database.DatabaseUnavailableException;
-import vault_database.InvalidTableTypeException;
 import nexus_http.HttpException;
-import nexus_http.InternalServerException;
+import nexus_http.InvalidParametersException;
+import nexus_http.NotFoundException;
 import nexus_rest.RestData;
 import nexus_rest.RestEntity;
+import alliance_rest.AdmissionController.Priority;
+import alliance_util.CircuitOpenException;
+import alliance_util.ConnectionManager;
+import alliance_util.LookupFilter;
+import alliance_util.RequestDeadline;
 
 /**
  * These entities fetch entities from databases when necessary.
@@ -25,6 +29,21 @@ public abstract class DatabaseTableEntity extends RestEntity
 {
 	// ATTRIBUTES	-------------------------------
 	
+	/**
+	 * The parameter (or path) with which only the amount of matching entities is requested
+	 */
+	public static final String COUNT_PARAMETER = "count";
+	/**
+	 * The parameter (or path) with which only the existence of matching entities is 
+	 * requested
+	 */
+	public static final String EXISTS_PARAMETER = "exists";
+	/**
+	 * The parameter with which the client may limit how long the request may take (in 
+	 * milliseconds). The limit can't exceed the server's default.
+	 */
+	public static final String TIMEOUT_PARAMETER = "timeout";
+	
 	private DatabaseTable table;
 	
 	
@@ -58,40 +77,154 @@ public abstract class DatabaseTableEntity extends RestEntity
 	protected abstract RestEntity loadEntityWithID(String id) throws HttpException;
 	
 	
-	// IMPLEMENTED METHODS	------------------------
-
-	@Override
-	protected Map<String, RestEntity> getMissingEntities(Map<String, String> parameters) throws 
-			HttpException
+	// OTHER METHODS	----------------------------
+	
+	/**
+	 * This method reads and returns an entity from a table that uses integer indexing. 
+	 * Subclasses should override this method so that the identifier needn't be converted 
+	 * into a string. By default, the string version is used.
+	 * @param id The identifier of the entity
+	 * @return An entity from the database
+	 * @throws HttpException if the entity couldn't be found or read
+	 */
+	protected RestEntity loadEntityWithID(long id) throws HttpException
+	{
+		return loadEntityWithID(Long.toString(id));
+	}
+	
+	/**
+	 * Starts handling a new request. A new deadline is started for the database operations 
+	 * of the request. The server's default time budget is used unless the client requested 
+	 * a shorter one with the timeout parameter. The request also gets its own database 
+	 * session, which decides whether its reads may go to the read replicas. If the request 
+	 * has already been started by an earlier lookup, its deadline and session are kept. 
+	 * Subclasses that override the entity lookups or implement post should call this 
+	 * first. Otherwise the operations may still be limited by the expired deadline of a 
+	 * previous request.
+	 * @param parameters The parameters provided by the client
+	 * @throws InvalidParametersException If the timeout parameter was invalid
+	 */
+	protected static void startRequest(Map<String, String> parameters) 
+			throws InvalidParametersException
 	{
-		// The parameters may cast restrictions on which entities are fetched
-		List<String> restrictionColumns = new ArrayList<>();
-		List<String> restrictionValues = new ArrayList<>();
-		List<String> columnNames = getTable().getColumnNames();
+		ConnectionManager.startSession(parameters);
 		
-		for (String parameterName : parameters.keySet())
+		// Each request gets a single time budget, the client may only shorten it
+		long budget = RequestDeadline.getDefaultMillis();
+		String timeout = parameters.get(TIMEOUT_PARAMETER);
+		if (timeout != null)
 		{
-			if (columnNames.contains(parameterName))
+			long requested;
+			try
+			{
+				requested = Long.parseLong(timeout);
+			}
+			catch (NumberFormatException e)
 			{
-				restrictionColumns.add(parameterName);
-				restrictionValues.add(parameters.get(parameterName));
+				throw new InvalidParametersException("Parameter '" + TIMEOUT_PARAMETER + 
+						"' must be a number of milliseconds");
 			}
+			if (requested <= 0)
+				throw new InvalidParametersException("Parameter '" + TIMEOUT_PARAMETER + 
+						"' must be positive");
+			if (budget <= 0 || requested < budget)
+				budget = requested;
 		}
 		
-		// Finds all the (matching) entities from the database
-		List<String> entityIDs = null;
+		RequestDeadline.start(budget, parameters);
+	}
+	
+	private boolean isScalarPath(String pathPart)
+	{
+		// Integer indexed tables can't contain entities named 'count' or 'exists', so 
+		// those paths are used for the amount of matching entities instead
+		return getTable().usesIntegerIndexing() && (pathPart.equals(COUNT_PARAMETER) || 
+				pathPart.equals(EXISTS_PARAMETER));
+	}
+	
+	private ScalarEntity getScalar(String name, ListingQuery query) throws HttpException
+	{
+		// The amount is counted in the database without reading any rows
 		try
 		{
-			entityIDs = DatabaseAccessor.findMatchingIDs(getTable(), 
-					restrictionColumns.toArray(new String[0]), 
-					restrictionValues.toArray(new String[0]));
+			if (name.equals(COUNT_PARAMETER))
+				return new ScalarEntity(name, this, Long.toString(query.count()));
+			else
+				return new ScalarEntity(name, this, Boolean.toString(query.exists()));
 		}
-		catch (DatabaseUnavailableException | SQLException | InvalidTableTypeException e)
+		catch (SQLException e)
 		{
-			throw new InternalServerException("Failed to read entity identifiers", e);
+			throw ServiceUnavailableException.wrap("Failed to count the entities", e);
 		}
+	}
+	
+	private Map<String, RestEntity> listEntities(Map<String, String> parameters) throws 
+			HttpException
+	{
+		// The parameters may cast restrictions on which entities are fetched and in which 
+		// order
+		ListingQuery query = ListingQuery.parse(getTable(), parameters);
+		
+		// The client may only want to know the amount of matching entities
+		if (parameters.containsKey(COUNT_PARAMETER) || 
+				parameters.containsKey(EXISTS_PARAMETER))
+		{
+			String name = parameters.containsKey(COUNT_PARAMETER) ? COUNT_PARAMETER : 
+					EXISTS_PARAMETER;
+			Map<String, RestEntity> entities = new HashMap<>();
+			entities.put(name, getScalar(name, query));
+			return entities;
+		}
+		
+		List<EntityReference> expanded = EntityReference.getExpandedReferences(getTable(), 
+				parameters);
+		EntityPrefetch.start();
+		
+		// The same listing may have been read already
+		ListingCache cache = ListingCache.forTable(getTable());
+		long version = TableVersions.getVersion(getTable());
+		Map<String, Map<String, String>> rows = null;
+		if (cache != null)
+			rows = cache.get(query.getNormalizedParameters());
 		
-		Map<String, RestEntity> entities = new HashMap<>();
+		List<String> entityIDs;
+		try
+		{
+			if (rows != null)
+			{
+				entityIDs = new ArrayList<>(rows.keySet());
+				EntityPrefetch.store(getTable(), rows);
+			}
+			else
+			{
+				// Finds all the (matching) entities from the database. Operators and 
+				// sorting are handled by the database as well.
+				entityIDs = query.findIDs();
+				
+				// Reads the rows in batches so that the entities needn't be read one by one
+				rows = EntityPrefetch.prefetch(getTable(), entityIDs);
+				if (cache != null)
+					cache.put(query.getNormalizedParameters(), version, entityIDs, rows);
+			}
+			
+			// The expanded references are read in batches as well
+			EntityPrefetch.prefetchReferences(expanded, rows.values());
+		}
+		catch (SQLException e)
+		{
+			// While the database is unavailable, an outdated listing is better than none
+			if (cache == null || !(e instanceof CircuitOpenException))
+				throw ServiceUnavailableException.wrap("Failed to read the entities", e);
+			rows = cache.getOutdated(query.getNormalizedParameters());
+			if (rows == null)
+				throw ServiceUnavailableException.wrap("Failed to read the entities", e);
+			
+			entityIDs = new ArrayList<>(rows.keySet());
+			EntityPrefetch.store(getTable(), rows);
+		}
+		
+		// The entities are kept in the listed order
+		Map<String, RestEntity> entities = new LinkedHashMap<>();
 		for (String id : entityIDs)
 		{
 			RestEntity entity = loadEntityWithID(id);
@@ -101,12 +234,81 @@ public abstract class DatabaseTableEntity extends RestEntity
 		return entities;
 	}
 
+	private RestEntity findEntity(String pathPart, Map<String, String> parameters) 
+			throws HttpException
+	{
+		if (isScalarPath(pathPart))
+			return getScalar(pathPart, ListingQuery.parse(getTable(), parameters));
+		
+		// Identifiers known to be missing are not looked up from the database
+		LookupFilter filter = LookupFilter.forTable(getTable());
+		if (filter != null && !filter.getColumnName().equals(getTable().getPrimaryColumnName()))
+			filter = null;
+		if (filter != null && filter.isKnownMissing(pathPart))
+			throw new NotFoundException(getPath() + "/" + pathPart);
+		
+		try
+		{
+			// Finds the entity from the database. Integer identifiers are handled as numbers.
+			if (getTable().usesIntegerIndexing())
+			{
+				long id = DatabaseEntity.parseID(getTable(), pathPart);
+				// Integer indexed tables can't contain other identifiers
+				if (id < 0)
+					throw new NotFoundException(getPath() + "/" + pathPart);
+				return loadEntityWithID(id);
+			}
+			
+			return loadEntityWithID(pathPart);
+		}
+		catch (NotFoundException e)
+		{
+			if (filter != null)
+				filter.recordMissing(pathPart);
+			throw e;
+		}
+	}
+	
+	
+	// IMPLEMENTED METHODS	------------------------
+
+	@Override
+	protected Map<String, RestEntity> getMissingEntities(Map<String, String> parameters) throws 
+			HttpException
+	{
+		startRequest(parameters);
+		
+		// Listings are the first requests to be rejected under heavy load
+		AdmissionController.admit(Priority.LISTING);
+		try
+		{
+			return listEntities(parameters);
+		}
+		finally
+		{
+			AdmissionController.release();
+		}
+	}
+
 	@Override
 	protected RestEntity getMissingEntity(String pathPart,
 			Map<String, String> parameters) throws HttpException
 	{
-		// Finds the entity from the database
-		return loadEntityWithID(pathPart);
+		// Rows prefetched for previous requests are not used
+		EntityPrefetch.start();
+		startRequest(parameters);
+		
+		// The amounts are counted from the whole table, so they are shed with the listings
+		AdmissionController.admit(isScalarPath(pathPart) ? Priority.LISTING : 
+				Priority.KEYED_READ);
+		try
+		{
+			return findEntity(pathPart, parameters);
+		}
+		finally
+		{
+			AdmissionController.release();
+		}
 	}
 	
 	
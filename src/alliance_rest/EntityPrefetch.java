@@ -0,0 +1,191 @@
+package alliance_rest;
+
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import vault_database.DatabaseTable;
+import alliance_util.TableOperations;
+
+/**
+ * EntityPrefetch holds rows that were read in a batch so that the entities created for
+ * them during the same request don't need to access the database separately. The rows are
+ * stored for the current thread only and they expire quickly, since the server doesn't
+ * tell when a request has been completed. A new prefetch replaces the rows of the previous
+ * one.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class EntityPrefetch
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long MAX_AGE_MILLIS = 2000;
+	
+	private static final ThreadLocal<EntityPrefetch> current = new ThreadLocal<>();
+	
+	private final Map<DatabaseTable, Map<String, Map<String, String>>> rows = new HashMap<>();
+	private final long created = System.currentTimeMillis();
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private EntityPrefetch()
+	{
+		// Instances are only created through start()
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Starts a new prefetch for the current thread. The rows of the previous prefetch are
+	 * forgotten.
+	 */
+	public static void start()
+	{
+		current.set(new EntityPrefetch());
+	}
+	
+	/**
+	 * Reads the given rows in a single query and stores them for the current thread. The
+	 * rows that have already been prefetched are not read again.
+	 * @param table The table the rows are read from
+	 * @param ids The identifiers of the rows
+	 * @return The rows that were found (id, row)
+	 * @throws SQLException If the rows couldn't be read
+	 */
+	public static Map<String, Map<String, String>> prefetch(DatabaseTable table,
+			Collection<String> ids) throws SQLException
+	{
+		EntityPrefetch prefetch = getCurrent();
+		if (prefetch == null)
+		{
+			start();
+			prefetch = current.get();
+		}
+		
+		Map<String, Map<String, String>> tableRows = prefetch.rows.get(table);
+		if (tableRows == null)
+		{
+			tableRows = new HashMap<>();
+			prefetch.rows.put(table, tableRows);
+		}
+		
+		Set<String> missingIDs = new LinkedHashSet<>();
+		for (String id : ids)
+		{
+			if (id != null && !tableRows.containsKey(id))
+				missingIDs.add(id);
+		}
+		if (!missingIDs.isEmpty())
+			tableRows.putAll(TableOperations.readRows(table, missingIDs));
+		
+		return tableRows;
+	}
+	
+	/**
+	 * Stores rows that have already been read for the current thread
+	 * @param table The table the rows are from
+	 * @param rows The rows (id, row). Null rows are skipped.
+	 */
+	public static void store(DatabaseTable table, Map<String, Map<String, String>> rows)
+	{
+		EntityPrefetch prefetch = getCurrent();
+		if (prefetch == null)
+		{
+			start();
+			prefetch = current.get();
+		}
+		
+		Map<String, Map<String, String>> tableRows = prefetch.rows.get(table);
+		if (tableRows == null)
+		{
+			tableRows = new HashMap<>();
+			prefetch.rows.put(table, tableRows);
+		}
+		for (String id : rows.keySet())
+		{
+			Map<String, String> row = rows.get(id);
+			if (row != null)
+				tableRows.put(id, row);
+		}
+	}
+	
+	/**
+	 * Reads the rows referenced by the given rows and stores them for the current thread
+	 * @param references The references that are followed
+	 * @param rows The rows that contain the foreign keys
+	 * @throws SQLException If the referenced rows couldn't be read
+	 */
+	public static void prefetchReferences(List<EntityReference> references,
+			Collection<Map<String, String>> rows) throws SQLException
+	{
+		for (EntityReference reference : references)
+		{
+			Set<String> ids = new LinkedHashSet<>();
+			for (Map<String, String> row : rows)
+			{
+				String id = row == null ? null : row.get(reference.getColumnName());
+				if (id != null)
+					ids.add(id);
+			}
+			
+			if (!ids.isEmpty())
+				prefetch(reference.getTargetTable(), ids);
+		}
+	}
+	
+	/**
+	 * Finds a prefetched row
+	 * @param table The table the row is in
+	 * @param id The identifier of the row
+	 * @return The prefetched row. Null if the row hasn't been prefetched or if the prefetch
+	 * has expired.
+	 */
+	public static Map<String, String> getRow(DatabaseTable table, String id)
+	{
+		EntityPrefetch prefetch = getCurrent();
+		if (prefetch == null)
+			return null;
+		
+		Map<String, Map<String, String>> tableRows = prefetch.rows.get(table);
+		if (tableRows == null)
+			return null;
+		return tableRows.get(id);
+	}
+	
+	/**
+	 * Forgets a prefetched row. Should be called when the row is modified.
+	 * @param table The table the row is in
+	 * @param id The identifier of the row
+	 */
+	public static void forget(DatabaseTable table, String id)
+	{
+		EntityPrefetch prefetch = current.get();
+		if (prefetch == null)
+			return;
+		
+		Map<String, Map<String, String>> tableRows = prefetch.rows.get(table);
+		if (tableRows != null)
+			tableRows.remove(id);
+	}
+	
+	private static EntityPrefetch getCurrent()
+	{
+		EntityPrefetch prefetch = current.get();
+		if (prefetch != null && 
+				System.currentTimeMillis() - prefetch.created > MAX_AGE_MILLIS)
+		{
+			current.remove();
+			return null;
+		}
+		
+		return prefetch;
+	}
+}
@@ -0,0 +1,143 @@
+package alliance_rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import nexus_http.InvalidParametersException;
+import vault_database.DatabaseTable;
+
+/**
+ * EntityReferences describe how the rows of a table point to the rows of another table
+ * through a foreign key column. The references of a table can be expanded by the client
+ * with the 'expand' parameter, in which case the referenced rows are read in a single
+ * query for all the entities in the response.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class EntityReference
+{
+	// ATTRIBUTES	-----------------------------
+	
+	/**
+	 * The name of the parameter that lists the expanded references
+	 */
+	public static final String EXPAND_PARAMETER = "expand";
+	
+	private static final Map<DatabaseTable, List<EntityReference>> references =
+			new ConcurrentHashMap<>();
+	
+	private final String name, columnName;
+	private final DatabaseTable targetTable;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private EntityReference(String name, String columnName, DatabaseTable targetTable)
+	{
+		this.name = name;
+		this.columnName = columnName;
+		this.targetTable = targetTable;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Declares a new reference between two tables
+	 * @param table The table that contains the foreign key
+	 * @param name The name of the reference, used in the 'expand' parameter (Eg. "friend")
+	 * @param columnName The column that holds the identifier of the referenced row
+	 * @param targetTable The table the referenced rows are in
+	 */
+	public static synchronized void declare(DatabaseTable table, String name,
+			String columnName, DatabaseTable targetTable)
+	{
+		List<EntityReference> tableReferences = new ArrayList<>(getReferences(table));
+		tableReferences.add(new EntityReference(name, columnName, targetTable));
+		references.put(table, Collections.unmodifiableList(tableReferences));
+	}
+	
+	/**
+	 * @param table A database table
+	 * @return The references declared for the table
+	 */
+	public static List<EntityReference> getReferences(DatabaseTable table)
+	{
+		List<EntityReference> tableReferences = references.get(table);
+		if (tableReferences == null)
+			return Collections.emptyList();
+		return tableReferences;
+	}
+	
+	/**
+	 * Finds the references the client wants to expand
+	 * @param table The table whose references are expanded
+	 * @param parameters The parameters provided by the client
+	 * @return The references listed in the 'expand' parameter. Empty if there was no such
+	 * parameter.
+	 * @throws InvalidParametersException If the parameter contained a name that isn't a
+	 * reference of the table
+	 */
+	public static List<EntityReference> getExpandedReferences(DatabaseTable table,
+			Map<String, String> parameters) throws InvalidParametersException
+	{
+		String expand = parameters.get(EXPAND_PARAMETER);
+		if (expand == null || expand.isEmpty())
+			return Collections.emptyList();
+		
+		List<EntityReference> expanded = new ArrayList<>();
+		for (String name : expand.split(","))
+		{
+			EntityReference reference = findReference(table, name.trim());
+			if (reference == null)
+				throw new InvalidParametersException("Can't expand '" + name.trim() +
+						"', no such reference");
+			if (!expanded.contains(reference))
+				expanded.add(reference);
+		}
+		
+		return expanded;
+	}
+	
+	private static EntityReference findReference(DatabaseTable table, String name)
+	{
+		for (EntityReference reference : getReferences(table))
+		{
+			if (reference.name.equals(name))
+				return reference;
+		}
+		
+		return null;
+	}
+	
+	
+	// GETTERS & SETTERS	---------------------
+	
+	/**
+	 * @return The name of the reference
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+	
+	/**
+	 * @return The column that holds the identifier of the referenced row
+	 */
+	public String getColumnName()
+	{
+		return this.columnName;
+	}
+	
+	/**
+	 * @return The table the referenced rows are in
+	 */
+	public DatabaseTable getTargetTable()
+	{
+		return this.targetTable;
+	}
+}
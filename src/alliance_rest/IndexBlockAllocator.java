@@ -0,0 +1,218 @@
+package alliance_rest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vault_database.DatabaseTable;
+import alliance_util.ConnectionManager;
+import alliance_util.TableOperations;
+
+/**
+ * IndexBlockAllocator hands out unique indices for a table without accessing the database
+ * on each insert. The allocator reserves a block of indices at a time from a block table
+ * and hands them out from memory. Each server node and each server run reserves its own
+ * blocks, so the indices stay unique even though some of them may never be used. The block
+ * table should have the columns 'tableName' (primary key) and 'nextIndex' (bigint).
+ * 
+ * @author Mikko Hilpinen
+ * @since 8.6.2015
+ */
+public class IndexBlockAllocator
+{
+	// ATTRIBUTES	---------------------------
+	
+	private static final int MAX_RESERVE_ATTEMPTS = 3;
+	
+	private final DatabaseTable table;
+	private final String blockTableName;
+	private final int blockSize;
+	
+	private volatile IndexBlock block = new IndexBlock(0, 0);
+	
+	
+	// CONSTRUCTOR	---------------------------
+	
+	/**
+	 * Creates a new allocator. The table shouldn't use auto-increment indexing.
+	 * @param table The table the indices are allocated for
+	 * @param blockTableName The name of the table that holds the next free index of each
+	 * table. The block table must be in the same database as the indexed table.
+	 * @param blockSize How many indices are reserved at once
+	 */
+	public IndexBlockAllocator(DatabaseTable table, String blockTableName, int blockSize)
+	{
+		this.table = table;
+		this.blockTableName = blockTableName;
+		this.blockSize = Math.max(1, blockSize);
+	}
+	
+	
+	// OTHER METHODS	-----------------------
+	
+	/**
+	 * Allocates a new index. The database is only accessed when the current block runs out.
+	 * @return A new unique index
+	 * @throws SQLException If a new block couldn't be reserved
+	 */
+	public long nextIndex() throws SQLException
+	{
+		while (true)
+		{
+			IndexBlock currentBlock = this.block;
+			long index = currentBlock.next.getAndIncrement();
+			if (index < currentBlock.end)
+				return index;
+			
+			// Only a single thread reserves the next block
+			synchronized (this)
+			{
+				if (this.block == currentBlock)
+					this.block = reserveBlock();
+			}
+		}
+	}
+	
+	/**
+	 * @return The table the indices are allocated for
+	 */
+	public DatabaseTable getTable()
+	{
+		return this.table;
+	}
+	
+	private IndexBlock reserveBlock() throws SQLException
+	{
+		int attempt = 1;
+		while (true)
+		{
+			try
+			{
+				return tryReserveBlock();
+			}
+			catch (SQLException e)
+			{
+				// When two nodes create the table's row at the same time, the other insert 
+				// fails on the duplicate key. The row can then be locked and updated.
+				if (attempt >= MAX_RESERVE_ATTEMPTS || e.getSQLState() == null || 
+						!e.getSQLState().startsWith("23"))
+					throw e;
+				attempt ++;
+			}
+		}
+	}
+	
+	private IndexBlock tryReserveBlock() throws SQLException
+	{
+		Connection connection = null;
+		try
+		{
+			// The reservation is committed separately from the transaction of the insert 
+			// and must not wait for the pool that the transaction may be holding
+			connection = ConnectionManager.openSeparateConnection(
+					this.table.getDatabaseName(), this.table.getTableName() + ".allocate");
+			connection.setAutoCommit(false);
+			
+			// Locks the row so that the other nodes wait until the block has been reserved
+			long start = -1;
+			try (PreparedStatement statement = connection.prepareStatement(
+					"SELECT nextIndex FROM " + this.blockTableName +
+					" WHERE tableName = ? FOR UPDATE"))
+			{
+				statement.setString(1, this.table.getTableName());
+				try (ResultSet result = statement.executeQuery())
+				{
+					if (result.next())
+						start = result.getLong(1);
+				}
+			}
+			
+			if (start < 0)
+			{
+				// The first block starts after the existing rows
+				start = findMaxIndex(connection) + 1;
+				try (PreparedStatement statement = connection.prepareStatement(
+						"INSERT INTO " + this.blockTableName +
+						" (tableName, nextIndex) VALUES (?, ?)"))
+				{
+					statement.setString(1, this.table.getTableName());
+					statement.setLong(2, start + this.blockSize);
+					statement.executeUpdate();
+				}
+			}
+			else
+			{
+				try (PreparedStatement statement = connection.prepareStatement(
+						"UPDATE " + this.blockTableName +
+						" SET nextIndex = ? WHERE tableName = ?"))
+				{
+					statement.setLong(1, start + this.blockSize);
+					statement.setString(2, this.table.getTableName());
+					statement.executeUpdate();
+				}
+			}
+			
+			connection.commit();
+			return new IndexBlock(start, start + this.blockSize);
+		}
+		catch (SQLException e)
+		{
+			if (connection != null)
+			{
+				try
+				{
+					connection.rollback();
+				}
+				catch (SQLException rollbackError)
+				{
+					// The original error is more informative
+					e.addSuppressed(rollbackError);
+				}
+			}
+			throw e;
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+	}
+	
+	private long findMaxIndex(Connection connection) throws SQLException
+	{
+		long max = 0;
+		for (String tableName : TableOperations.getTableNames(this.table))
+		{
+			try (PreparedStatement statement = connection.prepareStatement("SELECT MAX(" +
+					this.table.getPrimaryColumnName() + ") FROM " + tableName);
+					ResultSet result = statement.executeQuery())
+			{
+				if (result.next())
+					max = Math.max(max, result.getLong(1));
+			}
+		}
+		
+		return max;
+	}
+	
+	
+	// SUBCLASSES	---------------------------
+	
+	private static class IndexBlock
+	{
+		// ATTRIBUTES	-----------------------
+		
+		private final AtomicLong next;
+		private final long end;
+		
+		
+		// CONSTRUCTOR	-----------------------
+		
+		public IndexBlock(long start, long end)
+		{
+			this.next = new AtomicLong(start);
+			this.end = end;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+package alliance_rest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import vault_database.DatabaseTable;
+
+/**
+ * ListingCache remembers the results of restricted listings of a table so that repeated
+ * listings needn't access the database. A cached listing is used only as long as the
+ * table version hasn't changed, which means that any insert, update or delete made
+ * through this server node invalidates the table's listings. Since the changes made by
+ * other nodes can't be detected, the listings also expire after a while. The amount of
+ * cached listings and rows is limited and the least recently used listings are removed
+ * first.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ListingCache
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final Map<DatabaseTable, ListingCache> caches = new ConcurrentHashMap<>();
+	
+	private final DatabaseTable table;
+	private final int maxListings, maxRowsPerListing;
+	private final long maxAgeMillis;
+	private final LinkedHashMap<SortedMap<String, String>, Listing> listings;
+	
+	private long hits = 0, misses = 0, outdated = 0, evictions = 0;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private ListingCache(DatabaseTable table, int maxListings, int maxRowsPerListing,
+			int maxAgeSeconds)
+	{
+		this.table = table;
+		this.maxListings = Math.max(1, maxListings);
+		this.maxRowsPerListing = maxRowsPerListing;
+		this.maxAgeMillis = maxAgeSeconds * 1000l;
+		
+		// The least recently used listing is removed when the cache is full
+		this.listings = new LinkedHashMap<SortedMap<String, String>, Listing>(16, 0.75f,
+				true)
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<SortedMap<String, String>, Listing> eldest)
+			{
+				if (size() > ListingCache.this.maxListings)
+				{
+					ListingCache.this.evictions ++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Starts caching the listings of the given table
+	 * @param table The table whose listings are cached
+	 * @param maxListings How many different listings are remembered at most
+	 * @param maxRowsPerListing How many rows a listing may contain and still be cached
+	 * @param maxAgeSeconds How long a listing may be used at most. This limits how long the
+	 * changes made by other server nodes go unnoticed.
+	 * @return The cache used for the table
+	 */
+	public static ListingCache enable(DatabaseTable table, int maxListings,
+			int maxRowsPerListing, int maxAgeSeconds)
+	{
+		ListingCache cache = new ListingCache(table, maxListings, maxRowsPerListing,
+				maxAgeSeconds);
+		caches.put(table, cache);
+		return cache;
+	}
+	
+	/**
+	 * @param table A database table
+	 * @return The listing cache of the table, null if the table's listings aren't cached
+	 */
+	public static ListingCache forTable(DatabaseTable table)
+	{
+		return caches.get(table);
+	}
+	
+	/**
+	 * Finds a cached listing
+	 * @param restrictions The parameters that define the listing (parameter name, value)
+	 * @return The cached rows in the order they were listed (id, row). Null if the listing
+	 * isn't cached or if it is outdated.
+	 */
+	public Map<String, Map<String, String>> get(Map<String, String> restrictions)
+	{
+		SortedMap<String, String> key = new TreeMap<>(restrictions);
+		long version = TableVersions.getVersion(this.table);
+		
+		Listing listing;
+		synchronized (this)
+		{
+			listing = this.listings.get(key);
+			if (listing == null)
+			{
+				this.misses ++;
+				return null;
+			}
+			// Outdated listings are kept in case the database becomes unavailable
+			if (listing.version != version ||
+					System.currentTimeMillis() - listing.created > this.maxAgeMillis)
+			{
+				this.outdated ++;
+				this.misses ++;
+				return null;
+			}
+			this.hits ++;
+		}
+		
+		return listing.toRows();
+	}
+	
+	/**
+	 * Finds a cached listing even if it is outdated. This should only be used when the 
+	 * listing can't be read from the database.
+	 * @param restrictions The parameters that define the listing (parameter name, value)
+	 * @return The cached rows in the order they were listed (id, row). Null if the listing 
+	 * isn't cached.
+	 */
+	public Map<String, Map<String, String>> getOutdated(Map<String, String> restrictions)
+	{
+		Listing listing;
+		synchronized (this)
+		{
+			listing = this.listings.get(new TreeMap<>(restrictions));
+		}
+		
+		if (listing == null)
+			return null;
+		return listing.toRows();
+	}
+	
+	/**
+	 * Stores a listing into the cache
+	 * @param restrictions The parameters that define the listing (parameter name, value)
+	 * @param version The version of the table before the listing was read
+	 * @param ids The identifiers of the listed rows in order
+	 * @param rows The listed rows (id, row)
+	 */
+	public void put(Map<String, String> restrictions, long version, List<String> ids,
+			Map<String, Map<String, String>> rows)
+	{
+		// Large listings aren't cached and listings read from an old version are useless
+		if (ids.size() > this.maxRowsPerListing ||
+				version != TableVersions.getVersion(this.table))
+			return;
+		
+		Listing listing = new Listing(version, ColumnIndex.forTable(this.table), ids, rows);
+		synchronized (this)
+		{
+			this.listings.put(new TreeMap<>(restrictions), listing);
+		}
+	}
+	
+	/**
+	 * Removes all the listings from the cache
+	 */
+	public synchronized void clear()
+	{
+		this.listings.clear();
+	}
+	
+	/**
+	 * @return How many times a cached listing was used
+	 */
+	public synchronized long getHits()
+	{
+		return this.hits;
+	}
+	
+	/**
+	 * @return How many times a listing had to be read from the database
+	 */
+	public synchronized long getMisses()
+	{
+		return this.misses;
+	}
+	
+	/**
+	 * @return How many of the misses were caused by an outdated listing
+	 */
+	public synchronized long getOutdatedAmount()
+	{
+		return this.outdated;
+	}
+	
+	/**
+	 * @return How many listings have been removed because the cache was full
+	 */
+	public synchronized long getEvictions()
+	{
+		return this.evictions;
+	}
+	
+	/**
+	 * @return The portion of the lookups that were answered from the cache [0, 1]
+	 */
+	public synchronized double getHitRate()
+	{
+		long lookups = this.hits + this.misses;
+		if (lookups == 0)
+			return 0;
+		return (double) this.hits / lookups;
+	}
+	
+	/**
+	 * @return How many listings are currently cached
+	 */
+	public synchronized int size()
+	{
+		return this.listings.size();
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	private static class Listing
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final long version, created;
+		private final List<String> ids;
+		private final List<TableRow> rows;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		public Listing(long version, ColumnIndex columns, List<String> ids,
+				Map<String, Map<String, String>> rows)
+		{
+			this.version = version;
+			this.created = System.currentTimeMillis();
+			this.ids = Collections.unmodifiableList(new ArrayList<>(ids));
+			
+			// The rows are stored compactly, sharing the column names
+			this.rows = new ArrayList<>(ids.size());
+			for (String id : ids)
+			{
+				Map<String, String> row = rows.get(id);
+				TableRow tableRow = null;
+				if (row != null)
+				{
+					tableRow = new TableRow(columns);
+					for (String column : row.keySet())
+					{
+						tableRow.set(column, row.get(column));
+					}
+				}
+				this.rows.add(tableRow);
+			}
+		}
+		
+		
+		// OTHER METHODS	---------------------
+		
+		public Map<String, Map<String, String>> toRows()
+		{
+			Map<String, Map<String, String>> rows = new LinkedHashMap<>();
+			for (int i = 0; i < this.ids.size(); i++)
+			{
+				TableRow row = this.rows.get(i);
+				rows.put(this.ids.get(i), row == null ? null :
+						Collections.unmodifiableMap(row.toMap()));
+			}
+			
+			return rows;
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package alliance_rest;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import nexus_http.InvalidParametersException;
+import vault_database.DatabaseTable;
+import alliance_util.ConnectionManager;
+import alliance_util.TableOperations;
+
+/**
+ * ListingQuery finds the entities of a table based on the restrictions provided by the
+ * client. Besides exact column values ("friendID=3"), the parameters may contain
+ * comparisons ("id.gt=100", "id.le=200", "name.ne=Bob"), value lists ("friendID.in=1,2,3")
+ * and a sort order ("sort=-id,name", where '-' means descending order). All the column
+ * names are checked against the table's columns and all the values are bound as query
+ * parameters, so the restrictions are handled by the database. Until the ConnectionManager
+ * has been initialized, only exact column values are supported.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ListingQuery
+{
+	// ATTRIBUTES	-----------------------------
+	
+	/**
+	 * The parameter that defines the order of the listed entities
+	 */
+	public static final String SORT_PARAMETER = "sort";
+	
+	private static final int MAX_LIST_SIZE = 1000;
+	private static final List<String> OPERATORS = Arrays.asList("in", "gt", "ge", "lt",
+			"le", "ne");
+	
+	private final DatabaseTable table;
+	private final List<String> conditions = new ArrayList<>();
+	private final List<String> conditionColumns = new ArrayList<>();
+	private final List<String> conditionValues = new ArrayList<>();
+	private final List<String> sortColumns = new ArrayList<>();
+	private final List<Boolean> descending = new ArrayList<>();
+	private final SortedMap<String, String> normalizedParameters = new TreeMap<>();
+	private boolean usesOperators = false;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private ListingQuery(DatabaseTable table)
+	{
+		this.table = table;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Parses a query from the parameters provided by the client. The parameters that don't
+	 * refer to any column are ignored.
+	 * @param table The table that is queried
+	 * @param parameters The parameters provided by the client
+	 * @return A query based on the parameters
+	 * @throws InvalidParametersException If the parameters contained invalid operators or
+	 * column names
+	 */
+	public static ListingQuery parse(DatabaseTable table, Map<String, String> parameters)
+			throws InvalidParametersException
+	{
+		ListingQuery query = new ListingQuery(table);
+		List<String> columnNames = table.getColumnNames();
+		
+		// The parameters are handled in a fixed order so that the same parameters always
+		// produce the same query
+		for (String parameterName : new TreeMap<>(parameters).keySet())
+		{
+			String value = parameters.get(parameterName);
+			
+			if (columnNames.contains(parameterName))
+				query.addCondition(parameterName, "=", value);
+			else if (parameterName.equals(SORT_PARAMETER))
+				query.parseSort(value, columnNames);
+			else
+			{
+				int separator = parameterName.lastIndexOf('.');
+				if (separator < 0)
+					continue;
+				String column = parameterName.substring(0, separator);
+				if (!columnNames.contains(column))
+					continue;
+				
+				String operator = parameterName.substring(separator + 1);
+				if (!OPERATORS.contains(operator))
+					throw new InvalidParametersException("Unknown operator '" + operator +
+							"' in parameter " + parameterName);
+				query.parseOperator(column, operator, value);
+			}
+			
+			query.normalizedParameters.put(parameterName, value);
+		}
+		
+		// The DatabaseAccessor only supports exact column values
+		if (query.usesOperators && !ConnectionManager.isInitialized())
+			throw new InvalidParametersException(
+					"Only exact column values are supported in the parameters");
+		
+		return query;
+	}
+	
+	/**
+	 * Finds the identifiers of the matching rows from all the physical tables
+	 * @return The identifiers of the matching rows in the requested order
+	 * @throws SQLException If the query failed
+	 */
+	public List<String> findIDs() throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+			return findMatchingIDs(0);
+		
+		String primaryColumn = this.table.getPrimaryColumnName();
+		StringBuilder selectedColumns = new StringBuilder(primaryColumn);
+		for (String column : this.sortColumns)
+		{
+			if (!column.equals(primaryColumn))
+				selectedColumns.append(", ").append(column);
+		}
+		
+		List<String> tableNames = TableOperations.getTableNames(this.table);
+		StringBuilder sql = new StringBuilder();
+		for (String tableName : tableNames)
+		{
+			if (sql.length() > 0)
+				sql.append(" UNION ALL ");
+			if (tableNames.size() > 1)
+				sql.append("(");
+			sql.append("SELECT ").append(selectedColumns).append(" FROM ").append(
+					tableName).append(getWhereClause());
+			if (tableNames.size() > 1)
+				sql.append(")");
+		}
+		sql.append(getOrderByClause());
+		
+		List<String> ids = new ArrayList<>();
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(
+					this.table.getDatabaseName(), this.table.getTableName() + ".list");
+			try (PreparedStatement statement = connection.prepareStatement(sql.toString()))
+			{
+				int index = 1;
+				for (int i = 0; i < tableNames.size(); i++)
+				{
+					index = bindValues(statement, index);
+				}
+				try (ResultSet result = statement.executeQuery())
+				{
+					while (result.next())
+					{
+						ids.add(result.getString(1));
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return ids;
+	}
+	
+	/**
+	 * Counts the matching rows in the database. All the physical tables are counted.
+	 * @return How many rows match the query
+	 * @throws SQLException If the rows couldn't be counted
+	 */
+	public long count() throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+			return findMatchingIDs(0).size();
+		
+		long count = 0;
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(
+					this.table.getDatabaseName(), this.table.getTableName() + ".count");
+			for (String tableName : TableOperations.getTableNames(this.table))
+			{
+				try (PreparedStatement statement = connection.prepareStatement(
+						"SELECT COUNT(*) FROM " + tableName + getWhereClause()))
+				{
+					bindValues(statement, 1);
+					try (ResultSet result = statement.executeQuery())
+					{
+						if (result.next())
+							count += result.getLong(1);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return count;
+	}
+	
+	/**
+	 * Checks whether there are any matching rows. The search stops at the first matching
+	 * row.
+	 * @return Is there at least a single matching row
+	 * @throws SQLException If the rows couldn't be checked
+	 */
+	public boolean exists() throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+			return !findMatchingIDs(1).isEmpty();
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(
+					this.table.getDatabaseName(), this.table.getTableName() + ".exists");
+			for (String tableName : TableOperations.getTableNames(this.table))
+			{
+				try (PreparedStatement statement = connection.prepareStatement(
+						"SELECT 1 FROM " + tableName + getWhereClause() + " LIMIT 1"))
+				{
+					bindValues(statement, 1);
+					try (ResultSet result = statement.executeQuery())
+					{
+						if (result.next())
+							return true;
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return false;
+	}
+	
+	/**
+	 * @return Does the query use anything besides exact column values
+	 */
+	public boolean usesOperators()
+	{
+		return this.usesOperators;
+	}
+	
+	/**
+	 * @return The parameters that define this query, in a fixed order. Two queries with the
+	 * same parameters produce the same results.
+	 */
+	public SortedMap<String, String> getNormalizedParameters()
+	{
+		return Collections.unmodifiableSortedMap(this.normalizedParameters);
+	}
+	
+	private void parseOperator(String column, String operator, String value)
+			throws InvalidParametersException
+	{
+		this.usesOperators = true;
+		switch (operator)
+		{
+			case "in":
+				List<String> values = Arrays.asList(value.split(","));
+				if (values.size() > MAX_LIST_SIZE)
+					throw new InvalidParametersException("At most " + MAX_LIST_SIZE +
+							" values allowed in " + column + ".in");
+				for (String listValue : values)
+				{
+					addCondition(column, "in", listValue.trim());
+				}
+				break;
+			case "gt": addCondition(column, ">", value); break;
+			case "ge": addCondition(column, ">=", value); break;
+			case "lt": addCondition(column, "<", value); break;
+			case "le": addCondition(column, "<=", value); break;
+			case "ne": addCondition(column, "<>", value); break;
+		}
+	}
+	
+	private void parseSort(String value, List<String> columnNames)
+			throws InvalidParametersException
+	{
+		for (String sortColumn : value.split(","))
+		{
+			String column = sortColumn.trim();
+			boolean isDescending = column.startsWith("-");
+			if (isDescending)
+				column = column.substring(1);
+			
+			if (!columnNames.contains(column))
+				throw new InvalidParametersException("Can't sort by '" + column +
+						"', no such column");
+			
+			this.usesOperators = true;
+			this.sortColumns.add(column);
+			this.descending.add(isDescending);
+		}
+	}
+	
+	private void addCondition(String column, String operator, String value)
+	{
+		this.conditionColumns.add(column);
+		this.conditions.add(operator);
+		this.conditionValues.add(value);
+	}
+	
+	private List<String> findMatchingIDs(int limit) throws SQLException
+	{
+		// Only used without operators, so all the conditions are exact values
+		return TableOperations.findMatchingIDs(this.table, 
+				this.conditionColumns.toArray(new String[0]), 
+				this.conditionValues.toArray(new String[0]), limit);
+	}
+	
+	private String getWhereClause()
+	{
+		StringBuilder where = new StringBuilder();
+		List<String> inColumns = new ArrayList<>();
+		
+		for (int i = 0; i < this.conditions.size(); i++)
+		{
+			String column = this.conditionColumns.get(i);
+			String operator = this.conditions.get(i);
+			
+			// The values of a single IN condition are written together
+			if (operator.equals("in"))
+			{
+				if (inColumns.contains(column))
+					continue;
+				inColumns.add(column);
+				
+				where.append(where.length() == 0 ? " WHERE " : " AND ");
+				where.append(column).append(" IN (");
+				boolean first = true;
+				for (int j = i; j < this.conditions.size(); j++)
+				{
+					if (this.conditions.get(j).equals("in") &&
+							this.conditionColumns.get(j).equals(column))
+					{
+						where.append(first ? "?" : ", ?");
+						first = false;
+					}
+				}
+				where.append(")");
+			}
+			else
+			{
+				where.append(where.length() == 0 ? " WHERE " : " AND ");
+				where.append(column).append(" ").append(operator).append(" ?");
+			}
+		}
+		
+		return where.toString();
+	}
+	
+	private int bindValues(PreparedStatement statement, int firstIndex) throws SQLException
+	{
+		// The values are bound in the same order the placeholders are written
+		int index = firstIndex;
+		List<String> inColumns = new ArrayList<>();
+		for (int i = 0; i < this.conditions.size(); i++)
+		{
+			String column = this.conditionColumns.get(i);
+			if (this.conditions.get(i).equals("in"))
+			{
+				if (inColumns.contains(column))
+					continue;
+				inColumns.add(column);
+				
+				for (int j = i; j < this.conditions.size(); j++)
+				{
+					if (this.conditions.get(j).equals("in") &&
+							this.conditionColumns.get(j).equals(column))
+						TableOperations.setParameter(statement, index ++, this.table,
+								column, this.conditionValues.get(j));
+				}
+			}
+			else
+				TableOperations.setParameter(statement, index ++, this.table, column,
+						this.conditionValues.get(i));
+		}
+		
+		return index;
+	}
+	
+	private String getOrderByClause()
+	{
+		if (this.sortColumns.isEmpty())
+			return "";
+		
+		StringBuilder orderBy = new StringBuilder(" ORDER BY ");
+		for (int i = 0; i < this.sortColumns.size(); i++)
+		{
+			if (i > 0)
+				orderBy.append(", ");
+			orderBy.append(this.sortColumns.get(i));
+			if (this.descending.get(i))
+				orderBy.append(" DESC");
+		}
+		
+		return orderBy.toString();
+	}
+}
@@ -0,0 +1,106 @@
+package alliance_rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+import nexus_http.HttpException;
+import nexus_http.MethodNotSupportedException;
+import nexus_http.MethodType;
+import nexus_http.NotFoundException;
+import nexus_rest.RestEntity;
+import nexus_rest.SimpleRestData;
+import nexus_rest.TemporaryRestEntity;
+
+/**
+ * ScalarEntities hold a single computed value, like the amount of rows in a table. They
+ * can't be modified and they have no entities under them.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ScalarEntity extends TemporaryRestEntity
+{
+	// ATTRIBUTES	-----------------------------
+	
+	/**
+	 * The name of the attribute that holds the value
+	 */
+	public static final String VALUE_ATTRIBUTE = "value";
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new entity
+	 * @param name The name of the entity (Eg. "count")
+	 * @param parent The parent of the entity
+	 * @param value The value of the entity
+	 */
+	public ScalarEntity(String name, RestEntity parent, String value)
+	{
+		super(name, new SimpleRestData(), parent);
+		
+		setAttribute(VALUE_ATTRIBUTE, value);
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public RestEntity Post(Map<String, String> parameters) throws HttpException
+	{
+		throw new MethodNotSupportedException(MethodType.POST);
+	}
+	
+	@Override
+	public void Put(Map<String, String> parameters) throws HttpException
+	{
+		throw new MethodNotSupportedException(MethodType.PUT);
+	}
+	
+	@Override
+	protected void prepareDelete(Map<String, String> parameters) throws HttpException
+	{
+		throw new MethodNotSupportedException(MethodType.DELETE);
+	}
+	
+	@Override
+	protected Map<String, RestEntity> getMissingEntities(Map<String, String> parameters)
+			throws HttpException
+	{
+		// Scalars have no entities under them
+		return new HashMap<>();
+	}
+	
+	@Override
+	protected RestEntity getMissingEntity(String pathPart, Map<String, String> parameters)
+			throws HttpException
+	{
+		throw new NotFoundException(getPath() + "/" + pathPart);
+	}
+	
+	@Override
+	public void writeLinkAsAttribute(String serverLink, XMLStreamWriter writer,
+			Map<String, String> parameters) throws XMLStreamException
+	{
+		super.writeLinkAsAttribute(serverLink, writer, parameters);
+		
+		// The value is written along with the link so that it needn't be requested
+		// separately
+		writer.writeAttribute(VALUE_ATTRIBUTE, getValue());
+	}
+	
+	
+	// GETTERS & SETTERS	---------------------
+	
+	/**
+	 * @return The value of this entity
+	 */
+	public String getValue()
+	{
+		return getAttributes().get(VALUE_ATTRIBUTE);
+	}
+}
@@ -0,0 +1,62 @@
+package alliance_rest;
+
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+
+import org.apache.http.HttpStatus;
+
+import nexus_http.HttpException;
+import nexus_http.InternalServerException;
+
+/**
+ * These exceptions are thrown when a request can't be handled at this time because the
+ * server is overloaded (503). Unlike internal server errors, the request may succeed if
+ * it is retried later.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ServiceUnavailableException extends HttpException
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long serialVersionUID = 1L;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new exception
+	 * @param message The message sent along with the exception
+	 * @param cause The cause of the exception
+	 */
+	public ServiceUnavailableException(String message, Throwable cause)
+	{
+		super(message, cause, HttpStatus.SC_SERVICE_UNAVAILABLE);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Converts a database error into an http exception. Errors caused by a temporary lack of
+	 * database connections (like a connection pool timeout) and operations that took too 
+	 * long become service unavailable errors, other errors become internal server errors.
+	 * @param message The message sent along with the exception
+	 * @param cause The database error
+	 * @return An exception that should be thrown
+	 */
+	public static HttpException wrap(String message, Exception cause)
+	{
+		Throwable error = cause;
+		while (error != null)
+		{
+			if (error instanceof SQLTransientConnectionException || 
+					error instanceof SQLTimeoutException)
+				return new ServiceUnavailableException(message + ", try again later", cause);
+			error = error.getCause();
+		}
+		
+		return new InternalServerException(message, cause);
+	}
+}
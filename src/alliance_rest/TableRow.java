@@ -0,0 +1,154 @@
+package alliance_rest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * TableRow holds the column values of a single database row in flat arrays. The column 
+ * names are shared through a column index. Integer values, like the identifiers, are 
+ * stored as primitive longs instead of strings.
+ * 
+ * @author Mikko Hilpinen
+ * @since 9.6.2015
+ */
+public class TableRow
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private final ColumnIndex columns;
+	private final long[] numbers;
+	private final String[] texts;
+	// Each bit tells whether the value in that position is stored as a number
+	private final long[] numberFlags;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new empty row
+	 * @param columns The column index of the table the row belongs to
+	 */
+	public TableRow(ColumnIndex columns)
+	{
+		this.columns = columns;
+		this.numbers = new long[columns.size()];
+		this.texts = new String[columns.size()];
+		this.numberFlags = new long[(columns.size() + 63) / 64];
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * @param columnName The name of a column
+	 * @return The value of the column in this row. Null if the value is null or if the 
+	 * table doesn't have such a column.
+	 */
+	public String get(String columnName)
+	{
+		int position = this.columns.getPosition(columnName);
+		if (position < 0)
+			return null;
+		if (isNumber(position))
+			return Long.toString(this.numbers[position]);
+		return this.texts[position];
+	}
+	
+	/**
+	 * Checks whether the column has the given value without converting numbers to strings
+	 * @param columnName The name of a column
+	 * @param value The value the column is compared to (may be null)
+	 * @return Does the column have the given value in this row
+	 */
+	public boolean hasValue(String columnName, String value)
+	{
+		int position = this.columns.getPosition(columnName);
+		if (position < 0)
+			return value == null;
+		if (isNumber(position))
+			return value != null && isCanonicalLong(value) && 
+					Long.parseLong(value) == this.numbers[position];
+		if (value == null)
+			return this.texts[position] == null;
+		return value.equals(this.texts[position]);
+	}
+	
+	/**
+	 * Changes a column value in this row
+	 * @param columnName The name of the column
+	 * @param value The new value of the column (may be null)
+	 * @return Was the value set. False if the table doesn't have such a column.
+	 */
+	public boolean set(String columnName, String value)
+	{
+		int position = this.columns.getPosition(columnName);
+		if (position < 0)
+			return false;
+		
+		if (value != null && isCanonicalLong(value))
+		{
+			this.numbers[position] = Long.parseLong(value);
+			this.texts[position] = null;
+			this.numberFlags[position / 64] |= (1l << (position % 64));
+		}
+		else
+		{
+			this.texts[position] = value;
+			this.numberFlags[position / 64] &= ~(1l << (position % 64));
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return The values of this row as a map (column name, value)
+	 */
+	public Map<String, String> toMap()
+	{
+		Map<String, String> values = new HashMap<>();
+		for (String column : this.columns.getColumnNames())
+		{
+			values.put(column, get(column));
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * @return The column index of the table this row belongs to
+	 */
+	public ColumnIndex getColumns()
+	{
+		return this.columns;
+	}
+	
+	private boolean isNumber(int position)
+	{
+		return (this.numberFlags[position / 64] & (1l << (position % 64))) != 0;
+	}
+	
+	/**
+	 * Checks whether the string is a long written in its shortest form, so that it can be 
+	 * stored as a number and converted back into the exact same string
+	 */
+	private static boolean isCanonicalLong(String value)
+	{
+		int length = value.length();
+		int start = value.startsWith("-") ? 1 : 0;
+		// Longer numbers may not fit into a long
+		if (length == start || length - start > 18)
+			return false;
+		// Leading zeros would be lost
+		if (value.charAt(start) == '0' && (length - start > 1 || start == 1))
+			return false;
+		
+		for (int i = start; i < length; i++)
+		{
+			char c = value.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		
+		return true;
+	}
+}
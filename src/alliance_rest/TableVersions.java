@@ -0,0 +1,79 @@
+package alliance_rest;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import vault_database.DatabaseTable;
+
+/**
+ * TableVersions keeps track of the changes made to each table through this server node.
+ * The version of a table changes whenever a database entity is inserted, updated or
+ * deleted, which makes it a cheap way to tell whether data read from the table may have
+ * become outdated. Changes made by other server nodes don't affect the versions.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class TableVersions
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final Map<DatabaseTable, AtomicLong> versions = new ConcurrentHashMap<>();
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private TableVersions()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * @param table A database table
+	 * @return The current version of the table
+	 */
+	public static long getVersion(DatabaseTable table)
+	{
+		return getCounter(table).get();
+	}
+	
+	/**
+	 * Informs that the table has been modified
+	 * @param table The table that was modified
+	 */
+	public static void tableModified(final DatabaseTable table)
+	{
+		getCounter(table).incrementAndGet();
+		
+		// Data read before the commit may have been stored with the new version, so the
+		// version changes again once the changes are visible to the other connections
+		UnitOfWork work = UnitOfWork.getActive();
+		if (work != null)
+		{
+			UnitOfWork.afterCommit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					getCounter(table).incrementAndGet();
+				}
+			});
+		}
+	}
+	
+	private static AtomicLong getCounter(DatabaseTable table)
+	{
+		AtomicLong counter = versions.get(table);
+		if (counter == null)
+		{
+			versions.putIfAbsent(table, new AtomicLong());
+			counter = versions.get(table);
+		}
+		
+		return counter;
+	}
+}
@@ -0,0 +1,31 @@
+package alliance_rest;
+
+import nexus_http.HttpException;
+
+/**
+ * These exceptions are thrown when a client has made too many requests of a kind within a 
+ * short time (429). The request may succeed once the client has waited for a while.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class TooManyRequestsException extends HttpException
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long serialVersionUID = 1L;
+	// The status isn't defined in HttpStatus
+	private static final int SC_TOO_MANY_REQUESTS = 429;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new exception
+	 * @param message The message sent along with the exception
+	 */
+	public TooManyRequestsException(String message)
+	{
+		super(message, null, SC_TOO_MANY_REQUESTS);
+	}
+}
@@ -0,0 +1,240 @@
+package alliance_rest;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import alliance_util.ConnectionManager;
+
+/**
+ * UnitOfWork groups the inserts, updates and deletes of multiple database entities into a
+ * single transaction. The unit is bound to the thread that began it and the database
+ * entities use it automatically while it is active. Nothing is written permanently until
+ * the unit is committed, and an uncommitted unit is rolled back when it is closed. Units
+ * may be nested, in which case the inner units join the outermost one and only the
+ * outermost commit is performed.
+ * <br>
+ * Typical use:
+ * <pre>
+ * UnitOfWork work = UnitOfWork.begin();
+ * try
+ * {
+ * 	...
+ * 	work.commit();
+ * }
+ * finally
+ * {
+ * 	work.close();
+ * }
+ * </pre>
+ * Each database uses a separate connection, so only the operations targeting the same
+ * database are atomic. While the unit is active, the other database operations of the
+ * thread use the unit's connections as well, so they see the unit's changes and never
+ * wait for another connection from the pool.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class UnitOfWork implements AutoCloseable
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final ThreadLocal<UnitOfWork> active = new ThreadLocal<>();
+	
+	private final UnitOfWork outer;
+	private final Map<String, Connection> connections;
+	private final List<Runnable> commitActions;
+	private boolean committed = false, closed = false, rollbackOnly = false;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private UnitOfWork(UnitOfWork outer)
+	{
+		this.outer = outer;
+		if (outer == null)
+		{
+			this.connections = new LinkedHashMap<>();
+			this.commitActions = new ArrayList<>();
+		}
+		else
+		{
+			this.connections = outer.connections;
+			this.commitActions = outer.commitActions;
+		}
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	/**
+	 * Ends the unit. If the unit hasn't been committed, all of its changes are rolled
+	 * back. A nested unit that wasn't committed makes the outermost unit roll back as well.
+	 */
+	@Override
+	public void close()
+	{
+		if (this.closed)
+			return;
+		this.closed = true;
+		
+		if (this.outer != null)
+		{
+			if (!this.committed)
+				getOutermost().rollbackOnly = true;
+			active.set(this.outer);
+			return;
+		}
+		
+		active.remove();
+		ConnectionManager.stopSharingConnections();
+		try
+		{
+			if (!this.committed)
+			{
+				for (Connection connection : this.connections.values())
+				{
+					try
+					{
+						connection.rollback();
+					}
+					catch (SQLException e)
+					{
+						// The connection is closed anyway, which discards the changes
+					}
+				}
+			}
+		}
+		finally
+		{
+			for (Connection connection : this.connections.values())
+			{
+				ConnectionManager.closeConnection(connection);
+			}
+			this.connections.clear();
+		}
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Begins a new unit of work for the current thread. If a unit is already active, the
+	 * new unit joins it.
+	 * @return The unit that was started. It must always be closed.
+	 */
+	public static UnitOfWork begin()
+	{
+		UnitOfWork work = new UnitOfWork(active.get());
+		active.set(work);
+		return work;
+	}
+	
+	/**
+	 * @return The unit of work active in the current thread. Null if there is none.
+	 */
+	public static UnitOfWork getActive()
+	{
+		return active.get();
+	}
+	
+	/**
+	 * Performs an action once the changes have been committed. If there is no active unit,
+	 * the action is performed immediately. The action is not performed if the unit is
+	 * rolled back.
+	 * @param action The action that is performed after a successful commit
+	 */
+	public static void afterCommit(Runnable action)
+	{
+		UnitOfWork work = active.get();
+		if (work == null)
+			action.run();
+		else
+			work.commitActions.add(action);
+	}
+	
+	/**
+	 * Finds the connection the unit uses for the given database. A new connection is
+	 * opened for the first operation.
+	 * @param databaseName The name of the database
+	 * @return A connection that doesn't commit automatically. The connection must not be
+	 * closed by the caller.
+	 * @throws SQLException If the connection couldn't be opened
+	 */
+	public Connection getConnection(String databaseName) throws SQLException
+	{
+		if (this.closed)
+			throw new SQLException("The unit of work has already been closed");
+		
+		Connection connection = this.connections.get(databaseName);
+		if (connection == null)
+		{
+			connection = ConnectionManager.openConnection(databaseName, "transaction");
+			try
+			{
+				connection.setAutoCommit(false);
+			}
+			catch (SQLException e)
+			{
+				ConnectionManager.closeConnection(connection);
+				throw e;
+			}
+			this.connections.put(databaseName, connection);
+			// The other operations of the thread don't wait for connections of their own
+			ConnectionManager.shareConnection(databaseName, connection);
+		}
+		
+		return connection;
+	}
+	
+	/**
+	 * Commits the changes made during the unit. A nested unit only marks its part as
+	 * completed, the changes are committed by the outermost unit.
+	 * @throws SQLException If the changes couldn't be committed
+	 */
+	public void commit() throws SQLException
+	{
+		if (this.closed)
+			throw new SQLException("The unit of work has already been closed");
+		
+		if (this.outer != null)
+		{
+			this.committed = true;
+			return;
+		}
+		if (this.rollbackOnly)
+			throw new SQLException(
+					"An inner unit of work failed, the changes are rolled back");
+		
+		for (Connection connection : this.connections.values())
+		{
+			connection.commit();
+		}
+		this.committed = true;
+		
+		// The reads after the commit must see the changes, even if the replicas lag behind
+		for (String databaseName : this.connections.keySet())
+		{
+			ConnectionManager.recordWrite(databaseName);
+		}
+		
+		for (Runnable action : this.commitActions)
+		{
+			action.run();
+		}
+		this.commitActions.clear();
+	}
+	
+	private UnitOfWork getOutermost()
+	{
+		UnitOfWork work = this;
+		while (work.outer != null)
+		{
+			work = work.outer;
+		}
+		return work;
+	}
+}
@@ -1,9 +1,23 @@
 package alliance_test;
 
+import java.security.NoSuchAlgorithmException;
+import java.security.spec.InvalidKeySpecException;
 import java.sql.SQLException;
 
+import alliance_authorization.LoginAttemptLimiter;
+import alliance_authorization.LoginKeyRemovalTask;
+import alliance_authorization.LoginKeyUsage;
 import alliance_authorization.LoginManagerEntity;
 import alliance_authorization.PasswordChecker;
+import alliance_authorization.PasswordHash;
+import alliance_rest.AdmissionController;
+import alliance_rest.EntityReference;
+import alliance_rest.ListingCache;
+import alliance_util.ConnectionManager;
+import alliance_util.LookupFilter;
+import alliance_util.LookupFilterRefreshTask;
+import alliance_util.MaintenanceTimer;
+import alliance_util.RequestDeadline;
 import nexus_rest.ContentType;
 import nexus_rest.RestEntity;
 import nexus_rest.StaticRestServer;
@@ -34,6 +48,8 @@ public class AllianceTestServer
 	 * @param args The first parameter is the server ip. The second parameter is the port 
 	 * number. The third parameter is the database password. The fourth one is database user 
 	 * (default = root). The fifth is database address (default = jdbc:mysql://localhost:3306/)
+	 * Any further parameters are addresses of read replicas that use the same user and 
+	 * password.
 	 */
 	public static void main(String[] args)
 	{
@@ -65,12 +81,76 @@ public class AllianceTestServer
 			e.printStackTrace();
 			System.exit(1);
 		}
+		ConnectionManager.initialize(connectionTarget, user, args[2], 100, "alliance_db", 
+				"tableamounts");
+		// The alliance connections are pooled separately from the ones used by the vault. 
+		// Every hundredth acquisition records where it was made, in case it leaks.
+		ConnectionManager.enablePool(2, 50, 2000, 30000, 100);
+		// Requests fail fast if the database stops responding
+		ConnectionManager.enableCircuitBreakers(100, 20, 0.5, 5000, 0.8, 10, 3);
+		RequestDeadline.setDefaultMillis(10000);
+		// Listings and password logins are rejected first when the requests start to queue
+		AdmissionController.enable(40, 5, 100, 2000);
+		for (int i = 5; i < args.length; i++)
+		{
+			ConnectionManager.addReplica(args[i], user, args[2]);
+		}
+		// The first requests don't have to open their own connections
+		try
+		{
+			ConnectionManager.fillPools("alliance_db");
+		}
+		catch (SQLException e)
+		{
+			System.err.println("Couldn't open the idle database connections");
+			e.printStackTrace();
+		}
+		
+		// Adjusts the password hashing cost to the hardware
+		try
+		{
+			PasswordHash.calibrate(50);
+		}
+		catch (NoSuchAlgorithmException | InvalidKeySpecException e)
+		{
+			System.err.println("Couldn't calibrate the password hashing, using defaults");
+			e.printStackTrace();
+		}
+		
+		// Answers the lookups for missing entities and keys without accessing the database. 
+		// The test server is the only node that writes to its tables.
+		LookupFilter.enable(TestTable.ENTITY, TestTable.ENTITY.getPrimaryColumnName(), 
+				100000, 0.01, 30, 10000, true);
+		for (TestLoginKeyTable keyTable : TestLoginKeyTable.values())
+		{
+			LookupFilter.enable(keyTable, keyTable.getKeyColumnName(), 100000, 0.01, 30, 
+					10000, true);
+		}
+		MaintenanceTimer timer = new MaintenanceTimer();
+		timer.addTask(new LookupFilterRefreshTask(5), 0);
+		
+		// The login keys expire once they haven't been used for a day. The uses are 
+		// written into the key table once a minute.
+		for (TestLoginKeyTable keyTable : TestLoginKeyTable.values())
+		{
+			LoginKeyUsage.enable(keyTable, "lastUse", 60);
+		}
+		timer.addTask(new LoginKeyRemovalTask(TestLoginKeyTable.SHARDS, 24));
+		
+		// The friends can be expanded when listing the entities
+		EntityReference.declare(TestTable.ENTITY, "friend", "friendID", TestTable.ENTITY);
+		ListingCache.enable(TestTable.ENTITY, 1000, 500, 30);
 		
 		// Creates the server entities
 		RestEntity root = new TestRestEntity("root", null);
 		new TestTableEntity("entities", root);
-		new LoginManagerEntity("login", root, TestLoginKeyTable.DEFAULT, 
-				new PasswordChecker(TestTable.SECURE, "passwordHash", "id"), false);
+		LoginManagerEntity login = new LoginManagerEntity("login", root, 
+				TestLoginKeyTable.SHARDS, new PasswordChecker(TestTable.SECURE, 
+				"passwordHash", "id", new LoginAttemptLimiter(10, 60, 10000)), true);
+		// Each user may be logged in from a few clients. A client that logs in again 
+		// receives its previous key.
+		login.limitKeysPerUser(5);
+		login.enableKeyReuse("fingerprint", 12 * 60);
 		
 		// Starts the server
 		StaticRestServer.startServer(args[0], port, true, ContentType.XML, root, 
@@ -0,0 +1,124 @@
+package alliance_test;
+
+import java.util.Random;
+
+import alliance_util.BloomFilter;
+
+/**
+ * This test makes sure that the bloom filters used by the lookup filters never miss an
+ * added value and that their false positive rate stays close to the requested one. Both
+ * sequential identifiers and random keys are tested, since those are the values the
+ * lookup filters hold.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class BloomFilterTest
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final int EXPECTED_VALUES = 100000;
+	private static final int CHECKED_VALUES = 200000;
+	// The measured rate may exceed the requested rate slightly by chance
+	private static final double TOLERANCE = 1.25;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private BloomFilterTest()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the test
+	 * @param args Not used
+	 */
+	public static void main(String[] args)
+	{
+		boolean passed = true;
+		for (double falsePositiveRate : new double[] {0.1, 0.01, 0.001})
+		{
+			passed &= testSequentialValues(falsePositiveRate);
+			passed &= testRandomValues(falsePositiveRate);
+		}
+		
+		TestResults.finish(passed);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static boolean testSequentialValues(double falsePositiveRate)
+	{
+		// Identifiers like the ones allocated for the entities
+		BloomFilter filter = new BloomFilter(EXPECTED_VALUES, falsePositiveRate);
+		for (int i = 1; i <= EXPECTED_VALUES; i++)
+		{
+			filter.add(Integer.toString(i));
+		}
+		
+		int missed = 0;
+		for (int i = 1; i <= EXPECTED_VALUES; i++)
+		{
+			if (!filter.mightContain(Integer.toString(i)))
+				missed ++;
+		}
+		
+		int falsePositives = 0;
+		for (int i = EXPECTED_VALUES + 1; i <= EXPECTED_VALUES + CHECKED_VALUES; i++)
+		{
+			if (filter.mightContain(Integer.toString(i)))
+				falsePositives ++;
+		}
+		
+		return report("sequential", falsePositiveRate, filter, missed, falsePositives);
+	}
+	
+	private static boolean testRandomValues(double falsePositiveRate)
+	{
+		// Keys like the ones given to the clients. A fixed seed keeps the results stable.
+		Random random = new Random(Double.doubleToLongBits(falsePositiveRate));
+		String[] added = new String[EXPECTED_VALUES];
+		BloomFilter filter = new BloomFilter(EXPECTED_VALUES, falsePositiveRate);
+		for (int i = 0; i < added.length; i++)
+		{
+			added[i] = Long.toHexString(random.nextLong()) + Long.toHexString(
+					random.nextLong());
+			filter.add(added[i]);
+		}
+		
+		int missed = 0;
+		for (String value : added)
+		{
+			if (!filter.mightContain(value))
+				missed ++;
+		}
+		
+		// The checked keys contain a separator, so they were never added
+		int falsePositives = 0;
+		for (int i = 0; i < CHECKED_VALUES; i++)
+		{
+			if (filter.mightContain(Long.toHexString(random.nextLong()) + "-" +
+					Long.toHexString(random.nextLong())))
+				falsePositives ++;
+		}
+		
+		return report("random", falsePositiveRate, filter, missed, falsePositives);
+	}
+	
+	private static boolean report(String valueType, double falsePositiveRate,
+			BloomFilter filter, int missed, int falsePositives)
+	{
+		double measuredRate = (double) falsePositives / CHECKED_VALUES;
+		boolean passed = missed == 0 && measuredRate <= falsePositiveRate * TOLERANCE;
+		
+		return TestResults.report(passed, valueType + " values, " + filter.getBitAmount() + 
+				" bits, " + filter.getHashAmount() + " hashes: requested rate " + 
+				falsePositiveRate + ", measured rate " + measuredRate + ", missed values " + 
+				missed);
+	}
+}
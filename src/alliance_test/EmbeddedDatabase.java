@@ -0,0 +1,243 @@
+package alliance_test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+import vault_database.DatabaseTable;
+
+/**
+ * EmbeddedDatabase is an in-memory database used by the tests that need a real database
+ * but no database server. The H2 database driver must be in the class path. The database
+ * exists as long as it is open.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class EmbeddedDatabase implements AutoCloseable
+{
+	// ATTRIBUTES	-----------------------------
+	
+	/**
+	 * The address the embedded databases are opened from. The database name is appended
+	 * to it, like with the ConnectionManager.
+	 */
+	public static final String CONNECTION_TARGET = "jdbc:h2:mem:";
+	/**
+	 * The user name of the embedded databases
+	 */
+	public static final String USER = "sa";
+	/**
+	 * The password of the embedded databases
+	 */
+	public static final String PASSWORD = "";
+	
+	private final String connectionTarget, databaseName;
+	// The connection keeps the database alive
+	private final Connection connection;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new empty database
+	 * @param databaseName The name of the database
+	 * @throws SQLException If the database couldn't be created
+	 */
+	public EmbeddedDatabase(String databaseName) throws SQLException
+	{
+		this(CONNECTION_TARGET, databaseName);
+	}
+	
+	/**
+	 * Creates a new empty database. The databases with different connection targets are
+	 * separate, even if they have the same name.
+	 * @param connectionTarget The address of the database (Eg. "jdbc:h2:mem:replica1_")
+	 * @param databaseName The name of the database
+	 * @throws SQLException If the database couldn't be created
+	 */
+	public EmbeddedDatabase(String connectionTarget, String databaseName)
+			throws SQLException
+	{
+		this(connectionTarget, databaseName, false);
+	}
+	
+	/**
+	 * Creates a new empty database
+	 * @param connectionTarget The address of the database (Eg. "jdbc:h2:mem:replica1_")
+	 * @param databaseName The name of the database
+	 * @param keepIdentifierCase Should the column names be read in the case they were 
+	 * created in, like with MySQL. By default the names are read in upper case. The names 
+	 * are case insensitive either way.
+	 * @throws SQLException If the database couldn't be created
+	 */
+	public EmbeddedDatabase(String connectionTarget, String databaseName, 
+			boolean keepIdentifierCase) throws SQLException
+	{
+		this.connectionTarget = connectionTarget;
+		this.databaseName = databaseName;
+		// The settings of an in-memory database are given when it is first opened
+		String settings = keepIdentifierCase ? 
+				";DATABASE_TO_UPPER=FALSE;CASE_INSENSITIVE_IDENTIFIERS=TRUE" : "";
+		this.connection = DriverManager.getConnection(connectionTarget + databaseName + 
+				settings, USER, PASSWORD);
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public void close() throws SQLException
+	{
+		try (Statement statement = this.connection.createStatement())
+		{
+			statement.execute("SHUTDOWN");
+		}
+		finally
+		{
+			this.connection.close();
+		}
+	}
+	
+	
+	// GETTERS & SETTERS	----------------------
+	
+	/**
+	 * @return The address of the database without the database name
+	 */
+	public String getConnectionTarget()
+	{
+		return this.connectionTarget;
+	}
+	
+	/**
+	 * @return The name of the database
+	 */
+	public String getDatabaseName()
+	{
+		return this.databaseName;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Executes the given statements in order
+	 * @param statements The sql statements that are executed
+	 * @throws SQLException If a statement failed
+	 */
+	public void execute(String... statements) throws SQLException
+	{
+		try (Statement statement = this.connection.createStatement())
+		{
+			for (String sql : statements)
+			{
+				statement.execute(sql);
+			}
+		}
+	}
+	
+	/**
+	 * Reads a single number from the database
+	 * @param query The query that returns the number in its first column
+	 * @return The number on the first row. 0 if there were no rows.
+	 * @throws SQLException If the query failed
+	 */
+	public long queryLong(String query) throws SQLException
+	{
+		try (Statement statement = this.connection.createStatement();
+				ResultSet result = statement.executeQuery(query))
+		{
+			return result.next() ? result.getLong(1) : 0;
+		}
+	}
+	
+	/**
+	 * Creates the table amount index used by the ConnectionManager. None of the tables are
+	 * divided until they are added to the index.
+	 * @param indexTableName The name of the index table
+	 * @throws SQLException If the table couldn't be created
+	 */
+	public void createTableAmountIndex(String indexTableName) throws SQLException
+	{
+		execute("CREATE TABLE " + indexTableName +
+				" (tableName VARCHAR(64) PRIMARY KEY, latestIndex INT NOT NULL)");
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	/**
+	 * Table describes a table created in an embedded database. The first column is the
+	 * primary column and it holds integer indices.
+	 * 
+	 * @author Mikko Hilpinen
+	 * @since 11.6.2015
+	 */
+	public static class Table implements DatabaseTable
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final String databaseName, tableName;
+		private final List<String> columnNames;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		/**
+		 * Describes a new table. The table must be created separately.
+		 * @param databaseName The name of the database that holds the table
+		 * @param tableName The name of the table
+		 * @param columnNames The names of the table's columns, the primary column first
+		 */
+		public Table(String databaseName, String tableName, String... columnNames)
+		{
+			this.databaseName = databaseName;
+			this.tableName = tableName;
+			this.columnNames = Arrays.asList(columnNames);
+		}
+		
+		
+		// IMPLEMENTED METHODS	-----------------
+		
+		@Override
+		public List<String> getColumnNames()
+		{
+			return this.columnNames;
+		}
+		
+		@Override
+		public String getDatabaseName()
+		{
+			return this.databaseName;
+		}
+		
+		@Override
+		public String getTableName()
+		{
+			return this.tableName;
+		}
+		
+		@Override
+		public boolean usesAutoIncrementIndexing()
+		{
+			return false;
+		}
+		
+		@Override
+		public boolean usesIntegerIndexing()
+		{
+			return true;
+		}
+		
+		@Override
+		public String getPrimaryColumnName()
+		{
+			return this.columnNames.get(0);
+		}
+	}
+}
@@ -0,0 +1,172 @@
+package alliance_test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import alliance_rest.IndexBlockAllocator;
+import alliance_util.ConnectionManager;
+
+/**
+ * This benchmark measures how fast multiple threads can insert rows when their indices
+ * are allocated by an {@link IndexBlockAllocator} with different block sizes. The rows
+ * are inserted into an embedded database, which makes sure that no index is given twice,
+ * even when multiple allocators share the table.
+ * The H2 database driver must be in the class path.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class IndexBlockAllocatorBenchmark
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final String DATABASE_NAME = "allocator_db";
+	private static final int[] BLOCK_SIZES = {1, 10, 100, 1000};
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private IndexBlockAllocatorBenchmark()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the benchmark
+	 * @param args The first parameter is the amount of threads (default = 8). The second
+	 * parameter is the amount of inserts made by each thread (default = 2000).
+	 * @throws Exception If the benchmark couldn't be run
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		int threads = args.length >= 1 ? Integer.parseInt(args[0]) : 8;
+		int insertsPerThread = args.length >= 2 ? Integer.parseInt(args[1]) : 2000;
+		
+		boolean passed = true;
+		try (EmbeddedDatabase database = new EmbeddedDatabase(DATABASE_NAME))
+		{
+			database.createTableAmountIndex("tableamounts");
+			database.execute("CREATE TABLE indexblocks (tableName VARCHAR(64) PRIMARY KEY, " +
+					"nextIndex BIGINT NOT NULL)");
+			
+			ConnectionManager.initialize(database.getConnectionTarget(),
+					EmbeddedDatabase.USER, EmbeddedDatabase.PASSWORD, 0, DATABASE_NAME,
+					"tableamounts");
+			ConnectionManager.enablePool(threads, threads, 10000, 0);
+			ConnectionManager.fillPools(DATABASE_NAME);
+			
+			// The first round only warms up the code
+			run(database, "warmup", 100, threads, insertsPerThread / 4);
+			for (int blockSize : BLOCK_SIZES)
+			{
+				passed &= run(database, "entities" + blockSize, blockSize, threads,
+						insertsPerThread);
+			}
+		}
+		
+		TestResults.finish(passed);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static boolean run(EmbeddedDatabase database, String tableName, int blockSize,
+			int threads, final int insertsPerThread) throws Exception
+	{
+		// The primary key makes a duplicate index fail the insert. The physical tables are
+		// numbered, like with the vault.
+		database.execute("CREATE TABLE " + tableName +
+				"1 (id BIGINT PRIMARY KEY, name VARCHAR(32))");
+		final EmbeddedDatabase.Table table = new EmbeddedDatabase.Table(DATABASE_NAME,
+				tableName, "id", "name");
+		// Half of the threads act as another server node with its own allocator, so the
+		// nodes also race to create the table's row in the block table
+		final IndexBlockAllocator[] allocators = {
+				new IndexBlockAllocator(table, "indexblocks", blockSize),
+				new IndexBlockAllocator(table, "indexblocks", blockSize)};
+		
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> results = new ArrayList<>();
+		for (int i = 0; i < threads; i++)
+		{
+			final IndexBlockAllocator allocator = allocators[i % allocators.length];
+			results.add(executor.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					start.await();
+					for (int n = 0; n < insertsPerThread; n++)
+					{
+						insert(table, allocator.nextIndex());
+					}
+					return null;
+				}
+			}));
+		}
+		
+		long started = System.nanoTime();
+		start.countDown();
+		String failure = null;
+		for (Future<Void> result : results)
+		{
+			try
+			{
+				result.get();
+			}
+			catch (ExecutionException e)
+			{
+				if (failure == null)
+					failure = e.getCause().toString();
+			}
+		}
+		long durationMillis = (System.nanoTime() - started) / 1000000;
+		executor.shutdown();
+		
+		long expected = (long) threads * insertsPerThread;
+		long inserted = database.queryLong("SELECT COUNT(*) FROM " + tableName + "1");
+		long reserved = database.queryLong("SELECT nextIndex FROM indexblocks " +
+				"WHERE tableName = '" + tableName + "'") - 1;
+		
+		return TestResults.report(failure == null && inserted == expected, "block size " + 
+				blockSize + ": " + inserted + "/" + expected + " rows in " + durationMillis + 
+				" ms (" + (inserted * 1000 / Math.max(1, durationMillis)) + " inserts/s), " + 
+				(reserved / blockSize) + " block reservations" + 
+				(failure == null ? "" : ", first error: " + failure));
+	}
+	
+	private static void insert(EmbeddedDatabase.Table table, long index)
+			throws SQLException
+	{
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(table.getDatabaseName(),
+					table.getTableName() + ".insert");
+			try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " +
+					table.getTableName() + "1 (id, name) VALUES (?, ?)"))
+			{
+				statement.setLong(1, index);
+				statement.setString(2, "row " + index);
+				statement.executeUpdate();
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+	}
+}
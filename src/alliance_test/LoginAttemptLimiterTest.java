@@ -0,0 +1,119 @@
+package alliance_test;
+
+import alliance_authorization.LoginAttemptLimiter;
+import alliance_rest.TooManyRequestsException;
+
+/**
+ * This test makes sure that a user stays locked out after too many login attempts, even
+ * when the attempts of other users fill the limiter's memory
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LoginAttemptLimiterTest
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final int MAX_ATTEMPTS = 5;
+	private static final int MAX_TRACKED_USERS = 64;
+	private static final int FLOODED_USERS = 10000;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private LoginAttemptLimiterTest()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the test
+	 * @param args Not used
+	 */
+	public static void main(String[] args)
+	{
+		TestResults.finish(testLockout() & testFlood() & testFullOfLockouts());
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static boolean testLockout()
+	{
+		LoginAttemptLimiter limiter = new LoginAttemptLimiter(MAX_ATTEMPTS, 60,
+				MAX_TRACKED_USERS);
+		int accepted = attempt(limiter, "user", MAX_ATTEMPTS * 2);
+		
+		// A successful login clears the history
+		limiter.reset("user");
+		boolean acceptedAfterReset = attempt(limiter, "user", 1) == 1;
+		
+		return TestResults.report(accepted == MAX_ATTEMPTS && acceptedAfterReset,
+				"lockout: " + accepted + "/" + (MAX_ATTEMPTS * 2) +
+				" attempts accepted, accepted after a reset: " + acceptedAfterReset);
+	}
+	
+	private static boolean testFlood()
+	{
+		LoginAttemptLimiter limiter = new LoginAttemptLimiter(MAX_ATTEMPTS, 60,
+				MAX_TRACKED_USERS);
+		attempt(limiter, "victim", MAX_ATTEMPTS);
+		
+		// Each of the other users could evict the victim from its stripe
+		int flooded = 0;
+		for (int i = 0; i < FLOODED_USERS; i++)
+		{
+			flooded += attempt(limiter, "flood" + i, 1);
+		}
+		boolean stillLocked = attempt(limiter, "victim", 1) == 0;
+		
+		return TestResults.report(stillLocked && flooded == FLOODED_USERS,
+				"flood: victim still locked out: " + stillLocked + ", " + flooded + "/" +
+				FLOODED_USERS + " other users accepted");
+	}
+	
+	private static boolean testFullOfLockouts()
+	{
+		// A single stripe remembers a single user
+		LoginAttemptLimiter limiter = new LoginAttemptLimiter(MAX_ATTEMPTS, 60, 1);
+		int lockedOut = 0;
+		for (int i = 0; i < FLOODED_USERS; i++)
+		{
+			attempt(limiter, "locked" + i, MAX_ATTEMPTS);
+			if (attempt(limiter, "locked" + i, 1) == 0)
+				lockedOut ++;
+		}
+		
+		// Once the memory is full of locked out users, the new users are rejected rather
+		// than any lockout being forgotten
+		int accepted = 0;
+		for (int i = 0; i < FLOODED_USERS; i++)
+		{
+			accepted += attempt(limiter, "new" + i, 1);
+		}
+		
+		return TestResults.report(lockedOut > 0 && accepted == 0, "full of lockouts: " +
+				lockedOut + " users locked out, " + accepted + " new users accepted");
+	}
+	
+	private static int attempt(LoginAttemptLimiter limiter, String userID, int attempts)
+	{
+		int accepted = 0;
+		for (int i = 0; i < attempts; i++)
+		{
+			try
+			{
+				limiter.checkAttempt(userID);
+				accepted ++;
+			}
+			catch (TooManyRequestsException e)
+			{
+				// The attempt was rejected
+			}
+		}
+		return accepted;
+	}
+}
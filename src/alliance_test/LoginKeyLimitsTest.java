@@ -0,0 +1,172 @@
+package alliance_test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+
+import alliance_authorization.LoginKeyLimits;
+import alliance_authorization.LoginKeyTable;
+import alliance_util.ConnectionManager;
+import alliance_util.SimpleDate;
+
+/**
+ * This test makes sure that only the oldest keys of a user are removed when the user has
+ * too many keys and that a client receives its own previous key again only while the key
+ * is recent enough. The keys are stored in an embedded database. The H2 database driver
+ * must be in the class path.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LoginKeyLimitsTest
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final String DATABASE_NAME = "keys_db";
+	private static final int MAX_AGE_MINUTES = 60;
+	private static final KeyTable TABLE = new KeyTable();
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private LoginKeyLimitsTest()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the test
+	 * @param args Not used
+	 * @throws Exception If the test couldn't be run
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean passed;
+		// The keys are read by their column names, which MySQL keeps in their original case
+		try (EmbeddedDatabase database = new EmbeddedDatabase(
+				EmbeddedDatabase.CONNECTION_TARGET, DATABASE_NAME, true))
+		{
+			database.createTableAmountIndex("tableamounts");
+			database.execute("CREATE TABLE loginKeys1 (userKey VARCHAR(64) PRIMARY KEY, " +
+					"userID BIGINT NOT NULL, created VARCHAR(64), fingerprint VARCHAR(64))");
+			ConnectionManager.initialize(database.getConnectionTarget(),
+					EmbeddedDatabase.USER, EmbeddedDatabase.PASSWORD, 0, DATABASE_NAME,
+					"tableamounts");
+			
+			// The first user has five keys created a minute apart, the newest one last.
+			// The second user has a single key.
+			for (int i = 1; i <= 5; i++)
+			{
+				insertKey(database, "key" + i, 1, 10 - i, i % 2 == 0 ? "phone" : "laptop");
+			}
+			insertKey(database, "other", 2, 10, "phone");
+			// A key of a phone that was used long ago
+			insertKey(database, "old", 3, MAX_AGE_MINUTES * 2, "phone");
+			
+			passed = testReuse() & testEviction(database);
+		}
+		
+		TestResults.finish(passed);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static boolean testReuse() throws SQLException
+	{
+		boolean passed = checkReuse("newest key of the client", "1", "phone", "key4");
+		passed &= checkReuse("newest key of the other client", "1", "laptop", "key5");
+		passed &= checkReuse("key of another user", "2", "laptop", null);
+		passed &= checkReuse("unknown client", "1", "tablet", null);
+		passed &= checkReuse("key older than allowed", "3", "phone", null);
+		
+		return passed;
+	}
+	
+	private static boolean checkReuse(String description, String userID,
+			String fingerprint, String expectedKey) throws SQLException
+	{
+		Map<String, String> row = LoginKeyLimits.findReusableKey(TABLE, userID,
+				"fingerprint", fingerprint, MAX_AGE_MINUTES);
+		String key = row == null ? null : row.get(TABLE.getKeyColumnName());
+		
+		return TestResults.report(expectedKey == null ? key == null :
+				expectedKey.equals(key), "reuse, " + description + ": expected " +
+				expectedKey + ", received " + key);
+	}
+	
+	private static boolean testEviction(EmbeddedDatabase database) throws SQLException
+	{
+		// The user may have three keys, including the newest one
+		int removed;
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(DATABASE_NAME, "test");
+			removed = LoginKeyLimits.removeOldestKeys(connection, TABLE, "1", "key5", 2);
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		long remaining = database.queryLong(
+				"SELECT COUNT(*) FROM loginKeys1 WHERE userID = 1");
+		long oldestRemaining = database.queryLong("SELECT COUNT(*) FROM loginKeys1 " +
+				"WHERE userKey IN ('key3', 'key4', 'key5')");
+		long otherRemaining = database.queryLong(
+				"SELECT COUNT(*) FROM loginKeys1 WHERE userID <> 1");
+		
+		return TestResults.report(removed == 2 && remaining == 3 && oldestRemaining == 3 &&
+				otherRemaining == 2, "eviction: " + removed + " keys removed, " +
+				oldestRemaining + "/" + remaining + " of the newest keys remain, " +
+				otherRemaining + " keys of the other users remain");
+	}
+	
+	private static void insertKey(EmbeddedDatabase database, String key, int userID,
+			int ageMinutes, String fingerprint) throws SQLException
+	{
+		String created = new SimpleDate().plus(-ageMinutes).toString();
+		database.execute("INSERT INTO loginKeys1 (userKey, userID, created, fingerprint) " +
+				"VALUES ('" + key + "', " + userID + ", '" + created + "', '" +
+				fingerprint + "')");
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	private static class KeyTable extends EmbeddedDatabase.Table implements LoginKeyTable
+	{
+		// CONSTRUCTOR	-------------------------
+		
+		public KeyTable()
+		{
+			super(DATABASE_NAME, "loginKeys", "userID", "userKey", "created",
+					"fingerprint");
+		}
+		
+		
+		// IMPLEMENTED METHODS	-----------------
+		
+		@Override
+		public String getUserIDColumnName()
+		{
+			return "userID";
+		}
+		
+		@Override
+		public String getKeyColumnName()
+		{
+			return "userKey";
+		}
+		
+		@Override
+		public String getCreationTimeColumnName()
+		{
+			return "created";
+		}
+	}
+}
@@ -0,0 +1,216 @@
+package alliance_test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import alliance_util.ConnectionManager;
+import alliance_util.MaintenanceLease;
+import alliance_util.MaintenanceStatistics;
+import alliance_util.MaintenanceTask;
+import alliance_util.MaintenanceTimer;
+
+/**
+ * This test makes sure that a maintenance task is only run by a single server node at a
+ * time, even when a run takes longer than the lease, and that another node takes over the 
+ * task once the lease of a stopped node lapses. Each node is simulated with its own
+ * timer and lease, and the leases are stored in an embedded database. The H2 database
+ * driver must be in the class path.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class MaintenanceLeaseTest
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final String DATABASE_NAME = "lease_db";
+	private static final int NODES = 3;
+	private static final long INTERVAL_MILLIS = 200;
+	// Longer than the lease, which lasts one and a half intervals
+	private static final long RUN_MILLIS = 700;
+	private static final long TEST_MILLIS = 4000;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private MaintenanceLeaseTest()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the test
+	 * @param args Not used
+	 * @throws Exception If the test couldn't be run
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean passed;
+		try (EmbeddedDatabase database = new EmbeddedDatabase(DATABASE_NAME))
+		{
+			database.createTableAmountIndex("tableamounts");
+			database.execute(createLeaseTable("leases"), createLeaseTable("takeoverleases"));
+			ConnectionManager.initialize(database.getConnectionTarget(),
+					EmbeddedDatabase.USER, EmbeddedDatabase.PASSWORD, 0, DATABASE_NAME,
+					"tableamounts");
+			
+			passed = testSingleRunner() & testTakeover();
+		}
+		
+		TestResults.finish(passed);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static boolean testSingleRunner() throws InterruptedException
+	{
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		AtomicInteger runs = new AtomicInteger();
+		
+		// All the nodes start the task at the same time
+		List<MaintenanceTimer> timers = new ArrayList<>();
+		List<MaintenanceStatistics> statistics = new ArrayList<>();
+		for (int i = 1; i <= NODES; i++)
+		{
+			MaintenanceTimer timer = createTimer("leases", "node" + i);
+			SlowTask task = new SlowTask(running, maxRunning, runs);
+			timer.addTaskWithDelayMillis(task, 0);
+			timers.add(timer);
+			statistics.add(timer.getStatistics(task));
+		}
+		
+		Thread.sleep(TEST_MILLIS);
+		
+		// The runs cut short by the end of the test are not counted
+		long failures = 0;
+		for (MaintenanceStatistics nodeStatistics : statistics)
+		{
+			TestResults.inform(nodeStatistics.toString());
+			failures += nodeStatistics.getFailureAmount();
+		}
+		for (MaintenanceTimer timer : timers)
+		{
+			timer.cancel();
+		}
+		
+		return TestResults.report(maxRunning.get() == 1 && runs.get() >= 2 && 
+				failures == 0, NODES + " nodes: " + runs.get() + " runs, at most " + 
+				maxRunning.get() + " at the same time, " + failures + " failures");
+	}
+	
+	private static boolean testTakeover() throws InterruptedException
+	{
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger maxRunning = new AtomicInteger();
+		AtomicInteger runs = new AtomicInteger();
+		
+		// The first node takes the lease and then stops in the middle of a run
+		MaintenanceTimer stopped = createTimer("takeoverleases", "stopped");
+		stopped.addTaskWithDelayMillis(new SlowTask(running, maxRunning, runs), 0);
+		Thread.sleep(INTERVAL_MILLIS);
+		stopped.cancel();
+		int runsBeforeStop = runs.get();
+		
+		// The other node has to wait until the lease lapses
+		MaintenanceTimer other = createTimer("takeoverleases", "other");
+		SlowTask task = new SlowTask(running, maxRunning, runs);
+		other.addTaskWithDelayMillis(task, 0);
+		Thread.sleep(TEST_MILLIS / 2);
+		MaintenanceStatistics statistics = other.getStatistics(task);
+		TestResults.inform(statistics.toString());
+		long waited = statistics.getLeasedElsewhereAmount();
+		long otherRuns = statistics.getRunAmount();
+		other.cancel();
+		
+		return TestResults.report(runsBeforeStop == 1 && otherRuns > 0 && waited > 0, 
+				"takeover: stopped node ran " + runsBeforeStop + " times, the other node " + 
+				"waited " + waited + " intervals and then ran " + otherRuns + " times");
+	}
+	
+	private static String createLeaseTable(String tableName)
+	{
+		return "CREATE TABLE " + tableName + " (taskName VARCHAR(64) PRIMARY KEY, " +
+				"owner VARCHAR(64), leaseEnd TIMESTAMP(3) NOT NULL)";
+	}
+	
+	private static MaintenanceTimer createTimer(String leaseTableName, String nodeID)
+	{
+		return new MaintenanceTimer(2, new MaintenanceLease(DATABASE_NAME, leaseTableName, 
+				nodeID));
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	private static class SlowTask extends MaintenanceTask
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final AtomicInteger running, maxRunning, runs;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		public SlowTask(AtomicInteger running, AtomicInteger maxRunning, AtomicInteger runs)
+		{
+			this.running = running;
+			this.maxRunning = maxRunning;
+			this.runs = runs;
+		}
+		
+		
+		// IMPLEMENTED METHODS	-----------------
+		
+		@Override
+		public int getMaintenanceIntervalMinutes()
+		{
+			// The interval is shorter than a minute
+			return 0;
+		}
+		
+		@Override
+		public long getMaintenanceIntervalMillis()
+		{
+			return INTERVAL_MILLIS;
+		}
+		
+		@Override
+		public String getTaskName()
+		{
+			// The nodes share the lease of the task
+			return "slow";
+		}
+		
+		@Override
+		public void run()
+		{
+			int current = this.running.incrementAndGet();
+			this.runs.incrementAndGet();
+			while (true)
+			{
+				int max = this.maxRunning.get();
+				if (current <= max || this.maxRunning.compareAndSet(max, current))
+					break;
+			}
+			
+			try
+			{
+				Thread.sleep(RUN_MILLIS);
+			}
+			catch (InterruptedException e)
+			{
+				// The test has ended
+			}
+			finally
+			{
+				this.running.decrementAndGet();
+			}
+		}
+	}
+}
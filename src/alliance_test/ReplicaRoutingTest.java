@@ -0,0 +1,152 @@
+package alliance_test;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+import alliance_util.ConnectionManager;
+import alliance_util.TableOperations;
+
+/**
+ * This test makes sure that the reads go to a read replica, except for a while after a
+ * write in the same session, and that an unreachable replica is skipped. The requests 
+ * only share their sessions once they have been authenticated as the same user. The primary
+ * database and the replica are separate embedded databases that hold different values,
+ * so the value that is read tells where it was read from. The H2 database driver must be
+ * in the class path.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ReplicaRoutingTest
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final String DATABASE_NAME = "routing_db";
+	private static final long WINDOW_MILLIS = 500;
+	private static final EmbeddedDatabase.Table TABLE = new EmbeddedDatabase.Table(
+			DATABASE_NAME, "rows", "id", "source");
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private ReplicaRoutingTest()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the test
+	 * @param args Not used
+	 * @throws Exception If the test couldn't be run
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean passed = true;
+		try (EmbeddedDatabase primary = createDatabase("jdbc:h2:mem:primary_", "primary");
+				EmbeddedDatabase replica = createDatabase("jdbc:h2:mem:replica_", "replica"))
+		{
+			ConnectionManager.initialize(primary.getConnectionTarget(),
+					EmbeddedDatabase.USER, EmbeddedDatabase.PASSWORD, 0, DATABASE_NAME,
+					"tableamounts");
+			ConnectionManager.addReplica(replica.getConnectionTarget(),
+					EmbeddedDatabase.USER, EmbeddedDatabase.PASSWORD);
+			ConnectionManager.setReadYourWritesWindow(WINDOW_MILLIS);
+			
+			ConnectionManager.setSession("a");
+			passed &= check("read without writes", "replica");
+			
+			// The write only goes to the primary database, since nothing is replicated
+			write("primary updated");
+			passed &= check("read after a write in the same session", "primary updated");
+			ConnectionManager.setSession("b");
+			passed &= check("read after a write in another session", "replica");
+			
+			Thread.sleep(WINDOW_MILLIS * 2);
+			ConnectionManager.setSession("a");
+			passed &= check("read after the window", "replica");
+			
+			// The writes without a session (Eg. the maintenance tasks) only affect the reads 
+			// without a session
+			ConnectionManager.setSession(null);
+			write("maintenance");
+			passed &= check("read without a session after a write without a session", 
+					"maintenance");
+			ConnectionManager.setSession("a");
+			passed &= check("read in a session after a write without a session", "replica");
+			
+			// The requests share a session once they are authenticated as the same user
+			Thread.sleep(WINDOW_MILLIS * 2);
+			ConnectionManager.startSession(new Object());
+			ConnectionManager.authenticateSession("1");
+			write("user 1");
+			ConnectionManager.startSession(new Object());
+			passed &= check("unauthenticated request after a write of a user", "replica");
+			ConnectionManager.startSession(new Object());
+			ConnectionManager.authenticateSession("1");
+			passed &= check("request of the same user", "user 1");
+			ConnectionManager.startSession(new Object());
+			ConnectionManager.authenticateSession("2");
+			passed &= check("request of another user", "replica");
+			
+			// The reads skip a replica that can't be connected to
+			ConnectionManager.addReplica("jdbc:unreachable:", EmbeddedDatabase.USER,
+					EmbeddedDatabase.PASSWORD);
+			ConnectionManager.setSession("a");
+			for (int i = 0; i < 2; i++)
+			{
+				passed &= check("read with an unreachable replica", "replica");
+			}
+		}
+		finally
+		{
+			ConnectionManager.setSession(null);
+		}
+		
+		TestResults.finish(passed);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static EmbeddedDatabase createDatabase(String connectionTarget, String source)
+			throws SQLException
+	{
+		EmbeddedDatabase database = new EmbeddedDatabase(connectionTarget, DATABASE_NAME);
+		database.createTableAmountIndex("tableamounts");
+		database.execute("CREATE TABLE rows1 (id BIGINT PRIMARY KEY, source VARCHAR(32))",
+				"INSERT INTO rows1 (id, source) VALUES (1, '" + source + "')");
+		return database;
+	}
+	
+	private static void write(String source) throws SQLException
+	{
+		Map<String, String> values = new HashMap<>();
+		values.put("source", source);
+		Map<String, String> conditions = new HashMap<>();
+		conditions.put("id", "1");
+		TableOperations.update(TABLE, values, conditions);
+	}
+	
+	private static boolean check(String description, String expected) throws SQLException
+	{
+		Map<String, String> row = TableOperations.readRow(TABLE, 1);
+		
+		// The database may change the case of the column names
+		String source = null;
+		if (row != null)
+		{
+			for (String column : row.keySet())
+			{
+				if (column.equalsIgnoreCase("source"))
+					source = row.get(column);
+			}
+		}
+		
+		return TestResults.report(expected.equals(source), description + ": expected '" + 
+				expected + "', read '" + source + "'");
+	}
+}
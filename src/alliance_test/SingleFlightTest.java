@@ -0,0 +1,276 @@
+package alliance_test;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import alliance_rest.TableVersions;
+import alliance_util.DeadlineExceededException;
+import alliance_util.RequestDeadline;
+import alliance_util.SingleFlight;
+
+/**
+ * This test makes sure that the concurrent reads of the same row share a single query
+ * and that a read started after a write never receives the result of a query that was
+ * started before the write. A waiting read must also respect its own deadline and must 
+ * not fail because of the deadline of the read it waits for.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class SingleFlightTest
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final int THREADS = 50;
+	private static final long QUERY_MILLIS = 200;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private SingleFlightTest()
+	{
+		// The interface is static
+	}
+	
+	
+	// MAIN METHOD	-----------------------------
+	
+	/**
+	 * Runs the test
+	 * @param args Not used
+	 * @throws Exception If the test couldn't be run
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		boolean passed = testParallelReads() & testReadAfterWrite() & 
+				testWaitDeadline() & testPerformerDeadline();
+		
+		TestResults.finish(passed);
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	private static boolean testParallelReads() throws Exception
+	{
+		final SingleFlight<String, String> reads = new SingleFlight<>();
+		final AtomicInteger queries = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		
+		// All the requests read the same row at the same time
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<String>> results = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++)
+		{
+			results.add(executor.submit(new Callable<String>()
+			{
+				@Override
+				public String call() throws Exception
+				{
+					start.await();
+					return reads.execute("1", 0, new SlowQuery(queries, "row 1"));
+				}
+			}));
+		}
+		start.countDown();
+		
+		int correct = 0;
+		for (Future<String> result : results)
+		{
+			if ("row 1".equals(result.get()))
+				correct ++;
+		}
+		executor.shutdown();
+		
+		return TestResults.report(queries.get() == 1 && correct == THREADS, THREADS + 
+				" parallel reads: " + queries.get() + " queries, " + correct + 
+				" correct results, " + reads.getSharedAmount() + " shared");
+	}
+	
+	private static boolean testReadAfterWrite() throws Exception
+	{
+		final SingleFlight<String, String> reads = new SingleFlight<>();
+		final AtomicInteger queries = new AtomicInteger();
+		
+		// The first read starts before the write and returns the old data
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		final long versionBefore = TableVersions.getVersion(TestTable.ENTITY);
+		Future<String> before = executor.submit(new Callable<String>()
+		{
+			@Override
+			public String call() throws SQLException
+			{
+				return reads.execute("1", versionBefore, new SlowQuery(queries, 
+						"old row"));
+			}
+		});
+		Thread.sleep(QUERY_MILLIS / 4);
+		TableVersions.tableModified(TestTable.ENTITY);
+		
+		// The second read starts after the write, while the first one is still running
+		final long versionAfter = TableVersions.getVersion(TestTable.ENTITY);
+		Future<String> after = executor.submit(new Callable<String>()
+		{
+			@Override
+			public String call() throws SQLException
+			{
+				return reads.execute("1", versionAfter, new SlowQuery(queries, 
+						"new row"));
+			}
+		});
+		
+		String beforeResult = before.get();
+		String afterResult = after.get();
+		executor.shutdown();
+		
+		return TestResults.report("old row".equals(beforeResult) && 
+				"new row".equals(afterResult) && queries.get() == 2, "read after write: " + 
+				queries.get() + " queries, read before the write got '" + beforeResult + 
+				"', read after the write got '" + afterResult + "'");
+	}
+	
+	
+	private static boolean testWaitDeadline() throws Exception
+	{
+		final SingleFlight<String, String> reads = new SingleFlight<>();
+		final AtomicInteger queries = new AtomicInteger();
+		
+		// The slow read has no deadline
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		Future<String> slow = executor.submit(new Callable<String>()
+		{
+			@Override
+			public String call() throws SQLException
+			{
+				return reads.execute("1", new SlowQuery(queries, "row 1"));
+			}
+		});
+		Thread.sleep(QUERY_MILLIS / 4);
+		
+		// The waiting read gives up once its own deadline passes
+		long waitedMillis = -1;
+		RequestDeadline.start(QUERY_MILLIS / 4);
+		long started = System.currentTimeMillis();
+		try
+		{
+			reads.execute("1", new SlowQuery(queries, "row 1"));
+		}
+		catch (DeadlineExceededException e)
+		{
+			waitedMillis = System.currentTimeMillis() - started;
+		}
+		finally
+		{
+			RequestDeadline.start(0);
+		}
+		String slowResult = slow.get();
+		executor.shutdown();
+		
+		return TestResults.report(waitedMillis >= 0 && waitedMillis < QUERY_MILLIS / 2 && 
+				"row 1".equals(slowResult), "wait deadline: waiting read gave up after " + 
+				waitedMillis + " ms, slow read got '" + slowResult + "'");
+	}
+	
+	private static boolean testPerformerDeadline() throws Exception
+	{
+		final SingleFlight<String, String> reads = new SingleFlight<>();
+		final AtomicInteger queries = new AtomicInteger();
+		
+		// The first read runs out of time while performing the query
+		ExecutorService executor = Executors.newFixedThreadPool(1);
+		Future<String> limited = executor.submit(new Callable<String>()
+		{
+			@Override
+			public String call() throws SQLException
+			{
+				RequestDeadline.start(QUERY_MILLIS / 2);
+				try
+				{
+					return reads.execute("1", new SlowQuery(queries, "row 1"));
+				}
+				finally
+				{
+					RequestDeadline.start(0);
+				}
+			}
+		});
+		Thread.sleep(QUERY_MILLIS / 4);
+		
+		// The read without a deadline performs the query again instead of failing
+		String result = null;
+		try
+		{
+			result = reads.execute("1", new SlowQuery(queries, "row 1"));
+		}
+		catch (DeadlineExceededException e)
+		{
+			// The check fails
+		}
+		boolean limitedFailed = false;
+		try
+		{
+			limited.get();
+		}
+		catch (ExecutionException e)
+		{
+			limitedFailed = e.getCause() instanceof DeadlineExceededException;
+		}
+		executor.shutdown();
+		
+		return TestResults.report("row 1".equals(result) && limitedFailed && 
+				queries.get() == 2, "performer deadline: " + queries.get() + 
+				" queries, waiting read got '" + result + "', limited read failed: " + 
+				limitedFailed);
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	private static class SlowQuery implements SingleFlight.Operation<String>
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final AtomicInteger queries;
+		private final String result;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		public SlowQuery(AtomicInteger queries, String result)
+		{
+			this.queries = queries;
+			this.result = result;
+		}
+		
+		
+		// IMPLEMENTED METHODS	-----------------
+		
+		@Override
+		public String perform() throws SQLException
+		{
+			this.queries.incrementAndGet();
+			// Like a query, the read fails once the deadline of the request passes
+			long remaining = RequestDeadline.getRemainingMillis();
+			try
+			{
+				Thread.sleep(remaining < 0 ? QUERY_MILLIS : Math.min(remaining, 
+						QUERY_MILLIS));
+			}
+			catch (InterruptedException e)
+			{
+				throw new SQLException("Interrupted", e);
+			}
+			if (remaining >= 0 && remaining < QUERY_MILLIS)
+				throw new DeadlineExceededException("The query timed out");
+			return this.result;
+		}
+	}
+}
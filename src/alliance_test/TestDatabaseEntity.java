@@ -1,5 +1,6 @@
 package alliance_test;
 
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -10,6 +11,9 @@ import nexus_rest.RestEntity;
 import nexus_rest.SimpleRestData;
 import alliance_authorization.LoginKeyTable;
 import alliance_rest.DatabaseEntity;
+import alliance_rest.IndexBlockAllocator;
+import alliance_rest.ServiceUnavailableException;
+import alliance_rest.UnitOfWork;
 
 /**
  * These entities are used for testing the basic functions in testDatabaseEntity class
@@ -18,6 +22,12 @@ import alliance_rest.DatabaseEntity;
  */
 public class TestDatabaseEntity extends DatabaseEntity
 {
+	// ATTRIBUTES	------------------------------
+	
+	private static final IndexBlockAllocator indexAllocator = 
+			new IndexBlockAllocator(TestTable.ENTITY, "indexblocks", 100);
+	
+	
 	// CONSTRUCTOR	------------------------------
 	
 	/**
@@ -30,6 +40,17 @@ public class TestDatabaseEntity extends DatabaseEntity
 	{
 		super(new SimpleRestData(), rootPath, TestTable.ENTITY, id);
 	}
+	
+	/**
+	 * Creates a new entity by loading its data from the database
+	 * @param rootPath The path preceding the entity, including the final '/'
+	 * @param id The identifier used for finding the entity
+	 * @throws HttpException If the entity couldn't be read
+	 */
+	public TestDatabaseEntity(String rootPath, long id) throws HttpException
+	{
+		super(new SimpleRestData(), rootPath, TestTable.ENTITY, id);
+	}
 
 	/**
 	 * Creates a new entity and saves it to the database
@@ -40,8 +61,8 @@ public class TestDatabaseEntity extends DatabaseEntity
 	public TestDatabaseEntity(RestEntity parent, Map<String, String> parameters) 
 			throws HttpException
 	{
-		super(new SimpleRestData(), parent, TestTable.ENTITY, 
-				checkParameters(parameters), getDefaultParameters());
+		super(new SimpleRestData(), parent, indexAllocator, checkParameters(parameters), 
+				getDefaultParameters());
 		
 		// Also creates the secure
 		new TestSecureEntity(this, getDatabaseID(), parameters);
@@ -53,7 +74,7 @@ public class TestDatabaseEntity extends DatabaseEntity
 	@Override
 	public void Put(Map<String, String> parameters) throws HttpException
 	{
-		LoginKeyTable.checkKey(TestLoginKeyTable.DEFAULT, getDatabaseID(), parameters);
+		LoginKeyTable.checkKey(TestLoginKeyTable.SHARDS, getDatabaseID(), parameters);
 		
 		// Checks the parameters but allows update
 		defaultPut(checkParameters(parameters));
@@ -66,12 +87,16 @@ public class TestDatabaseEntity extends DatabaseEntity
 	protected Map<String, RestEntity> getMissingEntities(Map<String, String> parameters)
 			throws HttpException
 	{
-		// Has a link to the "friend"
+		// Has a link to the "friend", which may be expanded
+		prefetchReferences(parameters);
 		Map<String, RestEntity> links = new HashMap<>();
 		
-		RestEntity friend = getFriend();
+		TestDatabaseEntity friend = getFriend();
 		if (friend != null)
+		{
+			expandReference("friend", friend, parameters);
 			links.put("friend", friend);
+		}
 		
 		links.put("secure", getSecure());
 		
@@ -83,6 +108,7 @@ public class TestDatabaseEntity extends DatabaseEntity
 			throws HttpException
 	{
 		// Has a link to the "friend"
+		prefetchReferences(parameters);
 		if (path.equals(getAttributes().get("friendID")))
 			return getFriend();
 		
@@ -95,9 +121,22 @@ public class TestDatabaseEntity extends DatabaseEntity
 	@Override
 	protected void prepareDelete(Map<String, String> parameters) throws HttpException
 	{
-		// Also deletes the secure
-		getSecure().delete(parameters);
-		super.prepareDelete(parameters);
+		// Also deletes the secure. Both are removed in the same transaction.
+		UnitOfWork work = UnitOfWork.begin();
+		try
+		{
+			getSecure().delete(parameters);
+			super.prepareDelete(parameters);
+			work.commit();
+		}
+		catch (SQLException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't delete " + getPath(), e);
+		}
+		finally
+		{
+			work.close();
+		}
 	}
 	
 	// OTHER METHODS	--------------------------------
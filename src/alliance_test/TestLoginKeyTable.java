@@ -3,12 +3,13 @@ package alliance_test;
 import java.sql.SQLException;
 import java.util.List;
 
+import alliance_authorization.LoginKeyShards;
 import alliance_authorization.LoginKeyTable;
 import vault_database.DatabaseTable;
 import vault_database.DatabaseUnavailableException;
 
 /**
- * LoginKeyTable holds the login keys.
+ * LoginKeyTable holds the login keys. The keys are spread over two tables by their users.
  * 
  * @author Mikko Hilpinen
  * @since 27.1.2015
@@ -16,15 +17,34 @@ import vault_database.DatabaseUnavailableException;
 public enum TestLoginKeyTable implements LoginKeyTable
 {
 	/**
-	 * The default (and only) login key table. Should contain the following columns: 
-	 * 'userID', 'userKey' and 'created'
+	 * The first login key table. Should contain the following columns: 'userID', 
+	 * 'userKey' (primary key), 'created', 'fingerprint' and 'lastUse'. A user may have 
+	 * multiple keys.
 	 */
-	DEFAULT;
+	DEFAULT("loginKeys"),
+	/**
+	 * The second login key table. Has the same columns as the first one.
+	 */
+	SECOND("secondLoginKeys");
 	
 	
 	// ATTRIBUTES	-------------------------------
 	
-	private static List<ColumnInfo> columnInfo = null;
+	/**
+	 * The tables the login keys are divided between
+	 */
+	public static final LoginKeyShards SHARDS = new LoginKeyShards(values());
+	
+	private final String tableName;
+	private List<ColumnInfo> columnInfo = null;
+	
+	
+	// CONSTRUCTOR	-------------------------------
+	
+	private TestLoginKeyTable(String tableName)
+	{
+		this.tableName = tableName;
+	}
 
 	
 	// IMPLEMENTED METHODS	-----------------------
@@ -44,7 +64,7 @@ public enum TestLoginKeyTable implements LoginKeyTable
 	@Override
 	public String getTableName()
 	{
-		return "loginKeys";
+		return this.tableName;
 	}
 
 	@Override
@@ -88,11 +108,11 @@ public enum TestLoginKeyTable implements LoginKeyTable
 	
 	private List<ColumnInfo> getColumnInfo()
 	{
-		if (columnInfo == null)
+		if (this.columnInfo == null)
 		{
 			try
 			{
-				columnInfo = DatabaseTable.readColumnInfoFromDatabase(this);
+				this.columnInfo = DatabaseTable.readColumnInfoFromDatabase(this);
 			}
 			catch (DatabaseUnavailableException | SQLException e)
 			{
@@ -101,6 +121,6 @@ public enum TestLoginKeyTable implements LoginKeyTable
 			}
 		}
 		
-		return columnInfo;
+		return this.columnInfo;
 	}
 }
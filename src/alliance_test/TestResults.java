@@ -0,0 +1,55 @@
+package alliance_test;
+
+/**
+ * TestResults prints the results of the test programs in a common format. Each check is
+ * printed on its own line and the program exits with an error status if any of the checks
+ * failed.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class TestResults
+{
+	// CONSTRUCTOR	-----------------------------
+	
+	private TestResults()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Prints the result of a single check
+	 * @param passed Did the check pass
+	 * @param description The description of the check and its results
+	 * @return Did the check pass
+	 */
+	public static boolean report(boolean passed, String description)
+	{
+		System.out.println((passed ? "OK     " : "FAILED ") + description);
+		return passed;
+	}
+	
+	/**
+	 * Prints additional information about the checks, aligned with the results
+	 * @param information The information that is printed
+	 */
+	public static void inform(String information)
+	{
+		System.out.println("       " + information);
+	}
+	
+	/**
+	 * Prints the final result of the test program. The program exits with an error status
+	 * if any of the checks failed.
+	 * @param passed Did all of the checks pass
+	 */
+	public static void finish(boolean passed)
+	{
+		System.out.println(passed ? "All tests passed" : "Some tests failed");
+		if (!passed)
+			System.exit(1);
+	}
+}
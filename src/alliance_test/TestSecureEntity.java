@@ -49,6 +49,6 @@ public class TestSecureEntity extends SecureEntity
 	protected void authorizeModification(Map<String, String> parameters)
 			throws HttpException
 	{
-		LoginKeyTable.checkKey(TestLoginKeyTable.DEFAULT, getDatabaseID(), parameters);
+		LoginKeyTable.checkKey(TestLoginKeyTable.SHARDS, getDatabaseID(), parameters);
 	}
 }
@@ -17,7 +17,7 @@ import vault_database.DatabaseUnavailableException;
  */
 public enum TestTable implements DatabaseTable
 {
-	// id (auto-increment) | name | friendID
+	// id (allocated in blocks) | name | friendID
 	
 	/**
 	 * This table holds the basic entity data
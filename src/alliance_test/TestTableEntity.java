@@ -1,5 +1,6 @@
 package alliance_test;
 
+import java.sql.SQLException;
 import java.util.Map;
 
 import nexus_http.HttpException;
@@ -8,6 +9,8 @@ import nexus_http.MethodType;
 import nexus_rest.RestEntity;
 import nexus_rest.SimpleRestData;
 import alliance_rest.DatabaseTableEntity;
+import alliance_rest.ServiceUnavailableException;
+import alliance_rest.UnitOfWork;
 
 /**
  * This test entity handles the contents of the testTable
@@ -37,11 +40,34 @@ public class TestTableEntity extends DatabaseTableEntity
 	{
 		return new TestDatabaseEntity(getPath() + "/", id);
 	}
+	
+	@Override
+	protected RestEntity loadEntityWithID(long id) throws HttpException
+	{
+		return new TestDatabaseEntity(getPath() + "/", id);
+	}
 
 	@Override
 	public RestEntity Post(Map<String, String> parameters) throws HttpException
 	{
-		return new TestDatabaseEntity(this, parameters);
+		startRequest(parameters);
+		
+		// The entity and its secure are committed together
+		UnitOfWork work = UnitOfWork.begin();
+		try
+		{
+			RestEntity entity = new TestDatabaseEntity(this, parameters);
+			work.commit();
+			return entity;
+		}
+		catch (SQLException e)
+		{
+			throw ServiceUnavailableException.wrap("Couldn't save the new entity", e);
+		}
+		finally
+		{
+			work.close();
+		}
 	}
 
 	@Override
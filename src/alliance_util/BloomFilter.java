@@ -0,0 +1,137 @@
+package alliance_util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * BloomFilter remembers a set of strings in a small, fixed amount of memory. The filter
+ * can tell for certain that a value has never been added, but it may also claim that a
+ * value was added even when it wasn't. Values can't be removed from the filter. The filter
+ * can be used by multiple threads at the same time.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class BloomFilter
+{
+	// ATTRIBUTES	-------------------------
+	
+	private final AtomicLongArray bits;
+	private final int bitAmount, hashAmount;
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	/**
+	 * Creates a new empty filter
+	 * @param expectedValues How many values are expected to be added to the filter
+	 * @param falsePositiveRate How often the filter may falsely claim that a value was
+	 * added when the expected amount of values has been added (0, 1)
+	 */
+	public BloomFilter(int expectedValues, double falsePositiveRate)
+	{
+		if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+			throw new IllegalArgumentException(
+					"The false positive rate must be between 0 and 1");
+		
+		// Uses the optimal amount of bits and hash functions for the expected values
+		int values = Math.max(1, expectedValues);
+		long optimalBits = (long) Math.ceil(-values * Math.log(falsePositiveRate) /
+				(Math.log(2) * Math.log(2)));
+		this.bitAmount = (int) Math.max(64, Math.min(optimalBits, Integer.MAX_VALUE - 63));
+		this.hashAmount = Math.max(1, (int) Math.round((double) this.bitAmount / values *
+				Math.log(2)));
+		this.bits = new AtomicLongArray((this.bitAmount + 63) / 64);
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Adds a value to the filter
+	 * @param value The value that is added
+	 */
+	public void add(String value)
+	{
+		long hash = hash(value);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		
+		for (int i = 0; i < this.hashAmount; i++)
+		{
+			int bit = bitIndex(hash1 + i * hash2);
+			int word = bit >>> 6;
+			long mask = 1l << bit;
+			
+			long current = this.bits.get(word);
+			while ((current & mask) == 0 && !this.bits.compareAndSet(word, current,
+					current | mask))
+			{
+				current = this.bits.get(word);
+			}
+		}
+	}
+	
+	/**
+	 * Checks whether the value may have been added to the filter
+	 * @param value The value that is checked
+	 * @return False if the value definitely hasn't been added. True if it probably has.
+	 */
+	public boolean mightContain(String value)
+	{
+		long hash = hash(value);
+		int hash1 = (int) hash;
+		int hash2 = (int) (hash >>> 32);
+		
+		for (int i = 0; i < this.hashAmount; i++)
+		{
+			int bit = bitIndex(hash1 + i * hash2);
+			if ((this.bits.get(bit >>> 6) & (1l << bit)) == 0)
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * @return How many bits the filter uses
+	 */
+	public int getBitAmount()
+	{
+		return this.bitAmount;
+	}
+	
+	/**
+	 * @return How many bits are set for each value
+	 */
+	public int getHashAmount()
+	{
+		return this.hashAmount;
+	}
+	
+	private int bitIndex(int combinedHash)
+	{
+		// Negative hashes are flipped so that each bit can be reached
+		return (combinedHash < 0 ? ~combinedHash : combinedHash) % this.bitAmount;
+	}
+	
+	private static long hash(String value)
+	{
+		// 64-bit FNV-1a over the utf-8 bytes, finished with the murmur3 mixer so that both
+		// halves can be used as separate hashes
+		long hash = 0xcbf29ce484222325l;
+		for (byte b : value.getBytes(StandardCharsets.UTF_8))
+		{
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3l;
+		}
+		
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdl;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53l;
+		hash ^= hash >>> 33;
+		
+		return hash;
+	}
+}
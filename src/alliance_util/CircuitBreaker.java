@@ -0,0 +1,285 @@
+package alliance_util;
+
+import java.sql.SQLException;
+import java.sql.SQLNonTransientConnectionException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransactionRollbackException;
+import java.sql.SQLTransientException;
+
+/**
+ * CircuitBreaker keeps track of the recent calls made to a data source. If too many of
+ * the calls fail or are too slow, the breaker opens and the following calls fail
+ * immediately instead of waiting for the data source. After a while, the breaker lets a
+ * few probe calls through (half-open). If the probes succeed, the breaker closes again,
+ * otherwise it stays open for another while.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class CircuitBreaker
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private final String name;
+	private final double failureRateThreshold, slowRateThreshold;
+	private final long slowCallMillis, openMillis;
+	private final int minimumCalls, probeAmount;
+	
+	private final boolean[] failedCalls, slowCalls;
+	private int callIndex = 0, callAmount = 0, failureAmount = 0, slowAmount = 0;
+	
+	private State state = State.CLOSED;
+	private long stateChanged = System.currentTimeMillis();
+	private int probesStarted = 0, probesSucceeded = 0;
+	private long rejectedAmount = 0, openedAmount = 0;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new closed breaker
+	 * @param name The name of the data source the breaker protects
+	 * @param windowSize How many of the most recent calls are considered
+	 * @param minimumCalls How many calls there must be in the window before the breaker
+	 * may open
+	 * @param failureRateThreshold The portion of failed calls [0, 1] that opens the
+	 * breaker
+	 * @param slowCallMillis How long a call may take before it is considered slow
+	 * @param slowRateThreshold The portion of slow calls [0, 1] that opens the breaker
+	 * @param openSeconds How long the breaker stays open before the probe calls are let
+	 * through
+	 * @param probeAmount How many probe calls must succeed before the breaker closes
+	 */
+	public CircuitBreaker(String name, int windowSize, int minimumCalls,
+			double failureRateThreshold, long slowCallMillis, double slowRateThreshold,
+			int openSeconds, int probeAmount)
+	{
+		this.name = name;
+		this.failedCalls = new boolean[Math.max(1, windowSize)];
+		this.slowCalls = new boolean[this.failedCalls.length];
+		this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.failedCalls.length));
+		this.failureRateThreshold = failureRateThreshold;
+		this.slowCallMillis = slowCallMillis;
+		this.slowRateThreshold = slowRateThreshold;
+		this.openMillis = openSeconds * 1000l;
+		this.probeAmount = Math.max(1, probeAmount);
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public synchronized String toString()
+	{
+		return this.name + ": " + this.state + ", failures " + this.failureAmount + "/" +
+				this.callAmount + ", slow " + this.slowAmount + "/" + this.callAmount +
+				", opened " + this.openedAmount + " times, rejected " + this.rejectedAmount;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Checks whether a call may be made to the data source. Each permitted call should be
+	 * followed by {@link #recordSuccess(long)} or {@link #recordFailure(long)}.
+	 * @throws CircuitOpenException If the breaker is open and the call should not be made
+	 */
+	public synchronized void acquirePermission() throws CircuitOpenException
+	{
+		long now = System.currentTimeMillis();
+		
+		if (this.state == State.OPEN && now - this.stateChanged >= this.openMillis)
+			changeState(State.HALF_OPEN, now);
+		
+		// Probes that never reported back are replaced after a while
+		if (this.state == State.HALF_OPEN && this.probesStarted >= this.probeAmount &&
+				now - this.stateChanged >= this.openMillis)
+			changeState(State.HALF_OPEN, now);
+		
+		if (this.state == State.OPEN || (this.state == State.HALF_OPEN &&
+				this.probesStarted >= this.probeAmount))
+		{
+			this.rejectedAmount ++;
+			throw new CircuitOpenException("The database " + this.name +
+					" is currently unavailable");
+		}
+		
+		if (this.state == State.HALF_OPEN)
+			this.probesStarted ++;
+	}
+	
+	/**
+	 * Records a call that was completed
+	 * @param millis How long the call took
+	 */
+	public synchronized void recordSuccess(long millis)
+	{
+		record(false, millis);
+	}
+	
+	/**
+	 * Records a call that failed because of the data source
+	 * @param millis How long the call took
+	 */
+	public synchronized void recordFailure(long millis)
+	{
+		record(true, millis);
+	}
+	
+	/**
+	 * Records a call and classifies it based on the error it produced. Errors that are
+	 * caused by the data source being unreachable or overloaded count as failures. Other
+	 * errors (like constraint violations) mean that the data source is responding normally.
+	 * @param millis How long the call took
+	 * @param error The error produced by the call. Null if the call succeeded.
+	 */
+	public void record(long millis, SQLException error)
+	{
+		if (error != null && isDataSourceFailure(error))
+			recordFailure(millis);
+		else
+			recordSuccess(millis);
+	}
+	
+	/**
+	 * @return The current state of the breaker
+	 */
+	public synchronized State getState()
+	{
+		return this.state;
+	}
+	
+	/**
+	 * @return How many calls have been rejected because the breaker was open
+	 */
+	public synchronized long getRejectedAmount()
+	{
+		return this.rejectedAmount;
+	}
+	
+	/**
+	 * @return How many times the breaker has opened
+	 */
+	public synchronized long getOpenedAmount()
+	{
+		return this.openedAmount;
+	}
+	
+	/**
+	 * @return The name of the data source the breaker protects
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+	
+	/**
+	 * Checks whether an error was caused by the data source being unreachable, overloaded
+	 * or too slow
+	 * @param error An error
+	 * @return Was the error caused by the data source
+	 */
+	public static boolean isDataSourceFailure(SQLException error)
+	{
+		// Deadlocks and other rolled back transactions are caused by the operations themselves
+		if (error instanceof SQLTransactionRollbackException)
+			return false;
+		if (error instanceof SQLTransientException || 
+				error instanceof SQLRecoverableException || 
+				error instanceof SQLNonTransientConnectionException)
+			return true;
+		
+		// SQL state class 08 stands for connection exceptions
+		String sqlState = error.getSQLState();
+		return sqlState != null && sqlState.startsWith("08");
+	}
+	
+	private void record(boolean failed, long millis)
+	{
+		long now = System.currentTimeMillis();
+		boolean slow = millis >= this.slowCallMillis;
+		
+		if (this.state == State.HALF_OPEN)
+		{
+			if (failed || slow)
+				changeState(State.OPEN, now);
+			else if (++ this.probesSucceeded >= this.probeAmount)
+				changeState(State.CLOSED, now);
+			return;
+		}
+		if (this.state == State.OPEN)
+			return;
+		
+		// The oldest call in the window is replaced
+		if (this.callAmount == this.failedCalls.length)
+		{
+			if (this.failedCalls[this.callIndex])
+				this.failureAmount --;
+			if (this.slowCalls[this.callIndex])
+				this.slowAmount --;
+		}
+		else
+			this.callAmount ++;
+		
+		this.failedCalls[this.callIndex] = failed;
+		this.slowCalls[this.callIndex] = slow;
+		if (failed)
+			this.failureAmount ++;
+		if (slow)
+			this.slowAmount ++;
+		this.callIndex = (this.callIndex + 1) % this.failedCalls.length;
+		
+		if (this.callAmount >= this.minimumCalls &&
+				(this.failureAmount >= this.failureRateThreshold * this.callAmount ||
+				this.slowAmount >= this.slowRateThreshold * this.callAmount))
+			changeState(State.OPEN, now);
+	}
+	
+	private void changeState(State newState, long now)
+	{
+		if (newState == State.OPEN && this.state != State.OPEN)
+		{
+			this.openedAmount ++;
+			System.err.println("Circuit breaker of " + this.name + " opened");
+		}
+		
+		this.state = newState;
+		this.stateChanged = now;
+		this.probesStarted = 0;
+		this.probesSucceeded = 0;
+		
+		// A closed breaker starts with a clean window
+		if (newState == State.CLOSED)
+		{
+			this.callIndex = 0;
+			this.callAmount = 0;
+			this.failureAmount = 0;
+			this.slowAmount = 0;
+		}
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	/**
+	 * These are the states a circuit breaker can be in
+	 * 
+	 * @author Mikko Hilpinen
+	 * @since 11.6.2015
+	 */
+	public static enum State
+	{
+		/**
+		 * The calls are made normally
+		 */
+		CLOSED,
+		/**
+		 * The calls are rejected
+		 */
+		OPEN,
+		/**
+		 * A few probe calls are let through to test whether the data source has recovered
+		 */
+		HALF_OPEN;
+	}
+}
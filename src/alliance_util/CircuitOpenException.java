@@ -0,0 +1,29 @@
+package alliance_util;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * These exceptions are thrown instead of calling a data source when its circuit breaker
+ * is open. The call may succeed once the data source has recovered.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class CircuitOpenException extends SQLTransientConnectionException
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long serialVersionUID = 1L;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new exception
+	 * @param message The message sent along with the exception
+	 */
+	public CircuitOpenException(String message)
+	{
+		super(message);
+	}
+}
@@ -0,0 +1,716 @@
+package alliance_util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ConnectionManager opens direct jdbc connections to the same databases the 
+ * DatabaseAccessor uses. The operations that can't be expressed through the 
+ * DatabaseAccessor are executed on these connections with {@link TableOperations}. The 
+ * manager should be initialized with the same settings as the DatabaseSettings.
+ * <br>
+ * Reads may be routed to read replicas of the primary database. A read goes to the primary 
+ * database for a short while after a write to the same database so that the changes are 
+ * visible even if the replicas haven't received them yet. If the thread has a session, 
+ * only the writes made in that session are considered. The requests start their sessions 
+ * with {@link #startSession(Object)}. Without a session (Eg. in the maintenance tasks), all 
+ * writes to the database are considered.
+ * <br>
+ * The statements executed through the connections are limited by the current 
+ * {@link RequestDeadline}.
+ * <br>
+ * The connections may also be pooled. Each connection is then opened for a certain usage 
+ * (Eg. "entities.read"), which the pool uses for its statistics.
+ * 
+ * @author Mikko Hilpinen
+ * @since 4.6.2015
+ */
+public class ConnectionManager
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static DataSource primary = null;
+	private static PoolSettings poolSettings = null;
+	private static BreakerSettings breakerSettings = null;
+	
+	private static final int MAX_TRACKED_WRITES = 10000;
+	private static final AtomicLong nextSessionID = new AtomicLong();
+	
+	private static final List<DataSource> replicas = new CopyOnWriteArrayList<>();
+	private static final AtomicInteger nextReplica = new AtomicInteger();
+	private static final Map<String, Long> lastWrites = new ConcurrentHashMap<>();
+	private static final ThreadLocal<Session> session = new ThreadLocal<>();
+	private static volatile long stickyMillis = 5000;
+	
+	private static final ThreadLocal<Map<String, Connection>> sharedConnections = 
+			new ThreadLocal<>();
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	private ConnectionManager()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Initializes the connection settings. These should be the same as the ones used
+	 * for initializing the DatabaseSettings.
+	 * @param connectionTarget The address of the database server
+	 * (Eg. "jdbc:mysql://localhost:3306/")
+	 * @param user The user name used for the connection
+	 * @param password The password used for the connection
+	 * @param maxRowsPerTable How many rows a physical table may hold before the inserts 
+	 * go to a new one. 0 if the tables are never divided.
+	 * @param indexDatabaseName The name of the database that holds the table amount index
+	 * @param indexTableName The name of the table that holds the table amount index
+	 */
+	public static void initialize(String connectionTarget, String user, String password,
+			int maxRowsPerTable, String indexDatabaseName, String indexTableName)
+	{
+		ConnectionManager.primary = new DataSource(connectionTarget, user, password);
+		TableOperations.configure(maxRowsPerTable, indexDatabaseName, indexTableName);
+	}
+	
+	/**
+	 * Opens a new connection to the given database. The connection must be closed
+	 * afterwards.
+	 * @param databaseName The name of the database the connection is opened to
+	 * @return A connection to the database
+	 * @throws SQLException If the connection couldn't be opened
+	 */
+	public static Connection openConnection(String databaseName) throws SQLException
+	{
+		return openConnection(databaseName, databaseName);
+	}
+	
+	/**
+	 * Opens a new connection to the given database. The connection must be closed
+	 * afterwards.
+	 * @param databaseName The name of the database the connection is opened to
+	 * @param usage What the connection is used for (Eg. "entities.read")
+	 * @return A connection to the database
+	 * @throws SQLException If the connection couldn't be opened. 
+	 * {@link ConnectionPoolTimeoutException} if the connections are pooled and none became 
+	 * available in time.
+	 */
+	public static Connection openConnection(String databaseName, String usage) 
+			throws SQLException
+	{
+		// A thread that already holds a connection to the database doesn't take another
+		Connection shared = getSharedConnection(databaseName);
+		if (shared != null)
+			return shared;
+		
+		DataSource source = primary;
+		if (source == null)
+			throw new SQLException("ConnectionManager hasn't been initialized");
+		
+		return source.openConnection(databaseName, usage, true);
+	}
+	
+	/**
+	 * Opens a connection that isn't shared with the other operations of the thread and 
+	 * doesn't come from the pool. The connection can be used for a separate transaction 
+	 * even while the thread is holding pooled connections. Opening the connection takes 
+	 * longer, so this should only be used for rare operations.
+	 * @param databaseName The name of the database the connection is opened to
+	 * @param usage What the connection is used for (Eg. "entities.allocate")
+	 * @return A new connection to the database. The connection must be closed afterwards.
+	 * @throws SQLException If the connection couldn't be opened
+	 */
+	public static Connection openSeparateConnection(String databaseName, String usage) 
+			throws SQLException
+	{
+		DataSource source = primary;
+		if (source == null)
+			throw new SQLException("ConnectionManager hasn't been initialized");
+		
+		return source.openConnection(databaseName, usage, false);
+	}
+	
+	/**
+	 * Makes the following operations of the current thread use the given connection for 
+	 * the database instead of opening new ones. This way a thread that is holding a 
+	 * connection doesn't wait for another one from the pool, which could exhaust the pool. 
+	 * The operations can't commit, roll back or close the shared connection, since the 
+	 * transaction belongs to the caller.
+	 * @param databaseName The name of the database the connection is for
+	 * @param connection The connection that is shared
+	 */
+	public static void shareConnection(String databaseName, Connection connection)
+	{
+		Map<String, Connection> connections = sharedConnections.get();
+		if (connections == null)
+		{
+			connections = new HashMap<>();
+			sharedConnections.set(connections);
+		}
+		connections.put(databaseName, connection);
+	}
+	
+	/**
+	 * Stops sharing the connections of the current thread. This should be called before 
+	 * the shared connections are closed.
+	 */
+	public static void stopSharingConnections()
+	{
+		sharedConnections.remove();
+	}
+	
+	/**
+	 * Starts pooling the connections of the primary database and its replicas. This should 
+	 * be called right after {@link #initialize(String, String, String, int, String, String)}.
+	 * @param minIdle How many unused connections are kept open at least
+	 * @param maxSize How many connections may be open to a single server at once
+	 * @param acquireTimeoutMillis How long an operation may wait for a connection
+	 * @param leakThresholdMillis How long a connection may be held before it is reported 
+	 * as a possible leak. 0 disables the leak detection.
+	 */
+	public static void enablePool(int minIdle, int maxSize, long acquireTimeoutMillis, 
+			long leakThresholdMillis)
+	{
+		enablePool(minIdle, maxSize, acquireTimeoutMillis, leakThresholdMillis, 0);
+	}
+	
+	/**
+	 * Starts pooling the connections of the primary database and its replicas. This should 
+	 * be called right after {@link #initialize(String, String, String, int, String, String)}.
+	 * @param minIdle How many unused connections are kept open at least
+	 * @param maxSize How many connections may be open to a single server at once
+	 * @param acquireTimeoutMillis How long an operation may wait for a connection
+	 * @param leakThresholdMillis How long a connection may be held before it is reported 
+	 * as a possible leak. 0 disables the leak detection.
+	 * @param leakTraceInterval The place where a connection was acquired is recorded for 
+	 * every nth acquisition and shown if the connection leaks. 0 records none of them, 
+	 * which avoids the cost of a stack trace on each acquisition.
+	 */
+	public static void enablePool(int minIdle, int maxSize, long acquireTimeoutMillis, 
+			long leakThresholdMillis, int leakTraceInterval)
+	{
+		poolSettings = new PoolSettings(minIdle, maxSize, acquireTimeoutMillis, 
+				leakThresholdMillis, leakTraceInterval);
+		recreateDataSources();
+	}
+	
+	/**
+	 * Opens connections to the given database in each pool until the minimum amount of 
+	 * connections is idle. This should be called at startup for the databases the server 
+	 * uses, after {@link #enablePool(int, int, long, long)} and the replicas have been set.
+	 * @param databaseName The name of the database the connections are opened to
+	 * @throws SQLException If a connection couldn't be opened
+	 */
+	public static void fillPools(String databaseName) throws SQLException
+	{
+		for (ConnectionPool pool : getPools())
+		{
+			pool.fill(databaseName);
+		}
+	}
+	
+	/**
+	 * Protects the primary database and each replica with a circuit breaker. When a 
+	 * breaker is open, the operations fail immediately with a {@link CircuitOpenException} 
+	 * and the reads go to the other replicas or the primary database, if possible. This 
+	 * should be called right after {@link #initialize(String, String, String, int, String, String)}.
+	 * @param windowSize How many of the most recent statements are considered
+	 * @param minimumCalls How many statements must have been executed before a breaker may 
+	 * open
+	 * @param failureRateThreshold The portion of failed statements [0, 1] that opens a 
+	 * breaker
+	 * @param slowCallMillis How long a statement may take before it is considered slow
+	 * @param slowRateThreshold The portion of slow statements [0, 1] that opens a breaker
+	 * @param openSeconds How long a breaker stays open before probing the database again
+	 * @param probeAmount How many probe statements must succeed before a breaker closes
+	 */
+	public static void enableCircuitBreakers(int windowSize, int minimumCalls, 
+			double failureRateThreshold, long slowCallMillis, double slowRateThreshold, 
+			int openSeconds, int probeAmount)
+	{
+		breakerSettings = new BreakerSettings(windowSize, minimumCalls, failureRateThreshold, 
+				slowCallMillis, slowRateThreshold, openSeconds, probeAmount);
+		recreateDataSources();
+	}
+	
+	/**
+	 * @return The circuit breakers of the primary database and the replicas. Empty if the 
+	 * breakers haven't been enabled.
+	 */
+	public static List<CircuitBreaker> getCircuitBreakers()
+	{
+		List<CircuitBreaker> breakers = new ArrayList<>();
+		if (primary != null && primary.breaker != null)
+			breakers.add(primary.breaker);
+		for (DataSource replica : replicas)
+		{
+			if (replica.breaker != null)
+				breakers.add(replica.breaker);
+		}
+		
+		return breakers;
+	}
+	
+	/**
+	 * @return Has the manager been initialized. If not, only the operations that can be 
+	 * made through the DatabaseAccessor are available.
+	 */
+	public static boolean isInitialized()
+	{
+		return primary != null;
+	}
+	
+	/**
+	 * Makes sure that the primary database may be used. This should be called before 
+	 * the operations that don't use the connections of this class.
+	 * @throws CircuitOpenException If the circuit breaker of the primary database is open
+	 */
+	public static void checkAvailable() throws CircuitOpenException
+	{
+		DataSource source = primary;
+		if (source != null && source.breaker != null && 
+				source.breaker.getState() == CircuitBreaker.State.OPEN)
+			source.breaker.acquirePermission();
+	}
+	
+	/**
+	 * @return The connection pools of the primary database and the replicas. Empty if the 
+	 * connections aren't pooled.
+	 */
+	public static List<ConnectionPool> getPools()
+	{
+		List<ConnectionPool> pools = new ArrayList<>();
+		if (primary != null && primary.pool != null)
+			pools.add(primary.pool);
+		for (DataSource replica : replicas)
+		{
+			if (replica.pool != null)
+				pools.add(replica.pool);
+		}
+		
+		return pools;
+	}
+	
+	/**
+	 * Adds a new read replica. Once replicas have been added, the reads are distributed 
+	 * among them.
+	 * @param connectionTarget The address of the replica database server 
+	 * (Eg. "jdbc:mysql://replica1:3306/")
+	 * @param user The user name used for the connection
+	 * @param password The password used for the connection
+	 */
+	public static void addReplica(String connectionTarget, String user, String password)
+	{
+		replicas.add(new DataSource(connectionTarget, user, password));
+	}
+	
+	/**
+	 * Changes how long the reads go to the primary database after a write
+	 * @param millis How long the reads go to the primary database after a write in 
+	 * milliseconds (default 5000). This should be longer than the usual replication lag.
+	 */
+	public static void setReadYourWritesWindow(long millis)
+	{
+		stickyMillis = millis;
+	}
+	
+	/**
+	 * @return Are the reads distributed among read replicas
+	 */
+	public static boolean usesReplicas()
+	{
+		return !replicas.isEmpty();
+	}
+	
+	/**
+	 * Sets the session of the current thread. Only the writes made in the same session make 
+	 * the reads go to the primary database. The session should be cleared once the 
+	 * operations of the session have been completed.
+	 * @param sessionID The identifier of the session (Eg. a user id). Null clears the 
+	 * session.
+	 */
+	public static void setSession(String sessionID)
+	{
+		if (sessionID == null)
+			session.remove();
+		else
+			session.set(new Session(sessionID, null));
+	}
+	
+	/**
+	 * Starts a new session for the request handled by the current thread. The session 
+	 * isn't shared with any other request until it is authenticated with 
+	 * {@link #authenticateSession(String)}. If the thread's session already belongs to the 
+	 * same request, it is kept so that the nested lookups of the request share the 
+	 * session. Since the server doesn't tell when a request has been completed, the 
+	 * session ends when the thread starts its next request.
+	 * @param request The object that identifies the request (Eg. the parameters of the 
+	 * request). The objects are compared by identity.
+	 */
+	public static void startSession(Object request)
+	{
+		Session previous = session.get();
+		if (previous != null && previous.request == request)
+			return;
+		
+		session.set(new Session("request " + nextSessionID.incrementAndGet(), request));
+	}
+	
+	/**
+	 * Ties the session of the current request to a user once the user has been 
+	 * authenticated. The writes made in the session after this make the reads go to the 
+	 * primary database in the user's other authenticated requests as well. Nothing is done 
+	 * if the thread doesn't have a session.
+	 * @param userID The identifier of the authenticated user
+	 */
+	public static void authenticateSession(String userID)
+	{
+		Session current = session.get();
+		if (current != null)
+			session.set(new Session("user " + userID, current.request));
+	}
+	
+	/**
+	 * Opens a new connection for reading from the given database. The connection is opened 
+	 * to a read replica unless the database has been written to recently, or if there are 
+	 * no replicas. If a replica can't be reached, the next one is tried and finally the 
+	 * primary database. The connection must be closed afterwards and it must not be used 
+	 * for writing.
+	 * @param databaseName The name of the database the connection is opened to
+	 * @return A connection to the database or to one of its replicas
+	 * @throws SQLException If the connection couldn't be opened
+	 */
+	public static Connection openReadConnection(String databaseName) throws SQLException
+	{
+		return openReadConnection(databaseName, databaseName);
+	}
+	
+	/**
+	 * Opens a new connection for reading from the given database. The connection is opened 
+	 * to a read replica unless the database has been written to recently, or if there are 
+	 * no replicas. If a replica can't be reached, the next one is tried and finally the 
+	 * primary database. The connection must be closed afterwards and it must not be used 
+	 * for writing.
+	 * @param databaseName The name of the database the connection is opened to
+	 * @param usage What the connection is used for (Eg. "entities.read")
+	 * @return A connection to the database or to one of its replicas
+	 * @throws SQLException If the connection couldn't be opened
+	 */
+	public static Connection openReadConnection(String databaseName, String usage) 
+			throws SQLException
+	{
+		// The reads of a transaction see its own changes
+		Connection shared = getSharedConnection(databaseName);
+		if (shared != null)
+			return shared;
+		
+		int replicaAmount = replicas.size();
+		if (replicaAmount == 0 || wasRecentlyWritten(databaseName))
+			return openConnection(databaseName, usage);
+		
+		int first = nextReplica.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < replicaAmount; i++)
+		{
+			try
+			{
+				return replicas.get((first + i) % replicaAmount).openConnection(databaseName, 
+						usage, true);
+			}
+			catch (SQLException | IndexOutOfBoundsException e)
+			{
+				// Tries the next replica
+			}
+		}
+		
+		return openConnection(databaseName, usage);
+	}
+	
+	/**
+	 * Informs that the database has been written to. The following reads in the same 
+	 * session go to the primary database for a while. The operations of this class record 
+	 * their writes automatically.
+	 * @param databaseName The name of the database that was written to
+	 */
+	public static void recordWrite(String databaseName)
+	{
+		if (replicas.isEmpty())
+			return;
+		
+		long now = System.currentTimeMillis();
+		Session currentSession = session.get();
+		lastWrites.put(databaseName, now);
+		if (currentSession != null)
+			lastWrites.put(databaseName + "/" + currentSession.id, now);
+		
+		// The expired writes are removed once there are many of them
+		if (lastWrites.size() > MAX_TRACKED_WRITES)
+		{
+			Iterator<Long> writeTimes = lastWrites.values().iterator();
+			while (writeTimes.hasNext())
+			{
+				if (now - writeTimes.next() > stickyMillis)
+					writeTimes.remove();
+			}
+		}
+	}
+	
+	/**
+	 * Closes the connection, if possible. Errors are ignored.
+	 * @param connection The connection that will be closed (may be null)
+	 */
+	public static void closeConnection(Connection connection)
+	{
+		if (connection == null)
+			return;
+		
+		try
+		{
+			connection.close();
+		}
+		catch (SQLException e)
+		{
+			// Ignored
+		}
+	}
+	
+	private static Connection getSharedConnection(String databaseName)
+	{
+		Map<String, Connection> connections = sharedConnections.get();
+		if (connections == null)
+			return null;
+		
+		final Connection connection = connections.get(databaseName);
+		if (connection == null)
+			return null;
+		
+		// The transaction and the connection are controlled by the owner
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable
+			{
+				switch (method.getName())
+				{
+					case "close":
+					case "commit":
+					case "rollback":
+					case "setAutoCommit":
+						return null;
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+				}
+				
+				try
+				{
+					return method.invoke(connection, args);
+				}
+				catch (InvocationTargetException e)
+				{
+					throw e.getCause();
+				}
+			}
+		});
+	}
+	
+	private static void recreateDataSources()
+	{
+		// The connections of the replaced pools are closed once they are no longer used
+		DataSource previous = primary;
+		if (previous != null)
+		{
+			primary = new DataSource(previous.connectionTarget, previous.user, 
+					previous.password);
+			previous.close();
+		}
+		for (int i = 0; i < replicas.size(); i++)
+		{
+			DataSource replica = replicas.get(i);
+			replicas.set(i, new DataSource(replica.connectionTarget, replica.user, 
+					replica.password));
+			replica.close();
+		}
+	}
+	
+	private static boolean wasRecentlyWritten(String databaseName)
+	{
+		// Without a session, any write counts. Otherwise only the writes of the same 
+		// session count, so the writes of the other requests and the maintenance tasks 
+		// don't keep the reads away from the replicas.
+		Session currentSession = session.get();
+		Long writeTime = lastWrites.get(currentSession == null ? databaseName : 
+				databaseName + "/" + currentSession.id);
+		return writeTime != null && System.currentTimeMillis() - writeTime <= stickyMillis;
+	}
+	
+	
+	// SUBCLASSES	-------------------------
+	
+	private static class DataSource
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final String connectionTarget, user, password;
+		private final ConnectionPool pool;
+		private final CircuitBreaker breaker;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public DataSource(String connectionTarget, String user, String password)
+		{
+			this.connectionTarget = connectionTarget;
+			this.user = user;
+			this.password = password;
+			
+			if (poolSettings == null)
+				this.pool = null;
+			else
+				this.pool = new ConnectionPool(connectionTarget, user, password, 
+						poolSettings.minIdle, poolSettings.maxSize, 
+						poolSettings.acquireTimeoutMillis, poolSettings.leakThresholdMillis, 
+						poolSettings.leakTraceInterval);
+			
+			if (breakerSettings == null)
+				this.breaker = null;
+			else
+				this.breaker = new CircuitBreaker(connectionTarget, 
+						breakerSettings.windowSize, breakerSettings.minimumCalls, 
+						breakerSettings.failureRateThreshold, breakerSettings.slowCallMillis, 
+						breakerSettings.slowRateThreshold, breakerSettings.openSeconds, 
+						breakerSettings.probeAmount);
+		}
+		
+		
+		// OTHER METHODS	-----------------
+		
+		public Connection openConnection(String databaseName, String usage, boolean pooled) 
+				throws SQLException
+		{
+			// Queued operations are abandoned once the request's deadline has passed
+			RequestDeadline.check();
+			if (this.breaker == null)
+				return MonitoredConnections.wrap(connect(databaseName, usage, pooled), null);
+			
+			// Connection failures count towards opening the breaker as well
+			this.breaker.acquirePermission();
+			long started = System.currentTimeMillis();
+			Connection connection;
+			try
+			{
+				connection = connect(databaseName, usage, pooled);
+			}
+			catch (ConnectionPoolTimeoutException e)
+			{
+				// A busy pool says nothing about the database itself
+				throw e;
+			}
+			catch (SQLException e)
+			{
+				this.breaker.record(System.currentTimeMillis() - started, e);
+				throw e;
+			}
+			
+			return MonitoredConnections.wrap(connection, this.breaker);
+		}
+		
+		public void close()
+		{
+			if (this.pool != null)
+				this.pool.close();
+		}
+		
+		private Connection connect(String databaseName, String usage, boolean pooled) 
+				throws SQLException
+		{
+			if (pooled && this.pool != null)
+				return this.pool.acquire(databaseName, usage);
+			
+			return DriverManager.getConnection(this.connectionTarget + databaseName, 
+					this.user, this.password);
+		}
+	}
+	
+	private static class PoolSettings
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final int minIdle, maxSize, leakTraceInterval;
+		private final long acquireTimeoutMillis, leakThresholdMillis;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public PoolSettings(int minIdle, int maxSize, long acquireTimeoutMillis, 
+				long leakThresholdMillis, int leakTraceInterval)
+		{
+			this.minIdle = minIdle;
+			this.maxSize = maxSize;
+			this.acquireTimeoutMillis = acquireTimeoutMillis;
+			this.leakThresholdMillis = leakThresholdMillis;
+			this.leakTraceInterval = leakTraceInterval;
+		}
+	}
+	
+	private static class BreakerSettings
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final int windowSize, minimumCalls, openSeconds, probeAmount;
+		private final double failureRateThreshold, slowRateThreshold;
+		private final long slowCallMillis;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public BreakerSettings(int windowSize, int minimumCalls, 
+				double failureRateThreshold, long slowCallMillis, double slowRateThreshold, 
+				int openSeconds, int probeAmount)
+		{
+			this.windowSize = windowSize;
+			this.minimumCalls = minimumCalls;
+			this.failureRateThreshold = failureRateThreshold;
+			this.slowCallMillis = slowCallMillis;
+			this.slowRateThreshold = slowRateThreshold;
+			this.openSeconds = openSeconds;
+			this.probeAmount = probeAmount;
+		}
+	}
+	
+	private static class Session
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final String id;
+		// The request the session was started for. Null if the session was set directly.
+		private final Object request;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public Session(String id, Object request)
+		{
+			this.id = id;
+			this.request = request;
+		}
+	}
+}
@@ -0,0 +1,681 @@
+package alliance_util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ConnectionPool keeps a limited amount of database connections open and lends them to
+ * the operations that need them. A connection is returned to the pool when it is closed.
+ * If all the connections are in use, the operations wait until one is returned, but only
+ * until the acquisition timeout passes. Connections that are held longer than the leak
+ * threshold are reported. Capturing the place where a connection was acquired costs a 
+ * stack trace, so it is only done for a sample of the acquisitions, if at all.
+ * <br>
+ * The pool records how long each use had to wait for a connection and how long the
+ * connection was held. The durations are grouped by usage (Eg. "entities.read"), which
+ * shows which tables and operations the connections are spent on.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ConnectionPool
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long VALIDATION_IDLE_MILLIS = 30000;
+	private static final long MAX_IDLE_MILLIS = 600000;
+	private static final long LEAK_CHECK_INTERVAL_MILLIS = 1000;
+	
+	private final String connectionTarget, user, password;
+	private final int minIdle, maxSize;
+	private final long acquireTimeoutMillis, leakThresholdMillis;
+	private final int leakTraceInterval;
+	
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private final Condition returned = this.lock.newCondition();
+	private final Map<String, Deque<IdleConnection>> idle = new HashMap<>();
+	private final Map<Connection, Lease> leases = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LatencyHistogram> waitTimes =
+			new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, LatencyHistogram> useTimes =
+			new ConcurrentHashMap<>();
+	private final AtomicLong acquisitionAmount = new AtomicLong();
+	
+	private int openAmount = 0, idleAmount = 0;
+	private boolean closed = false;
+	private long timeoutAmount = 0, leakAmount = 0, lastLeakCheck = 0;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new pool. No connections are opened before they are needed or until 
+	 * {@link #fill(String)} is called.
+	 * @param connectionTarget The address of the database server
+	 * (Eg. "jdbc:mysql://localhost:3306/")
+	 * @param user The user name used for the connections
+	 * @param password The password used for the connections
+	 * @param minIdle How many unused connections are kept open at least
+	 * @param maxSize How many connections may be open at once
+	 * @param acquireTimeoutMillis How long an operation may wait for a connection
+	 * @param leakThresholdMillis How long a connection may be held before it is reported
+	 * as a possible leak. 0 disables the leak detection.
+	 */
+	public ConnectionPool(String connectionTarget, String user, String password,
+			int minIdle, int maxSize, long acquireTimeoutMillis, long leakThresholdMillis)
+	{
+		this(connectionTarget, user, password, minIdle, maxSize, acquireTimeoutMillis, 
+				leakThresholdMillis, 0);
+	}
+	
+	/**
+	 * Creates a new pool. No connections are opened before they are needed or until 
+	 * {@link #fill(String)} is called.
+	 * @param connectionTarget The address of the database server
+	 * (Eg. "jdbc:mysql://localhost:3306/")
+	 * @param user The user name used for the connections
+	 * @param password The password used for the connections
+	 * @param minIdle How many unused connections are kept open at least
+	 * @param maxSize How many connections may be open at once
+	 * @param acquireTimeoutMillis How long an operation may wait for a connection
+	 * @param leakThresholdMillis How long a connection may be held before it is reported
+	 * as a possible leak. 0 disables the leak detection.
+	 * @param leakTraceInterval The stack trace of every nth acquisition is recorded and 
+	 * shown if the connection leaks. 1 records every acquisition, 0 none of them.
+	 */
+	public ConnectionPool(String connectionTarget, String user, String password,
+			int minIdle, int maxSize, long acquireTimeoutMillis, long leakThresholdMillis, 
+			int leakTraceInterval)
+	{
+		this.connectionTarget = connectionTarget;
+		this.user = user;
+		this.password = password;
+		this.maxSize = Math.max(1, maxSize);
+		this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+		this.acquireTimeoutMillis = acquireTimeoutMillis;
+		this.leakThresholdMillis = leakThresholdMillis;
+		this.leakTraceInterval = leakThresholdMillis > 0 ? Math.max(0, leakTraceInterval) : 0;
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder s = new StringBuilder();
+		s.append(this.connectionTarget).append(": open ").append(getOpenAmount()).append(
+				", in use ").append(getActiveAmount()).append(", timeouts ").append(
+				getTimeoutAmount()).append(", leaks ").append(getLeakAmount());
+		
+		for (String usage : new TreeMap<>(this.waitTimes).keySet())
+		{
+			s.append("\n").append(usage).append(" wait: ").append(this.waitTimes.get(usage));
+			LatencyHistogram useTime = this.useTimes.get(usage);
+			if (useTime != null)
+				s.append("\n").append(usage).append(" use: ").append(useTime);
+		}
+		
+		return s.toString();
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Acquires a connection to the given database. The connection must be closed once it is
+	 * no longer used, which returns it to the pool.
+	 * @param databaseName The name of the database
+	 * @param usage What the connection is used for (Eg. "entities.read")
+	 * @return A connection to the database
+	 * @throws ConnectionPoolTimeoutException If no connection became available in time
+	 * @throws SQLException If a new connection couldn't be opened
+	 */
+	public Connection acquire(String databaseName, String usage) throws SQLException
+	{
+		long started = System.currentTimeMillis();
+		checkLeaks(started);
+		
+		Connection connection = null;
+		// The request's deadline may limit the wait further
+		long timeoutMillis = this.acquireTimeoutMillis;
+		long deadlineMillis = RequestDeadline.getRemainingMillis();
+		boolean limitedByDeadline = deadlineMillis >= 0 && deadlineMillis < timeoutMillis;
+		if (limitedByDeadline)
+			timeoutMillis = deadlineMillis;
+		long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		boolean opensNew = false;
+		
+		while (connection == null && !opensNew)
+		{
+			IdleConnection idleConnection = null;
+			this.lock.lock();
+			try
+			{
+				while (idleConnection == null && !opensNew)
+				{
+					idleConnection = pollIdle(databaseName);
+					if (idleConnection != null)
+						break;
+					
+					if (this.openAmount < this.maxSize)
+					{
+						this.openAmount ++;
+						opensNew = true;
+					}
+					// Connections to other databases are closed to make room
+					else if (!closeIdleConnection())
+					{
+						if (remainingNanos <= 0)
+						{
+							this.timeoutAmount ++;
+							getHistogram(this.waitTimes, usage).record(
+									System.currentTimeMillis() - started);
+							if (limitedByDeadline)
+								throw new DeadlineExceededException("The request's " + 
+										"deadline passed while waiting for a database " + 
+										"connection");
+							throw new ConnectionPoolTimeoutException("No database " + 
+									"connection became available in " + 
+									this.acquireTimeoutMillis + " ms (" + this.openAmount + 
+									" connections in use)");
+						}
+						try
+						{
+							remainingNanos = this.returned.awaitNanos(remainingNanos);
+						}
+						catch (InterruptedException e)
+						{
+							Thread.currentThread().interrupt();
+							throw new ConnectionPoolTimeoutException(
+									"Interrupted while waiting for a database connection");
+						}
+					}
+				}
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+			
+			// The validation requires a round trip to the server, so the other threads 
+			// are not kept waiting for it
+			if (idleConnection != null)
+			{
+				if (idleConnection.isUsable())
+					connection = idleConnection.connection;
+				else
+					discard(idleConnection.connection);
+			}
+		}
+		
+		// New connections are opened outside the lock since it may take a while
+		if (opensNew)
+		{
+			try
+			{
+				connection = DriverManager.getConnection(this.connectionTarget +
+						databaseName, this.user, this.password);
+			}
+			catch (SQLException | RuntimeException e)
+			{
+				discard(null);
+				throw e;
+			}
+		}
+		
+		long acquired = System.currentTimeMillis();
+		getHistogram(this.waitTimes, usage).record(acquired - started);
+		Connection pooled = wrap(connection, databaseName);
+		this.leases.put(pooled, new Lease(usage, acquired, isTraceSampled()));
+		
+		return pooled;
+	}
+	
+	/**
+	 * Opens connections to the given database until at least the minimum amount of 
+	 * connections is idle, so that the first operations don't have to wait for new 
+	 * connections.
+	 * @param databaseName The name of the database the connections are opened to
+	 * @return How many connections were opened
+	 * @throws SQLException If a connection couldn't be opened
+	 */
+	public int fill(String databaseName) throws SQLException
+	{
+		int opened = 0;
+		while (true)
+		{
+			this.lock.lock();
+			try
+			{
+				if (this.closed || this.idleAmount >= this.minIdle || 
+						this.openAmount >= this.maxSize)
+					return opened;
+				this.openAmount ++;
+			}
+			finally
+			{
+				this.lock.unlock();
+			}
+			
+			Connection connection;
+			try
+			{
+				connection = DriverManager.getConnection(this.connectionTarget +
+						databaseName, this.user, this.password);
+			}
+			catch (SQLException | RuntimeException e)
+			{
+				discard(null);
+				throw e;
+			}
+			addIdle(connection, databaseName);
+			opened ++;
+		}
+	}
+	
+	/**
+	 * Closes the idle connections and stops pooling new ones. The connections that are 
+	 * still in use are closed once they are returned.
+	 */
+	public void close()
+	{
+		this.lock.lock();
+		try
+		{
+			this.closed = true;
+			for (Deque<IdleConnection> databaseIdle : this.idle.values())
+			{
+				while (!databaseIdle.isEmpty())
+				{
+					ConnectionManager.closeConnection(databaseIdle.pop().connection);
+					this.idleAmount --;
+					this.openAmount --;
+				}
+			}
+			this.returned.signalAll();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Finds the connections that have been held longer than the leak threshold. Each
+	 * leak is reported only once.
+	 * @return Descriptions of the connections that were found to be leaking
+	 */
+	public List<String> findLeaks()
+	{
+		List<String> leaks = new ArrayList<>();
+		if (this.leakThresholdMillis <= 0)
+			return leaks;
+		
+		long now = System.currentTimeMillis();
+		for (Lease lease : this.leases.values())
+		{
+			if (!lease.reported && now - lease.acquired > this.leakThresholdMillis)
+			{
+				lease.reported = true;
+				synchronized (this)
+				{
+					this.leakAmount ++;
+				}
+				leaks.add("Connection for " + lease.usage + " held for " +
+						(now - lease.acquired) + " ms");
+				System.err.println("Possible connection leak: connection for " +
+						lease.usage + " held for " + (now - lease.acquired) + " ms");
+				if (lease.origin != null)
+					lease.origin.printStackTrace();
+			}
+		}
+		
+		return leaks;
+	}
+	
+	/**
+	 * @return How many connections are currently open
+	 */
+	public int getOpenAmount()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.openAmount;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many connections are currently in use
+	 */
+	public int getActiveAmount()
+	{
+		return this.leases.size();
+	}
+	
+	/**
+	 * @return How many times an operation couldn't get a connection in time
+	 */
+	public long getTimeoutAmount()
+	{
+		this.lock.lock();
+		try
+		{
+			return this.timeoutAmount;
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return How many possible connection leaks have been found
+	 */
+	public synchronized long getLeakAmount()
+	{
+		return this.leakAmount;
+	}
+	
+	/**
+	 * @return How long the operations had to wait for a connection (usage, histogram)
+	 */
+	public Map<String, LatencyHistogram> getWaitTimes()
+	{
+		return Collections.unmodifiableMap(this.waitTimes);
+	}
+	
+	/**
+	 * @return How long the connections were held by the operations (usage, histogram)
+	 */
+	public Map<String, LatencyHistogram> getUseTimes()
+	{
+		return Collections.unmodifiableMap(this.useTimes);
+	}
+	
+	private void release(Connection pooled, Connection connection, String databaseName)
+	{
+		Lease lease = this.leases.remove(pooled);
+		if (lease == null)
+			return;
+		getHistogram(this.useTimes, lease.usage).record(
+				System.currentTimeMillis() - lease.acquired);
+		
+		// Unfinished transactions are rolled back before the connection is reused
+		try
+		{
+			if (connection.isClosed())
+			{
+				discard(null);
+				return;
+			}
+			if (!connection.getAutoCommit())
+			{
+				connection.rollback();
+				connection.setAutoCommit(true);
+			}
+		}
+		catch (SQLException e)
+		{
+			discard(connection);
+			return;
+		}
+		
+		addIdle(connection, databaseName);
+	}
+	
+	private void addIdle(Connection connection, String databaseName)
+	{
+		this.lock.lock();
+		try
+		{
+			// A closed pool doesn't keep any connections
+			if (this.closed)
+			{
+				ConnectionManager.closeConnection(connection);
+				this.openAmount --;
+				this.returned.signal();
+				return;
+			}
+			
+			Deque<IdleConnection> databaseIdle = this.idle.get(databaseName);
+			if (databaseIdle == null)
+			{
+				databaseIdle = new ArrayDeque<>();
+				this.idle.put(databaseName, databaseIdle);
+			}
+			databaseIdle.push(new IdleConnection(connection));
+			this.idleAmount ++;
+			closeExpiredConnections();
+			this.returned.signal();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	private void discard(Connection connection)
+	{
+		ConnectionManager.closeConnection(connection);
+		
+		this.lock.lock();
+		try
+		{
+			this.openAmount --;
+			this.returned.signal();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
+	}
+	
+	// Must be called while holding the lock
+	private IdleConnection pollIdle(String databaseName)
+	{
+		Deque<IdleConnection> databaseIdle = this.idle.get(databaseName);
+		if (databaseIdle == null || databaseIdle.isEmpty())
+			return null;
+		
+		this.idleAmount --;
+		return databaseIdle.pop();
+	}
+	
+	// Must be called while holding the lock
+	private boolean closeIdleConnection()
+	{
+		for (Deque<IdleConnection> databaseIdle : this.idle.values())
+		{
+			// The least recently used connection is closed
+			if (!databaseIdle.isEmpty())
+			{
+				ConnectionManager.closeConnection(databaseIdle.removeLast().connection);
+				this.idleAmount --;
+				this.openAmount --;
+				return true;
+			}
+		}
+		
+		return false;
+	}
+	
+	// Must be called while holding the lock
+	private void closeExpiredConnections()
+	{
+		long now = System.currentTimeMillis();
+		for (Deque<IdleConnection> databaseIdle : this.idle.values())
+		{
+			while (this.idleAmount > this.minIdle && !databaseIdle.isEmpty() &&
+					now - databaseIdle.peekLast().returned > MAX_IDLE_MILLIS)
+			{
+				ConnectionManager.closeConnection(databaseIdle.removeLast().connection);
+				this.idleAmount --;
+				this.openAmount --;
+			}
+		}
+	}
+	
+	private boolean isTraceSampled()
+	{
+		if (this.leakTraceInterval <= 0)
+			return false;
+		return this.acquisitionAmount.incrementAndGet() % this.leakTraceInterval == 0;
+	}
+	
+	private void checkLeaks(long now)
+	{
+		synchronized (this)
+		{
+			if (now - this.lastLeakCheck < LEAK_CHECK_INTERVAL_MILLIS)
+				return;
+			this.lastLeakCheck = now;
+		}
+		
+		findLeaks();
+	}
+	
+	private Connection wrap(final Connection connection, final String databaseName)
+	{
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new InvocationHandler()
+		{
+			private boolean closed = false;
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable
+			{
+				switch (method.getName())
+				{
+					case "close":
+						if (!this.closed)
+						{
+							this.closed = true;
+							release((Connection) proxy, connection, databaseName);
+						}
+						return null;
+					case "isClosed":
+						return this.closed || connection.isClosed();
+					case "equals":
+						return proxy == args[0];
+					case "hashCode":
+						return System.identityHashCode(proxy);
+					case "toString":
+						return "Pooled " + connection;
+				}
+				
+				if (this.closed)
+					throw new SQLException("The connection has already been closed");
+				
+				try
+				{
+					return method.invoke(connection, args);
+				}
+				catch (InvocationTargetException e)
+				{
+					throw e.getCause();
+				}
+			}
+		});
+	}
+	
+	private static LatencyHistogram getHistogram(
+			ConcurrentHashMap<String, LatencyHistogram> histograms, String usage)
+	{
+		LatencyHistogram histogram = histograms.get(usage);
+		if (histogram == null)
+		{
+			histogram = new LatencyHistogram();
+			LatencyHistogram existing = histograms.putIfAbsent(usage, histogram);
+			if (existing != null)
+				histogram = existing;
+		}
+		
+		return histogram;
+	}
+	
+	
+	// SUBCLASSES	-----------------------------
+	
+	private static class IdleConnection
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final Connection connection;
+		private final long returned;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		public IdleConnection(Connection connection)
+		{
+			this.connection = connection;
+			this.returned = System.currentTimeMillis();
+		}
+		
+		
+		// OTHER METHODS	---------------------
+		
+		public boolean isUsable()
+		{
+			// Connections that have been idle for a while may have been closed by the
+			// server
+			if (System.currentTimeMillis() - this.returned < VALIDATION_IDLE_MILLIS)
+				return true;
+			try
+			{
+				return this.connection.isValid(1);
+			}
+			catch (SQLException e)
+			{
+				return false;
+			}
+		}
+	}
+	
+	private static class Lease
+	{
+		// ATTRIBUTES	-------------------------
+		
+		private final String usage;
+		private final long acquired;
+		private final Throwable origin;
+		private volatile boolean reported = false;
+		
+		
+		// CONSTRUCTOR	-------------------------
+		
+		public Lease(String usage, long acquired, boolean recordOrigin)
+		{
+			this.usage = usage;
+			this.acquired = acquired;
+			// The stack trace shows where a leaking connection was acquired
+			this.origin = recordOrigin ? new Throwable("Connection acquired for " + usage) :
+					null;
+		}
+	}
+}
@@ -0,0 +1,30 @@
+package alliance_util;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * These exceptions are thrown when a connection couldn't be acquired from a connection
+ * pool in time because all of the connections were in use. The operation may succeed if
+ * it is retried later.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class ConnectionPoolTimeoutException extends SQLTransientConnectionException
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long serialVersionUID = 1L;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new exception
+	 * @param message The message sent along with the exception
+	 */
+	public ConnectionPoolTimeoutException(String message)
+	{
+		super(message);
+	}
+}
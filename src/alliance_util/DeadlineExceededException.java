@@ -0,0 +1,29 @@
+package alliance_util;
+
+import java.sql.SQLTimeoutException;
+
+/**
+ * These exceptions are thrown when a database operation isn't started because the
+ * deadline of the request has already passed
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class DeadlineExceededException extends SQLTimeoutException
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final long serialVersionUID = 1L;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new exception
+	 * @param message The message sent along with the exception
+	 */
+	public DeadlineExceededException(String message)
+	{
+		super(message);
+	}
+}
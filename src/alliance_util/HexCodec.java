@@ -0,0 +1,114 @@
+package alliance_util;
+
+import java.util.Arrays;
+
+/**
+ * HexCodec converts bytes to hexadecimal strings and back using lookup tables. The hex 
+ * can be decoded and compared in place from a range of a longer string, so that no 
+ * substrings need to be created.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public final class HexCodec
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+	// The value of each ascii character, -1 for the non-hex characters
+	private static final byte[] VALUES = new byte[128];
+	
+	static
+	{
+		Arrays.fill(VALUES, (byte) -1);
+		for (int i = 0; i < DIGITS.length; i++)
+		{
+			VALUES[DIGITS[i]] = (byte) i;
+			VALUES[Character.toUpperCase(DIGITS[i])] = (byte) i;
+		}
+	}
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private HexCodec()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Converts a byte array into a hexadecimal string
+	 * @param bytes The bytes that are converted
+	 * @return A string of lower case hex characters, two per byte
+	 */
+	public static String encode(byte[] bytes)
+	{
+		char[] hex = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			hex[2 * i] = DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[2 * i + 1] = DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+	
+	/**
+	 * Converts a range of hexadecimal characters into a byte array
+	 * @param hex The string that contains the hex characters
+	 * @param start The index of the first hex character (inclusive)
+	 * @param end The index after the last hex character (exclusive)
+	 * @return The hex range decoded into a byte array
+	 * @throws IllegalArgumentException If the range contains a non-hex character
+	 */
+	public static byte[] decode(String hex, int start, int end)
+	{
+		byte[] bytes = new byte[(end - start) / 2];
+		for (int i = 0; i < bytes.length; i++)
+		{
+			bytes[i] = decodeByte(hex, start + 2 * i);
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Decodes a single byte from two hexadecimal characters
+	 * @param hex The string that contains the hex characters
+	 * @param index The index of the first of the two characters
+	 * @return The decoded byte
+	 * @throws IllegalArgumentException If either of the characters isn't a hex character
+	 */
+	public static byte decodeByte(String hex, int index)
+	{
+		char high = hex.charAt(index);
+		char low = hex.charAt(index + 1);
+		int highValue = high < 128 ? VALUES[high] : -1;
+		int lowValue = low < 128 ? VALUES[low] : -1;
+		if (highValue < 0 || lowValue < 0)
+			throw new IllegalArgumentException("Invalid hex character at " + index);
+		return (byte) ((highValue << 4) | lowValue);
+	}
+	
+	/**
+	 * Compares the hex encoded bytes at the end of a string to a byte array in 
+	 * length-constant time, without decoding the hex into a separate array. The time 
+	 * doesn't reveal where the first difference is.
+	 * @param hex The string that ends with the hex encoded bytes
+	 * @param start The index of the first hex character
+	 * @param bytes The byte array
+	 * @return Are the bytes the same
+	 * @throws IllegalArgumentException If the hex contains a non-hex character
+	 */
+	public static boolean equalsInConstantTime(String hex, int start, byte[] bytes)
+	{
+		int length = (hex.length() - start) / 2;
+		int diff = length ^ bytes.length;
+		for (int i = 0; i < length && i < bytes.length; i++)
+		{
+			diff |= decodeByte(hex, start + 2 * i) ^ bytes[i];
+		}
+		return diff == 0;
+	}
+}
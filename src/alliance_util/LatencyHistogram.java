@@ -0,0 +1,133 @@
+package alliance_util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram records durations into exponentially growing buckets
+ * (under 1 ms, 1-2 ms, 2-4 ms, ... over 32 seconds). The histogram can be updated from
+ * multiple threads at once without locking. The percentiles are accurate to the precision
+ * of a single bucket.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LatencyHistogram
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final int BUCKET_AMOUNT = 17;
+	
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_AMOUNT);
+	private final AtomicLong count = new AtomicLong(), totalMillis = new AtomicLong(),
+			maxMillis = new AtomicLong();
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public String toString()
+	{
+		return "count " + getCount() + ", mean " + getMeanMillis() + " ms, p50 " +
+				getPercentileMillis(0.5) + " ms, p99 " + getPercentileMillis(0.99) +
+				" ms, max " + getMaxMillis() + " ms";
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Records a new duration
+	 * @param millis The duration in milliseconds
+	 */
+	public void record(long millis)
+	{
+		long duration = Math.max(0, millis);
+		this.buckets.incrementAndGet(getBucketIndex(duration));
+		this.count.incrementAndGet();
+		this.totalMillis.addAndGet(duration);
+		
+		long max = this.maxMillis.get();
+		while (duration > max && !this.maxMillis.compareAndSet(max, duration))
+		{
+			max = this.maxMillis.get();
+		}
+	}
+	
+	/**
+	 * @return How many durations have been recorded
+	 */
+	public long getCount()
+	{
+		return this.count.get();
+	}
+	
+	/**
+	 * @return The average recorded duration in milliseconds
+	 */
+	public long getMeanMillis()
+	{
+		long count = getCount();
+		if (count == 0)
+			return 0;
+		return this.totalMillis.get() / count;
+	}
+	
+	/**
+	 * @return The longest recorded duration in milliseconds
+	 */
+	public long getMaxMillis()
+	{
+		return this.maxMillis.get();
+	}
+	
+	/**
+	 * Finds a duration that isn't exceeded by the given portion of the recorded durations
+	 * @param percentile The portion of the durations [0, 1] (Eg. 0.99)
+	 * @return The upper bound of the bucket that contains the percentile in milliseconds
+	 */
+	public long getPercentileMillis(double percentile)
+	{
+		long count = getCount();
+		if (count == 0)
+			return 0;
+		
+		long limit = (long) Math.ceil(count * Math.min(1, Math.max(0, percentile)));
+		long seen = 0;
+		for (int i = 0; i < BUCKET_AMOUNT; i++)
+		{
+			seen += this.buckets.get(i);
+			if (seen >= limit)
+				return Math.min(getMaxMillis(), getBucketLimit(i));
+		}
+		
+		return getMaxMillis();
+	}
+	
+	/**
+	 * @return The amount of durations in each bucket. Bucket i contains the durations
+	 * shorter than 2^i milliseconds that didn't fit into the previous buckets. The last
+	 * bucket contains all the longer durations.
+	 */
+	public long[] getBuckets()
+	{
+		long[] amounts = new long[BUCKET_AMOUNT];
+		for (int i = 0; i < BUCKET_AMOUNT; i++)
+		{
+			amounts[i] = this.buckets.get(i);
+		}
+		
+		return amounts;
+	}
+	
+	private static int getBucketIndex(long millis)
+	{
+		int index = 64 - Long.numberOfLeadingZeros(millis);
+		return Math.min(BUCKET_AMOUNT - 1, index);
+	}
+	
+	private static long getBucketLimit(int index)
+	{
+		return 1l << index;
+	}
+}
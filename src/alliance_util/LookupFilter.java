@@ -0,0 +1,321 @@
+package alliance_util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import vault_database.DatabaseTable;
+
+/**
+ * LookupFilter answers lookups for values that don't exist in a table column without
+ * accessing the database. It combines a short term cache of values that were recently
+ * found missing with a bloom filter of all the values the column holds. The bloom filter
+ * is updated when this node adds or removes rows and rebuilt from the database
+ * periodically. Since the rows added by other server nodes would only be noticed on the
+ * next rebuild, the bloom filter is only used for the tables this node alone writes to.
+ * For the other tables, only the recently missing values are answered without the
+ * database, so a row added by another node may be reported missing for at most the
+ * missing duration.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LookupFilter
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static final Map<DatabaseTable, LookupFilter> filters = new ConcurrentHashMap<>();
+	
+	private final DatabaseTable table;
+	private final String columnName;
+	private final int expectedValues, maxMissingValues;
+	private final double falsePositiveRate;
+	private final long missingDurationMillis;
+	private final boolean singleWriter;
+	
+	private final Map<String, Long> missingValues = new ConcurrentHashMap<>();
+	private volatile BloomFilter existingValues = null;
+	private List<String> addedDuringRebuild = null;
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	private LookupFilter(DatabaseTable table, String columnName, int expectedValues,
+			double falsePositiveRate, int missingDurationSeconds, int maxMissingValues,
+			boolean singleWriter)
+	{
+		this.table = table;
+		this.singleWriter = singleWriter;
+		this.columnName = columnName;
+		this.expectedValues = expectedValues;
+		this.falsePositiveRate = falsePositiveRate;
+		this.missingDurationMillis = missingDurationSeconds * 1000l;
+		this.maxMissingValues = maxMissingValues;
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Starts filtering the lookups into the given table. The bloom filter is only used
+	 * after it has been built with {@link #rebuild()}, and only if this node is the only
+	 * one that adds rows to the table.
+	 * @param table The table whose lookups are filtered
+	 * @param columnName The column whose values are looked up
+	 * @param expectedValues How many values the column is expected to hold
+	 * @param falsePositiveRate How often a missing value may still be looked up from the
+	 * database (0, 1)
+	 * @param missingDurationSeconds How long a value found missing is remembered
+	 * @param maxMissingValues How many missing values are remembered at most
+	 * @param singleWriter Is this server node the only one that adds rows to the table. If 
+	 * false, the values that are not in the bloom filter are still looked up from the 
+	 * database.
+	 * @return The filter used for the table
+	 */
+	public static LookupFilter enable(DatabaseTable table, String columnName,
+			int expectedValues, double falsePositiveRate, int missingDurationSeconds,
+			int maxMissingValues, boolean singleWriter)
+	{
+		LookupFilter filter = new LookupFilter(table, columnName, expectedValues,
+				falsePositiveRate, missingDurationSeconds, maxMissingValues, singleWriter);
+		filters.put(table, filter);
+		return filter;
+	}
+	
+	/**
+	 * @param table A database table
+	 * @return The filter used for the table, null if the table's lookups aren't filtered
+	 */
+	public static LookupFilter forTable(DatabaseTable table)
+	{
+		return filters.get(table);
+	}
+	
+	/**
+	 * @return All the filters currently in use
+	 */
+	public static Collection<LookupFilter> getFilters()
+	{
+		return new ArrayList<>(filters.values());
+	}
+	
+	/**
+	 * Checks whether the value is known to be missing from the column
+	 * @param value The value that is looked up
+	 * @return True if the value definitely doesn't exist and the database needn't be
+	 * accessed. False if the value may exist.
+	 */
+	public boolean isKnownMissing(String value)
+	{
+		return isKnownMissing(null, value);
+	}
+	
+	/**
+	 * Checks whether the value is known to be missing from the rows of the given owner.
+	 * The bloom filter only knows about the values, but the missing values are remembered
+	 * separately for each owner.
+	 * @param owner The owner of the value (Eg. the user of a login key). Null if the value
+	 * is checked from the whole column.
+	 * @param value The value that is looked up
+	 * @return True if the value definitely doesn't exist and the database needn't be
+	 * accessed. False if the value may exist.
+	 */
+	public boolean isKnownMissing(String owner, String value)
+	{
+		if (value == null)
+			return false;
+		
+		String cacheKey = getCacheKey(owner, value);
+		Long missingUntil = this.missingValues.get(cacheKey);
+		if (missingUntil != null)
+		{
+			if (missingUntil > System.currentTimeMillis())
+				return true;
+			this.missingValues.remove(cacheKey, missingUntil);
+		}
+		
+		// Other nodes may have added the value after the bloom filter was built
+		if (!this.singleWriter)
+			return false;
+		BloomFilter existing = this.existingValues;
+		return existing != null && !existing.mightContain(value);
+	}
+	
+	/**
+	 * Informs the filter that the value wasn't found from the database
+	 * @param value The value that was looked up
+	 */
+	public void recordMissing(String value)
+	{
+		recordMissing(null, value);
+	}
+	
+	/**
+	 * Informs the filter that the value wasn't found from the rows of the given owner
+	 * @param owner The owner of the value. Null if the value was looked up from the whole
+	 * column.
+	 * @param value The value that was looked up
+	 */
+	public void recordMissing(String owner, String value)
+	{
+		if (value == null || this.missingDurationMillis <= 0)
+			return;
+		
+		// When the cache is full, the expired values are removed first. If that's not
+		// enough, the value isn't remembered.
+		if (this.missingValues.size() >= this.maxMissingValues)
+		{
+			long now = System.currentTimeMillis();
+			Iterator<Long> expiryTimes = this.missingValues.values().iterator();
+			while (expiryTimes.hasNext())
+			{
+				if (expiryTimes.next() <= now)
+					expiryTimes.remove();
+			}
+			
+			if (this.missingValues.size() >= this.maxMissingValues)
+				return;
+		}
+		
+		this.missingValues.put(getCacheKey(owner, value), System.currentTimeMillis() +
+				this.missingDurationMillis);
+	}
+	
+	/**
+	 * Informs the filter that the value was added to the column. Values are expected to be
+	 * unique, so the value is only forgotten from the missing values recorded without an
+	 * owner.
+	 * @param value The value that was added
+	 */
+	public void recordAdded(String value)
+	{
+		if (value == null)
+			return;
+		
+		this.missingValues.remove(value);
+		synchronized (this)
+		{
+			if (this.existingValues != null)
+				this.existingValues.add(value);
+			if (this.addedDuringRebuild != null)
+				this.addedDuringRebuild.add(value);
+		}
+	}
+	
+	/**
+	 * Informs the filter that the value was removed from the column. The value can't be
+	 * removed from the bloom filter, so it is remembered as missing instead.
+	 * @param value The value that was removed
+	 */
+	public void recordRemoved(String value)
+	{
+		recordMissing(value);
+	}
+	
+	/**
+	 * Reads all the values of the column from the database and replaces the bloom filter
+	 * with a new one. The values added during the rebuild are kept. Nothing is done if 
+	 * other nodes write to the table as well, since the bloom filter isn't used then.
+	 * @throws SQLException If the values couldn't be read
+	 */
+	public void rebuild() throws SQLException
+	{
+		if (!this.singleWriter)
+			return;
+		
+		synchronized (this)
+		{
+			this.addedDuringRebuild = new ArrayList<>();
+		}
+		
+		BloomFilter rebuilt = new BloomFilter(this.expectedValues, this.falsePositiveRate);
+		boolean completed = false;
+		try
+		{
+			readValues(rebuilt);
+			completed = true;
+		}
+		finally
+		{
+			// The new filter is taken into use only if all the values could be read
+			synchronized (this)
+			{
+				if (completed)
+				{
+					for (String value : this.addedDuringRebuild)
+					{
+						rebuilt.add(value);
+					}
+					this.existingValues = rebuilt;
+				}
+				this.addedDuringRebuild = null;
+			}
+		}
+	}
+	
+	/**
+	 * @return The table whose lookups are filtered
+	 */
+	public DatabaseTable getTable()
+	{
+		return this.table;
+	}
+	
+	/**
+	 * @return Is this server node the only one that adds rows to the table
+	 */
+	public boolean isSingleWriter()
+	{
+		return this.singleWriter;
+	}
+	
+	/**
+	 * @return The column whose values are looked up
+	 */
+	public String getColumnName()
+	{
+		return this.columnName;
+	}
+	
+	private static String getCacheKey(String owner, String value)
+	{
+		if (owner == null)
+			return value;
+		return owner + '\n' + value;
+	}
+	
+	private void readValues(BloomFilter filter) throws SQLException
+	{
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(this.table.getDatabaseName(), 
+					this.table.getTableName() + ".filter");
+			for (String tableName : TableOperations.getTableNames(this.table))
+			{
+				try (PreparedStatement statement = connection.prepareStatement("SELECT " +
+						this.columnName + " FROM " + tableName);
+						ResultSet result = statement.executeQuery())
+				{
+					while (result.next())
+					{
+						String value = result.getString(1);
+						if (value != null)
+							filter.add(value);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+	}
+}
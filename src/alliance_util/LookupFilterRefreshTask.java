@@ -0,0 +1,82 @@
+package alliance_util;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This task rebuilds the lookup filters so that the rows added by other server nodes are
+ * noticed and the filters don't fill up over time
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class LookupFilterRefreshTask extends MaintenanceTask
+{
+	// ATTRIBUTES	--------------------------
+	
+	private final List<LookupFilter> filters;
+	private final int intervalMinutes;
+	
+	
+	// CONSTRUCTOR	--------------------------
+	
+	/**
+	 * Creates a new task that refreshes all the filters enabled at this time
+	 * @param intervalMinutes How many minutes there are between the refreshes
+	 */
+	public LookupFilterRefreshTask(int intervalMinutes)
+	{
+		this.filters = new ArrayList<>(LookupFilter.getFilters());
+		this.intervalMinutes = Math.max(1, intervalMinutes);
+	}
+	
+	
+	// IMPLEMENTED METHODS	------------------
+	
+	@Override
+	public int getMaintenanceIntervalMinutes()
+	{
+		return this.intervalMinutes;
+	}
+	
+	@Override
+	public void run()
+	{
+		for (LookupFilter filter : this.filters)
+		{
+			refresh(filter);
+		}
+	}
+	
+	/**
+	 * Each filter is rebuilt in a separate partition
+	 */
+	@Override
+	public int getPartitionAmount()
+	{
+		return this.filters.size();
+	}
+	
+	@Override
+	public void runPartition(int partitionIndex)
+	{
+		refresh(this.filters.get(partitionIndex));
+	}
+	
+	
+	// OTHER METHODS	----------------------
+	
+	private static void refresh(LookupFilter filter)
+	{
+		try
+		{
+			filter.rebuild();
+		}
+		catch (SQLException e)
+		{
+			// The timer records and reports the failure
+			throw new IllegalStateException("Failed to rebuild the lookup filter of " +
+					filter.getTable().getTableName(), e);
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package alliance_util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * MaintenanceLease makes sure that only a single server node performs a maintenance task 
+ * at a time. The node that runs a task holds a lease for it in a database table. The lease 
+ * is renewed on each run and during long runs, and when it lapses, another node may take 
+ * it over. The lease table should have the columns 'taskName' (primary key), 'owner' and 
+ * 'leaseEnd' (timestamp with milliseconds).
+ * <br>
+ * The lease times are calculated with the clock of the database so that the differences 
+ * between the clocks of the nodes don't let two nodes hold the same lease.
+ * 
+ * @author Mikko Hilpinen
+ * @since 7.6.2015
+ */
+public class MaintenanceLease
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final String NOW = "CURRENT_TIMESTAMP(3)";
+	// The duration parameter is given in microseconds, since not all databases support 
+	// adding milliseconds
+	private static final String LEASE_END = "TIMESTAMPADD(MICROSECOND, ?, " + NOW + ")";
+	
+	private final String databaseName, tableName, nodeID;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new lease handler. The connections are opened through the 
+	 * ConnectionManager.
+	 * @param databaseName The name of the database that holds the lease table
+	 * @param tableName The name of the lease table
+	 * @param nodeID The unique identifier of this server node
+	 */
+	public MaintenanceLease(String databaseName, String tableName, String nodeID)
+	{
+		this.databaseName = databaseName;
+		this.tableName = tableName;
+		this.nodeID = nodeID;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Tries to acquire or renew the lease for the given task
+	 * @param taskName The name of the task
+	 * @param durationMillis How long the lease is held (in milliseconds) if acquired
+	 * @return Did this node acquire the lease. If false, another node holds the lease.
+	 * @throws SQLException If the lease couldn't be read or written
+	 */
+	public boolean tryAcquire(String taskName, long durationMillis) throws SQLException
+	{
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(this.databaseName, "maintenance");
+			
+			// The lease can be taken if this node holds it already or if it has lapsed
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " + 
+					this.tableName + " SET owner = ?, leaseEnd = " + LEASE_END + 
+					" WHERE taskName = ? AND (owner = ? OR leaseEnd < " + NOW + ")"))
+			{
+				statement.setString(1, this.nodeID);
+				statement.setLong(2, durationMillis * 1000);
+				statement.setString(3, taskName);
+				statement.setString(4, this.nodeID);
+				
+				if (statement.executeUpdate() > 0)
+					return true;
+			}
+			
+			// If the task didn't have a lease yet, creates one. Only one node can succeed.
+			try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + 
+					this.tableName + " (taskName, owner, leaseEnd) VALUES (?, ?, " + LEASE_END + 
+					")"))
+			{
+				statement.setString(1, taskName);
+				statement.setString(2, this.nodeID);
+				statement.setLong(3, durationMillis * 1000);
+				
+				return statement.executeUpdate() > 0;
+			}
+			catch (SQLException e)
+			{
+				// A duplicate key means that another node holds the lease
+				if (e.getSQLState() != null && e.getSQLState().startsWith("23"))
+					return false;
+				throw e;
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+	}
+	
+	/**
+	 * Releases the lease for the given task, if this node holds it, so that another node 
+	 * can take it over immediately
+	 * @param taskName The name of the task
+	 * @throws SQLException If the lease couldn't be released
+	 */
+	public void release(String taskName) throws SQLException
+	{
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(this.databaseName, "maintenance");
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " + 
+					this.tableName + " SET leaseEnd = TIMESTAMPADD(SECOND, -1, " + NOW + 
+					") WHERE taskName = ? AND owner = ?"))
+			{
+				statement.setString(1, taskName);
+				statement.setString(2, this.nodeID);
+				statement.executeUpdate();
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+	}
+	
+	
+	// GETTERS & SETTERS	---------------------
+	
+	/**
+	 * @return The identifier of this server node
+	 */
+	public String getNodeID()
+	{
+		return this.nodeID;
+	}
+}
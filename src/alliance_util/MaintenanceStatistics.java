@@ -0,0 +1,170 @@
+package alliance_util;
+
+/**
+ * MaintenanceStatistics keeps track of how a single maintenance task has been performing
+ * @author Mikko Hilpinen
+ * @since 6.6.2015
+ */
+public class MaintenanceStatistics
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private final String taskName;
+	private long runAmount, failureAmount, lateStartAmount, leasedElsewhereAmount;
+	private long lastDurationMillis, maxDurationMillis, lastSuccessTime, lastFailureTime;
+	private Throwable lastFailure;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	/**
+	 * Creates a new empty statistics object
+	 * @param taskName The name of the task the statistics are for
+	 */
+	public MaintenanceStatistics(String taskName)
+	{
+		this.taskName = taskName;
+	}
+	
+	
+	// IMPLEMENTED METHODS	---------------------
+	
+	@Override
+	public synchronized String toString()
+	{
+		return this.taskName + ": runs " + this.runAmount + ", failures " + 
+				this.failureAmount + ", late starts " + this.lateStartAmount + 
+				", run elsewhere " + 
+				this.leasedElsewhereAmount + ", last duration " + 
+				this.lastDurationMillis + " ms, max duration " + this.maxDurationMillis + 
+				" ms";
+	}
+	
+	
+	// GETTERS & SETTERS	----------------------
+	
+	/**
+	 * @return The name of the task the statistics are for
+	 */
+	public String getTaskName()
+	{
+		return this.taskName;
+	}
+	
+	/**
+	 * @return How many times the task has been run
+	 */
+	public synchronized long getRunAmount()
+	{
+		return this.runAmount;
+	}
+	
+	/**
+	 * @return How many of the runs have failed
+	 */
+	public synchronized long getFailureAmount()
+	{
+		return this.failureAmount;
+	}
+	
+	/**
+	 * @return How many runs started a whole interval or more after their scheduled time. 
+	 * This happens when the previous runs take longer than the interval.
+	 */
+	public synchronized long getLateStartAmount()
+	{
+		return this.lateStartAmount;
+	}
+	
+	/**
+	 * @return How many runs were skipped because another server node held the lease 
+	 * for the task
+	 */
+	public synchronized long getLeasedElsewhereAmount()
+	{
+		return this.leasedElsewhereAmount;
+	}
+	
+	/**
+	 * @return How long the latest run took in milliseconds
+	 */
+	public synchronized long getLastDurationMillis()
+	{
+		return this.lastDurationMillis;
+	}
+	
+	/**
+	 * @return How long the longest run took in milliseconds
+	 */
+	public synchronized long getMaxDurationMillis()
+	{
+		return this.maxDurationMillis;
+	}
+	
+	/**
+	 * @return The time when the task last completed successfully 
+	 * (System.currentTimeMillis()), 0 if it never has
+	 */
+	public synchronized long getLastSuccessTime()
+	{
+		return this.lastSuccessTime;
+	}
+	
+	/**
+	 * @return The time when the task last failed (System.currentTimeMillis()), 0 if it 
+	 * never has
+	 */
+	public synchronized long getLastFailureTime()
+	{
+		return this.lastFailureTime;
+	}
+	
+	/**
+	 * @return The error that caused the latest failure, null if the task hasn't failed
+	 */
+	public synchronized Throwable getLastFailure()
+	{
+		return this.lastFailure;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Records a completed run
+	 * @param durationMillis How long the run took
+	 * @param failure The error that made the run fail, null if the run was successful
+	 */
+	synchronized void recordRun(long durationMillis, Throwable failure)
+	{
+		this.runAmount ++;
+		this.lastDurationMillis = durationMillis;
+		if (durationMillis > this.maxDurationMillis)
+			this.maxDurationMillis = durationMillis;
+		
+		if (failure == null)
+			this.lastSuccessTime = System.currentTimeMillis();
+		else
+		{
+			this.failureAmount ++;
+			this.lastFailureTime = System.currentTimeMillis();
+			this.lastFailure = failure;
+		}
+	}
+	
+	/**
+	 * Records a run that started at least a whole interval after its scheduled time
+	 */
+	synchronized void recordLateStart()
+	{
+		this.lateStartAmount ++;
+	}
+	
+	/**
+	 * Records a run that was skipped because another node held the lease for the task
+	 */
+	synchronized void recordLeasedElsewhere()
+	{
+		this.leasedElsewhereAmount ++;
+	}
+}
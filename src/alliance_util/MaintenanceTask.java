@@ -2,14 +2,19 @@ package alliance_util;
 
 import java.util.Calendar;
 import java.util.GregorianCalendar;
-import java.util.TimerTask;
 
 /**
- * Management tasks are repeated constantly as long as the server is active
+ * Management tasks are repeated constantly as long as the server is active. A task may 
+ * divide its work into multiple partitions, which are then run in parallel.
+ * <br>
+ * The tasks used to be TimerTasks. Subclasses that called cancel() to stop themselves 
+ * should use {@link MaintenanceTimer#removeTask(MaintenanceTask)} instead, and 
+ * scheduledExecutionTime() is no longer available. A task can still be scheduled with a 
+ * java.util.concurrent.ScheduledExecutorService, since it is a Runnable.
  * @author Mikko Hilpinen
  * @since 9.4.2015
  */
-public abstract class MaintenanceTask extends TimerTask
+public abstract class MaintenanceTask implements Runnable
 {
 	// ABSTRACT METHODS	------------------------
 	
@@ -21,6 +26,45 @@ public abstract class MaintenanceTask extends TimerTask
 	
 	// OTHER METHODS	------------------------
 	
+	/**
+	 * @return How many milliseconds there are between each maintenance task. By default 
+	 * this is based on {@link #getMaintenanceIntervalMinutes()}. Subclasses may override 
+	 * this when they need a shorter interval.
+	 */
+	public long getMaintenanceIntervalMillis()
+	{
+		return SimpleDate.minutesToMillis(getMaintenanceIntervalMinutes());
+	}
+	
+	/**
+	 * @return How many separate partitions the task's work can be divided into. If there 
+	 * are more than one partition, {@link #runPartition(int)} is called for each of them 
+	 * in parallel instead of calling {@link #run()}. 1 by default.
+	 */
+	public int getPartitionAmount()
+	{
+		return 1;
+	}
+	
+	/**
+	 * Performs a single part of the task. Subclasses that divide their work into multiple 
+	 * partitions should override this method. By default, the whole task is run.
+	 * @param partitionIndex The index of the performed partition 
+	 * [0, {@link #getPartitionAmount()})
+	 */
+	public void runPartition(int partitionIndex)
+	{
+		run();
+	}
+	
+	/**
+	 * @return The name with which the task is identified in the statistics
+	 */
+	public String getTaskName()
+	{
+		return getClass().getSimpleName();
+	}
+	
 	/**
 	 * @return The amount of minutes from this moment until midnight
 	 */
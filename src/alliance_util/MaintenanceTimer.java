@@ -1,15 +1,48 @@
 package alliance_util;
 
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
-import java.util.Timer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * MaintenanceTimer is a timer specifically made for handling maintenance tasks
+ * MaintenanceTimer is a timer specifically made for handling maintenance tasks. The tasks 
+ * are run in a thread pool so that a slow task doesn't delay the others. A failing task 
+ * doesn't stop the timer and a task is never run while its previous run is still in 
+ * progress. When multiple server nodes share a database, the timers can use a lease so 
+ * that each task is only run by a single node per interval.
+ * <br>
+ * The timer used to be a java.util.Timer. The tasks are now added with 
+ * {@link #addTask(MaintenanceTask)} only.
  * @author Mikko Hilpinen
  * @since 9.4.2015
  */
-public class MaintenanceTimer extends Timer
+public class MaintenanceTimer
 {
+	// ATTRIBUTES	----------------------------
+	
+	private final ScheduledExecutorService scheduler;
+	private final ExecutorService partitionExecutor;
+	private final ScheduledExecutorService leaseRenewer;
+	private final MaintenanceLease lease;
+	private final Map<MaintenanceTask, MaintenanceStatistics> statistics = 
+			new ConcurrentHashMap<>();
+	private final Map<MaintenanceTask, ScheduledFuture<?>> scheduledTasks = 
+			new ConcurrentHashMap<>();
+	
+	
 	// CONSTRUCTOR	----------------------------
 	
 	/**
@@ -17,20 +50,53 @@ public class MaintenanceTimer extends Timer
 	 */
 	public MaintenanceTimer()
 	{
-		super(true);
+		this(2);
+	}
+	
+	/**
+	 * Creates a new timer. The tasks must be added separately
+	 * @param poolSize How many tasks can be run at the same time
+	 */
+	public MaintenanceTimer(int poolSize)
+	{
+		this(poolSize, null);
+	}
+	
+	/**
+	 * Creates a new timer that only runs the tasks it holds the lease for. The tasks must 
+	 * be added separately
+	 * @param poolSize How many tasks can be run at the same time
+	 * @param lease The lease shared between the server nodes (null if each node should run 
+	 * each task)
+	 */
+	public MaintenanceTimer(int poolSize, MaintenanceLease lease)
+	{
+		this.lease = lease;
+		this.scheduler = Executors.newScheduledThreadPool(poolSize, 
+				new MaintenanceThreadFactory("maintenance"));
+		this.partitionExecutor = Executors.newCachedThreadPool(
+				new MaintenanceThreadFactory("maintenance-partition"));
+		// The renewals can't wait for the tasks to complete, so they use their own thread
+		if (lease == null)
+			this.leaseRenewer = null;
+		else
+			this.leaseRenewer = Executors.newSingleThreadScheduledExecutor(
+					new MaintenanceThreadFactory("maintenance-lease"));
 	}
 
 	
 	// OTHER METHODS	------------------------
 	
 	/**
-	 * Adds a new task to the list of performed tasks
+	 * Adds a new task to the list of performed tasks. The task is performed the first time 
+	 * after a random delay shorter than its interval.
 	 * @param task The task that will be performed
 	 */
 	public void addTask(MaintenanceTask task)
 	{
-		int delayMinutes = new Random().nextInt(task.getMaintenanceIntervalMinutes());
-		addTask(task, delayMinutes);
+		long delayMillis = (long) (new Random().nextDouble() * 
+				task.getMaintenanceIntervalMillis());
+		addTaskWithDelayMillis(task, Math.max(0, delayMillis));
 	}
 	
 	/**
@@ -41,8 +107,247 @@ public class MaintenanceTimer extends Timer
 	 */
 	public void addTask(MaintenanceTask task, int delayMinutes)
 	{
-		long interval = SimpleDate.minutesToMillis(task.getMaintenanceIntervalMinutes());
-		long delay = SimpleDate.minutesToMillis(delayMinutes);
-		schedule(task, delay, interval);
+		addTaskWithDelayMillis(task, SimpleDate.minutesToMillis(delayMinutes));
+	}
+	
+	/**
+	 * Adds a new task to the list of performed tasks
+	 * @param task The task that will be performed
+	 * @param delayMillis How many milliseconds there will be until the task is performed 
+	 * the first time
+	 */
+	public void addTaskWithDelayMillis(MaintenanceTask task, long delayMillis)
+	{
+		long interval = task.getMaintenanceIntervalMillis();
+		
+		MaintenanceStatistics taskStatistics = new MaintenanceStatistics(task.getTaskName());
+		this.statistics.put(task, taskStatistics);
+		// The executor never starts a run before the previous one has completed
+		this.scheduledTasks.put(task, this.scheduler.scheduleAtFixedRate(
+				new ScheduledTask(task, taskStatistics, interval, 
+				System.currentTimeMillis() + delayMillis), delayMillis, interval, 
+				TimeUnit.MILLISECONDS));
+	}
+	
+	/**
+	 * Stops performing a task. A run in progress is completed.
+	 * @param task The task that is no longer performed
+	 */
+	public void removeTask(MaintenanceTask task)
+	{
+		ScheduledFuture<?> scheduled = this.scheduledTasks.remove(task);
+		if (scheduled != null)
+			scheduled.cancel(false);
+		this.statistics.remove(task);
+	}
+	
+	/**
+	 * @param task A task added to this timer
+	 * @return The statistics of the task, null if the task hasn't been added to this timer
+	 */
+	public MaintenanceStatistics getStatistics(MaintenanceTask task)
+	{
+		return this.statistics.get(task);
+	}
+	
+	/**
+	 * @return The statistics of all the tasks added to this timer
+	 */
+	public Collection<MaintenanceStatistics> getStatistics()
+	{
+		return new ArrayList<>(this.statistics.values());
+	}
+	
+	/**
+	 * Stops the timer. The tasks in progress are interrupted and no new tasks will be run.
+	 */
+	public void cancel()
+	{
+		this.scheduler.shutdownNow();
+		this.partitionExecutor.shutdownNow();
+		if (this.leaseRenewer != null)
+			this.leaseRenewer.shutdownNow();
+	}
+	
+	
+	// SUBCLASSES	----------------------------
+	
+	private class ScheduledTask implements Runnable
+	{
+		// ATTRIBUTES	------------------------
+		
+		private final MaintenanceTask task;
+		private final MaintenanceStatistics statistics;
+		private final long intervalMillis;
+		// Only accessed by the runs, which never overlap
+		private long scheduledTime;
+		
+		
+		// CONSTRUCTOR	------------------------
+		
+		public ScheduledTask(MaintenanceTask task, MaintenanceStatistics statistics, 
+				long intervalMillis, long firstScheduledTime)
+		{
+			this.task = task;
+			this.statistics = statistics;
+			this.intervalMillis = intervalMillis;
+			this.scheduledTime = firstScheduledTime;
+		}
+		
+		
+		// IMPLEMENTED METHODS	----------------
+		
+		@Override
+		public void run()
+		{
+			// A run is late when the earlier runs have taken longer than the interval
+			long started = System.currentTimeMillis();
+			if (started - this.scheduledTime >= this.intervalMillis)
+				this.statistics.recordLateStart();
+			this.scheduledTime += this.intervalMillis;
+			
+			Throwable failure = null;
+			boolean leasedElsewhere = false;
+			ScheduledFuture<?> renewal = null;
+			try
+			{
+				// Only the node holding the lease runs the task. The lease lasts a little 
+				// over a single interval so that the holder can renew it on its next run 
+				// but another node takes over if the holder stops.
+				MaintenanceLease lease = MaintenanceTimer.this.lease;
+				if (lease != null)
+				{
+					if (!lease.tryAcquire(this.task.getTaskName(), getLeaseMillis()))
+					{
+						leasedElsewhere = true;
+						return;
+					}
+					renewal = startRenewingLease(lease);
+				}
+				
+				int partitions = this.task.getPartitionAmount();
+				if (partitions <= 1)
+					this.task.run();
+				else
+					runPartitions(partitions);
+			}
+			// No error is allowed to cancel the future runs
+			catch (Throwable e)
+			{
+				failure = e;
+				System.err.println("Maintenance task " + this.task.getTaskName() + 
+						" failed");
+				e.printStackTrace();
+			}
+			finally
+			{
+				if (renewal != null)
+					renewal.cancel(false);
+				if (leasedElsewhere)
+					this.statistics.recordLeasedElsewhere();
+				else
+					this.statistics.recordRun(System.currentTimeMillis() - started, failure);
+			}
+		}
+		
+		
+		// OTHER METHODS	--------------------
+		
+		private long getLeaseMillis()
+		{
+			return this.intervalMillis * 3 / 2;
+		}
+		
+		private ScheduledFuture<?> startRenewingLease(final MaintenanceLease lease)
+		{
+			// A run may take longer than the lease, so the lease is renewed until the run 
+			// completes. Each renewal extends the lease to a whole interval past the next one.
+			long renewalInterval = Math.max(1, this.intervalMillis / 2);
+			return MaintenanceTimer.this.leaseRenewer.scheduleAtFixedRate(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					String taskName = ScheduledTask.this.task.getTaskName();
+					try
+					{
+						if (!lease.tryAcquire(taskName, getLeaseMillis()))
+							System.err.println("Lost the lease of maintenance task " + 
+									taskName + " during the run");
+					}
+					catch (SQLException e)
+					{
+						// The next renewal may still succeed before the lease lapses
+						System.err.println("Failed to renew the lease of maintenance task " + 
+								taskName);
+						e.printStackTrace();
+					}
+				}
+			}, renewalInterval, renewalInterval, TimeUnit.MILLISECONDS);
+		}
+		
+		private void runPartitions(int partitions) throws Throwable
+		{
+			List<Future<?>> results = new ArrayList<>(partitions);
+			for (int i = 0; i < partitions; i++)
+			{
+				final int partitionIndex = i;
+				results.add(MaintenanceTimer.this.partitionExecutor.submit(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						ScheduledTask.this.task.runPartition(partitionIndex);
+					}
+				}));
+			}
+			
+			// Waits until all the partitions have completed. The first error is rethrown.
+			Throwable failure = null;
+			for (Future<?> result : results)
+			{
+				try
+				{
+					result.get();
+				}
+				catch (ExecutionException e)
+				{
+					if (failure == null)
+						failure = e.getCause();
+				}
+			}
+			
+			if (failure != null)
+				throw failure;
+		}
+	}
+	
+	private static class MaintenanceThreadFactory implements ThreadFactory
+	{
+		// ATTRIBUTES	------------------------
+		
+		private final String namePrefix;
+		private final AtomicInteger threadAmount = new AtomicInteger();
+		
+		
+		// CONSTRUCTOR	------------------------
+		
+		public MaintenanceThreadFactory(String namePrefix)
+		{
+			this.namePrefix = namePrefix;
+		}
+		
+		
+		// IMPLEMENTED METHODS	----------------
+		
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			// The maintenance threads don't keep the server running
+			Thread thread = new Thread(r, this.namePrefix + "-" + 
+					this.threadAmount.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
 	}
 }
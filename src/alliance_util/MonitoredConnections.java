@@ -0,0 +1,111 @@
+package alliance_util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.sql.Statement;
+
+/**
+ * This class wraps connections so that each statement executed through them is limited by
+ * the deadline of the current request and reported to the circuit breaker of the data 
+ * source
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+final class MonitoredConnections
+{
+	// CONSTRUCTOR	-----------------------------
+	
+	private MonitoredConnections()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Wraps a connection so that the statements created through it are monitored
+	 * @param connection The connection that is wrapped
+	 * @param breaker The breaker the statement executions are reported to (may be null)
+	 * @return A connection that behaves like the original connection
+	 */
+	public static Connection wrap(final Connection connection, final CircuitBreaker breaker)
+	{
+		return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+				new Class<?>[] {Connection.class}, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable
+			{
+				Object result = invokeTarget(connection, method, args);
+				
+				if (result instanceof CallableStatement)
+					return wrapStatement(result, CallableStatement.class, breaker);
+				else if (result instanceof PreparedStatement)
+					return wrapStatement(result, PreparedStatement.class, breaker);
+				else if (result instanceof Statement)
+					return wrapStatement(result, Statement.class, breaker);
+				
+				return result;
+			}
+		});
+	}
+	
+	private static Object wrapStatement(final Object statement, Class<?> statementClass,
+			final CircuitBreaker breaker)
+	{
+		return Proxy.newProxyInstance(statementClass.getClassLoader(),
+				new Class<?>[] {statementClass}, new InvocationHandler()
+		{
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args)
+					throws Throwable
+			{
+				if (!method.getName().startsWith("execute"))
+					return invokeTarget(statement, method, args);
+				
+				RequestDeadline.applyTo((Statement) statement);
+				if (breaker == null)
+					return invokeTarget(statement, method, args);
+				
+				long started = System.currentTimeMillis();
+				try
+				{
+					Object result = invokeTarget(statement, method, args);
+					breaker.recordSuccess(System.currentTimeMillis() - started);
+					return result;
+				}
+				catch (SQLException e)
+				{
+					// Statements cut short by the request's own deadline say nothing about 
+					// the health of the database
+					if (!(e instanceof SQLTimeoutException && RequestDeadline.hasPassed()))
+						breaker.record(System.currentTimeMillis() - started, e);
+					throw e;
+				}
+			}
+		});
+	}
+	
+	private static Object invokeTarget(Object target, Method method, Object[] args)
+			throws Throwable
+	{
+		try
+		{
+			return method.invoke(target, args);
+		}
+		catch (InvocationTargetException e)
+		{
+			throw e.getCause();
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package alliance_util;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * RequestDeadline limits how long the database operations of a single request may take.
+ * The deadline is bound to the thread that handles the request and it applies to every
+ * statement executed through the {@link ConnectionManager} as a query timeout. Operations
+ * that would start after the deadline has passed are not performed at all. Since the
+ * server doesn't tell when a request has been completed, the deadline is tied to the
+ * parameters of the request. The nested lookups of the same request keep the deadline
+ * that was started first, while the next request handled by the thread starts a new one.
+ * Once a deadline has passed, every database operation of the request fails with a
+ * {@link DeadlineExceededException}.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ */
+public class RequestDeadline
+{
+	// ATTRIBUTES	-----------------------------
+	
+	private static final ThreadLocal<RequestDeadline> current = new ThreadLocal<>();
+	private static volatile long defaultMillis = 0;
+	
+	private final long deadline, budgetMillis;
+	private final Object request;
+	
+	
+	// CONSTRUCTOR	-----------------------------
+	
+	private RequestDeadline(long budgetMillis, Object request)
+	{
+		this.budgetMillis = budgetMillis;
+		this.request = request;
+		this.deadline = System.currentTimeMillis() + budgetMillis;
+	}
+	
+	
+	// OTHER METHODS	-------------------------
+	
+	/**
+	 * Changes the time budget used for the requests that don't specify their own
+	 * @param millis How long the database operations of a request may take at most in
+	 * milliseconds. 0 means no limit.
+	 */
+	public static void setDefaultMillis(long millis)
+	{
+		defaultMillis = Math.max(0, millis);
+	}
+	
+	/**
+	 * @return How long the database operations of a request may take by default in
+	 * milliseconds. 0 means no limit.
+	 */
+	public static long getDefaultMillis()
+	{
+		return defaultMillis;
+	}
+	
+	/**
+	 * Starts a new deadline for the current thread, replacing the previous one
+	 * @param millis How long the database operations may take from now on in milliseconds.
+	 * 0 means no limit.
+	 */
+	public static void start(long millis)
+	{
+		if (millis <= 0)
+			current.remove();
+		else
+			current.set(new RequestDeadline(millis, null));
+	}
+	
+	/**
+	 * Starts a new deadline for the request handled by the current thread. If the thread 
+	 * already has a deadline for the same request, that deadline is kept so that the 
+	 * nested lookups of a request can't extend its time budget.
+	 * @param millis How long the database operations may take from now on in milliseconds.
+	 * 0 means no limit.
+	 * @param request The object that identifies the request (Eg. the parameters of the 
+	 * request). The objects are compared by identity.
+	 */
+	public static void start(long millis, Object request)
+	{
+		RequestDeadline previous = current.get();
+		if (previous != null && request != null && previous.request == request)
+			return;
+		
+		if (millis <= 0)
+			current.remove();
+		else
+			current.set(new RequestDeadline(millis, request));
+	}
+
+	
+	/**
+	 * @return How many milliseconds there are left until the deadline. -1 if there is no
+	 * deadline.
+	 */
+	public static long getRemainingMillis()
+	{
+		RequestDeadline deadline = current.get();
+		if (deadline == null)
+			return -1;
+		
+		return Math.max(0, deadline.deadline - System.currentTimeMillis());
+	}
+	
+	/**
+	 * @return Has the deadline of the current thread passed
+	 */
+	public static boolean hasPassed()
+	{
+		return getRemainingMillis() == 0;
+	}
+	
+	/**
+	 * Makes sure that the deadline hasn't passed yet
+	 * @throws DeadlineExceededException If the deadline has passed
+	 */
+	public static void check() throws DeadlineExceededException
+	{
+		if (hasPassed())
+			throw new DeadlineExceededException("The request couldn't be completed in " +
+					current.get().budgetMillis + " ms");
+	}
+	
+	/**
+	 * Limits the execution time of the statement to the remaining time. Nothing is done if
+	 * there is no deadline.
+	 * @param statement The statement that is about to be executed
+	 * @throws DeadlineExceededException If the deadline has already passed
+	 * @throws SQLException If the timeout couldn't be set
+	 */
+	public static void applyTo(Statement statement) throws SQLException
+	{
+		long remaining = getRemainingMillis();
+		if (remaining < 0)
+			return;
+		check();
+		
+		// The query timeouts are given in whole seconds
+		statement.setQueryTimeout((int) Math.max(1, (remaining + 999) / 1000));
+	}
+}
@@ -0,0 +1,220 @@
+package alliance_util;
+
+import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SingleFlight makes sure that only a single database operation is performed for a key at
+ * a time. When the same operation is requested while it is already in progress, the
+ * requesting thread waits for the ongoing operation and receives the same result instead
+ * of accessing the database again. The results are not stored after the operation has
+ * completed.
+ * <br>
+ * The operations may be given a version (Eg. the version of the table they read). An 
+ * ongoing operation is only joined if it was started at the same or a later version, so 
+ * that a thread that has seen a write never receives data read before that write.
+ * <br>
+ * A waiting thread only waits until its own request deadline. When the operation fails 
+ * because the deadline of the performing thread ran out, the waiting threads perform the 
+ * operation again instead of receiving that error.
+ * 
+ * @author Mikko Hilpinen
+ * @since 11.6.2015
+ * @param <K> The type of key the operations are identified with
+ * @param <V> The type of result the operations produce. The results are shared between
+ * threads so they shouldn't be modified.
+ */
+public class SingleFlight<K, V>
+{
+	// ATTRIBUTES	-------------------------
+	
+	private final Map<K, Flight<V>> inFlight = new ConcurrentHashMap<>();
+	private final AtomicLong performed = new AtomicLong(), shared = new AtomicLong();
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Performs the operation unless it is already being performed by another thread, in
+	 * which case the result of that operation is used instead
+	 * @param key The key that identifies the operation
+	 * @param operation The operation that is performed
+	 * @return The result of the operation
+	 * @throws SQLException If the operation failed. Every waiting thread receives the same
+	 * error, except for the timeouts of the performing thread.
+	 * @throws DeadlineExceededException If the deadline of the current thread passed while 
+	 * waiting for another thread
+	 */
+	public V execute(K key, Operation<V> operation) throws SQLException
+	{
+		return execute(key, 0, operation);
+	}
+	
+	/**
+	 * Performs the operation unless it is already being performed by another thread that 
+	 * started it at the same or a later version, in which case the result of that 
+	 * operation is used instead
+	 * @param key The key that identifies the operation
+	 * @param version The version of the data the operation reads, read before calling 
+	 * this method. The versions must never decrease.
+	 * @param operation The operation that is performed
+	 * @return The result of the operation
+	 * @throws SQLException If the operation failed. Every waiting thread receives the same
+	 * error, except for the timeouts of the performing thread.
+	 * @throws DeadlineExceededException If the deadline of the current thread passed while 
+	 * waiting for another thread
+	 */
+	public V execute(K key, long version, Operation<V> operation) throws SQLException
+	{
+		Flight<V> flight = new Flight<>(version);
+		while (true)
+		{
+			Flight<V> ongoing = this.inFlight.putIfAbsent(key, flight);
+			if (ongoing == null)
+				break;
+			
+			// Waits for the other thread to complete the operation
+			if (ongoing.version >= version)
+			{
+				try
+				{
+					V result = await(ongoing.future);
+					this.shared.incrementAndGet();
+					return result;
+				}
+				catch (ForeignTimeoutException e)
+				{
+					// The other thread ran out of its own time, which doesn't concern this 
+					// thread. The operation is started again.
+					this.inFlight.remove(key, ongoing);
+					continue;
+				}
+			}
+			
+			// The ongoing operation may have read the data before a write, so the later 
+			// calls join this operation instead
+			if (this.inFlight.replace(key, ongoing, flight))
+				break;
+		}
+		
+		this.performed.incrementAndGet();
+		try
+		{
+			V result = operation.perform();
+			flight.future.complete(result);
+			return result;
+		}
+		catch (SQLException | RuntimeException | Error e)
+		{
+			flight.future.completeExceptionally(e);
+			throw e;
+		}
+		finally
+		{
+			// Later calls will perform the operation again
+			this.inFlight.remove(key, flight);
+		}
+	}
+	
+	/**
+	 * @return How many operations have actually been performed
+	 */
+	public long getPerformedAmount()
+	{
+		return this.performed.get();
+	}
+	
+	/**
+	 * @return How many times a result of another thread's operation was used
+	 */
+	public long getSharedAmount()
+	{
+		return this.shared.get();
+	}
+	
+	private static <V> V await(CompletableFuture<V> future) throws SQLException, 
+			ForeignTimeoutException
+	{
+		try
+		{
+			long remaining = RequestDeadline.getRemainingMillis();
+			if (remaining < 0)
+				return future.get();
+			RequestDeadline.check();
+			return future.get(remaining, TimeUnit.MILLISECONDS);
+		}
+		catch (TimeoutException e)
+		{
+			throw new DeadlineExceededException("The request deadline passed while " + 
+					"waiting for a shared operation");
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new SQLException("Interrupted while waiting for a shared operation", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			// The deadlines and query timeouts belong to the thread that performed the 
+			// operation
+			if (cause instanceof SQLTimeoutException)
+				throw new ForeignTimeoutException();
+			if (cause instanceof SQLException)
+				throw (SQLException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new SQLException("Shared operation failed", cause);
+		}
+	}
+	
+	
+	// SUBCLASSES	-------------------------
+	
+	/**
+	 * Operations are performed at most once at a time for each key
+	 * @author Mikko Hilpinen
+	 * @since 11.6.2015
+	 * @param <V> The type of result the operation produces
+	 */
+	public static interface Operation<V>
+	{
+		/**
+		 * Performs the operation
+		 * @return The result of the operation
+		 * @throws SQLException If the operation failed
+		 */
+		public V perform() throws SQLException;
+	}
+	
+	private static class Flight<V>
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final CompletableFuture<V> future = new CompletableFuture<>();
+		private final long version;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public Flight(long version)
+		{
+			this.version = version;
+		}
+	}
+	
+	// Thrown when the shared operation failed because another thread ran out of time
+	private static class ForeignTimeoutException extends Exception
+	{
+		private static final long serialVersionUID = 1L;
+	}
+}
@@ -0,0 +1,752 @@
+package alliance_util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import vault_database.DatabaseAccessor;
+import vault_database.DatabaseTable;
+import vault_database.DatabaseUnavailableException;
+import vault_database.InvalidTableTypeException;
+import vault_recording.DatabaseReadable;
+
+/**
+ * TableOperations executes statements on the tables through the connections of the 
+ * {@link ConnectionManager}. Like with the DatabaseAccessor, a table may be divided into 
+ * multiple physical tables (Eg. "entities1", "entities2", ...), whose amount is read from 
+ * the table amount index. Until the ConnectionManager has been initialized, the row reads 
+ * and simple searches go through the DatabaseAccessor and the other operations fail.
+ * 
+ * @author Mikko Hilpinen
+ * @since 4.6.2015
+ */
+public class TableOperations
+{
+	// ATTRIBUTES	-------------------------
+	
+	private static final long TABLE_AMOUNT_CACHE_MILLIS = 10000;
+	private static final int MAX_BATCH_SIZE = 500;
+	
+	private static String indexDatabaseName, indexTableName;
+	private static int maxRowsPerTable = 0;
+	private static final Map<String, CachedAmount> tableAmounts = new HashMap<>();
+	
+	
+	// CONSTRUCTOR	-------------------------
+	
+	private TableOperations()
+	{
+		// The interface is static
+	}
+	
+	
+	// OTHER METHODS	---------------------
+	
+	/**
+	 * Changes how the tables are divided. This is called when the ConnectionManager is 
+	 * initialized.
+	 * @param maxRowsPerTable How many rows a physical table may hold before the inserts 
+	 * go to a new one. 0 if the tables are never divided.
+	 * @param indexDatabaseName The name of the database that holds the table amount index
+	 * @param indexTableName The name of the table that holds the table amount index
+	 */
+	static void configure(int maxRowsPerTable, String indexDatabaseName, 
+			String indexTableName)
+	{
+		TableOperations.maxRowsPerTable = maxRowsPerTable;
+		TableOperations.indexDatabaseName = indexDatabaseName;
+		TableOperations.indexTableName = indexTableName;
+		synchronized (tableAmounts)
+		{
+			tableAmounts.clear();
+		}
+	}
+	
+	/**
+	 * Finds the names of all the physical tables the given table is divided into
+	 * (Eg. "entities1", "entities2", ...)
+	 * @param table The table whose parts are searched
+	 * @return The names of the physical tables, starting from the first one
+	 * @throws SQLException If the table amount couldn't be read
+	 */
+	public static List<String> getTableNames(DatabaseTable table) throws SQLException
+	{
+		int amount = getTableAmount(table);
+		List<String> names = new ArrayList<>(amount);
+		for (int i = 1; i <= amount; i++)
+		{
+			names.add(table.getTableName() + i);
+		}
+		
+		return names;
+	}
+	
+	/**
+	 * Updates the given column values to the rows that match the given conditions. All the
+	 * physical tables are updated.
+	 * @param table The table that is updated
+	 * @param values The new column values (column name, value)
+	 * @param conditions The column values the updated rows must have (column name, value)
+	 * @return How many rows were updated
+	 * @throws SQLException If the update failed
+	 */
+	public static int update(DatabaseTable table, Map<String, String> values,
+			Map<String, String> conditions) throws SQLException
+	{
+		if (values.isEmpty())
+			return 0;
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(table.getDatabaseName(), table.getTableName() + 
+					".update");
+			return update(connection, table, values, conditions);
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+	}
+	
+	/**
+	 * Updates the given column values to the rows that match the given conditions using an 
+	 * existing connection. All the physical tables are updated.
+	 * @param connection The connection used for the update. The connection is left open.
+	 * @param table The table that is updated
+	 * @param values The new column values (column name, value)
+	 * @param conditions The column values the updated rows must have (column name, value)
+	 * @return How many rows were updated
+	 * @throws SQLException If the update failed
+	 */
+	public static int update(Connection connection, DatabaseTable table, 
+			Map<String, String> values, Map<String, String> conditions) throws SQLException
+	{
+		if (values.isEmpty())
+			return 0;
+		
+		List<String> columns = new ArrayList<>(values.keySet());
+		List<String> conditionColumns = new ArrayList<>(conditions.keySet());
+		StringBuilder setClause = new StringBuilder();
+		for (String column : columns)
+		{
+			if (setClause.length() > 0)
+				setClause.append(", ");
+			setClause.append(column).append(" = ?");
+		}
+		String whereClause = buildWhereClause(conditionColumns);
+		
+		int updated = 0;
+		for (String tableName : getTableNames(table))
+		{
+			try (PreparedStatement statement = connection.prepareStatement("UPDATE " +
+					tableName + " SET " + setClause + whereClause))
+			{
+				int index = 1;
+				for (String column : columns)
+				{
+					setParameter(statement, index ++, table, column, values.get(column));
+				}
+				setConditions(statement, index, table, conditionColumns, conditions);
+				
+				updated += statement.executeUpdate();
+			}
+		}
+		ConnectionManager.recordWrite(table.getDatabaseName());
+		
+		return updated;
+	}
+	
+	/**
+	 * Inserts a new row into the latest physical table using an existing connection. If 
+	 * the latest table is full, a new table is created, like the DatabaseAccessor does.
+	 * @param connection The connection used for the insert. The connection is left open.
+	 * @param table The table the row is inserted into
+	 * @param values The column values of the row (column name, value). The primary column 
+	 * should be left out when auto-increment indexing is used.
+	 * @return The index generated for the row. -1 if no index was generated.
+	 * @throws SQLException If the insert failed
+	 */
+	public static long insert(Connection connection, DatabaseTable table, 
+			Map<String, String> values) throws SQLException
+	{
+		List<String> columns = new ArrayList<>(values.keySet());
+		StringBuilder columnList = new StringBuilder();
+		StringBuilder valueList = new StringBuilder();
+		for (String column : columns)
+		{
+			if (columnList.length() > 0)
+			{
+				columnList.append(", ");
+				valueList.append(", ");
+			}
+			columnList.append(column);
+			valueList.append("?");
+		}
+		
+		try (PreparedStatement statement = connection.prepareStatement("INSERT INTO " + 
+				getInsertTableName(connection, table) + " (" + columnList + ") VALUES (" + 
+				valueList + ")", Statement.RETURN_GENERATED_KEYS))
+		{
+			int index = 1;
+			for (String column : columns)
+			{
+				setParameter(statement, index ++, table, column, values.get(column));
+			}
+			statement.executeUpdate();
+			ConnectionManager.recordWrite(table.getDatabaseName());
+			
+			try (ResultSet keys = statement.getGeneratedKeys())
+			{
+				if (keys.next())
+					return keys.getLong(1);
+			}
+		}
+		
+		return -1;
+	}
+	
+	/**
+	 * Deletes the rows that have the given column value from all the physical tables using 
+	 * an existing connection
+	 * @param connection The connection used for the delete. The connection is left open.
+	 * @param table The table the rows are deleted from
+	 * @param column The column whose value is checked
+	 * @param value The value the deleted rows have
+	 * @return How many rows were deleted
+	 * @throws SQLException If the delete failed
+	 */
+	public static int delete(Connection connection, DatabaseTable table, String column, 
+			String value) throws SQLException
+	{
+		int deleted = 0;
+		for (String tableName : getTableNames(table))
+		{
+			try (PreparedStatement statement = connection.prepareStatement("DELETE FROM " + 
+					tableName + " WHERE " + column + " = ?"))
+			{
+				setParameter(statement, 1, table, column, value);
+				deleted += statement.executeUpdate();
+			}
+		}
+		ConnectionManager.recordWrite(table.getDatabaseName());
+		
+		return deleted;
+	}
+	
+	/**
+	 * Reads a single row from an integer indexed table. The identifier is bound as a number 
+	 * so that the primary key index can be used without conversions.
+	 * @param table The table the row is read from
+	 * @param id The identifier of the row
+	 * @return The column values of the row (column name, value). Null if there was no such 
+	 * row.
+	 * @throws SQLException If the row couldn't be read
+	 */
+	public static Map<String, String> readRow(DatabaseTable table, long id) 
+			throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+			return readRowThroughAccessor(table, Long.toString(id));
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(table.getDatabaseName(), 
+					table.getTableName() + ".read");
+			for (String tableName : getTableNames(table))
+			{
+				try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + 
+						tableName + " WHERE " + table.getPrimaryColumnName() + " = ?"))
+				{
+					statement.setLong(1, id);
+					try (ResultSet result = statement.executeQuery())
+					{
+						if (result.next())
+							return readRow(result);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Reads a single row from a table
+	 * @param table The table the row is read from
+	 * @param id The identifier of the row
+	 * @return The column values of the row (column name, value). Null if there was no such 
+	 * row.
+	 * @throws SQLException If the row couldn't be read
+	 */
+	public static Map<String, String> readRow(DatabaseTable table, String id) 
+			throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+			return readRowThroughAccessor(table, id);
+		
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(table.getDatabaseName(), 
+					table.getTableName() + ".read");
+			for (String tableName : getTableNames(table))
+			{
+				try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + 
+						tableName + " WHERE " + table.getPrimaryColumnName() + " = ?"))
+				{
+					setParameter(statement, 1, table, table.getPrimaryColumnName(), id);
+					try (ResultSet result = statement.executeQuery())
+					{
+						if (result.next())
+							return readRow(result);
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return null;
+	}
+	
+	/**
+	 * Reads multiple rows from a table. The rows are read with as few queries as possible.
+	 * @param table The table the rows are read from
+	 * @param ids The identifiers of the rows
+	 * @return The rows that were found (id, row). The rows that couldn't be found are not 
+	 * included.
+	 * @throws SQLException If the rows couldn't be read
+	 */
+	public static Map<String, Map<String, String>> readRows(DatabaseTable table, 
+			Collection<String> ids) throws SQLException
+	{
+		Map<String, Map<String, String>> rows = new HashMap<>();
+		if (ids.isEmpty())
+			return rows;
+		
+		// The DatabaseAccessor reads the rows one by one
+		if (!ConnectionManager.isInitialized())
+		{
+			for (String id : ids)
+			{
+				Map<String, String> row = readRowThroughAccessor(table, id);
+				if (row != null)
+					rows.put(id, row);
+			}
+			return rows;
+		}
+		
+		List<String> remaining = new ArrayList<>(ids);
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(table.getDatabaseName(), 
+					table.getTableName() + ".prefetch");
+			for (String tableName : getTableNames(table))
+			{
+				// The identifiers are queried in batches since the statements can't be 
+				// arbitrarily long
+				for (int start = 0; start < remaining.size(); start += MAX_BATCH_SIZE)
+				{
+					List<String> batch = remaining.subList(start, 
+							Math.min(remaining.size(), start + MAX_BATCH_SIZE));
+					StringBuilder sql = new StringBuilder("SELECT * FROM ").append(
+							tableName).append(" WHERE ").append(
+							table.getPrimaryColumnName()).append(" IN (");
+					for (int i = 0; i < batch.size(); i++)
+					{
+						sql.append(i == 0 ? "?" : ", ?");
+					}
+					sql.append(")");
+					
+					try (PreparedStatement statement = connection.prepareStatement(
+							sql.toString()))
+					{
+						for (int i = 0; i < batch.size(); i++)
+						{
+							setParameter(statement, i + 1, table, 
+									table.getPrimaryColumnName(), batch.get(i));
+						}
+						try (ResultSet result = statement.executeQuery())
+						{
+							while (result.next())
+							{
+								Map<String, String> row = readRow(result);
+								rows.put(row.get(table.getPrimaryColumnName()), row);
+							}
+						}
+					}
+				}
+				
+				// Each row is only in a single physical table
+				remaining.removeAll(rows.keySet());
+				if (remaining.isEmpty())
+					break;
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Reads the current row of the result set
+	 * @param result The result set that points to a row
+	 * @return The column values of the row (column name, value)
+	 * @throws SQLException If the row couldn't be read
+	 */
+	public static Map<String, String> readRow(ResultSet result) throws SQLException
+	{
+		ResultSetMetaData metaData = result.getMetaData();
+		Map<String, String> row = new HashMap<>();
+		for (int i = 1; i <= metaData.getColumnCount(); i++)
+		{
+			row.put(metaData.getColumnLabel(i), result.getString(i));
+		}
+		
+		return row;
+	}
+	
+	/**
+	 * Binds a value to a statement parameter. The primary keys of integer indexed tables 
+	 * are bound as numbers, other values as strings.
+	 * @param statement The statement the value is bound to
+	 * @param index The index of the parameter
+	 * @param table The table the column belongs to
+	 * @param column The name of the column the value is for
+	 * @param value The value that is bound
+	 * @throws SQLException If the value couldn't be bound
+	 */
+	public static void setParameter(PreparedStatement statement, int index, 
+			DatabaseTable table, String column, String value) throws SQLException
+	{
+		if (value != null && table.usesIntegerIndexing() && 
+				column.equals(table.getPrimaryColumnName()))
+		{
+			try
+			{
+				statement.setLong(index, Long.parseLong(value));
+				return;
+			}
+			catch (NumberFormatException e)
+			{
+				// Bound as a string instead
+			}
+		}
+		
+		statement.setString(index, value);
+	}
+	
+	/**
+	 * Finds the values of a column from the rows that have the given value in another 
+	 * column. All the physical tables are searched.
+	 * @param table The table that is searched
+	 * @param column The column whose value is checked
+	 * @param value The value the rows must have
+	 * @param resultColumn The column whose values are returned
+	 * @return The values of the result column in the matching rows
+	 * @throws SQLException If the rows couldn't be read
+	 */
+	public static List<String> findValues(DatabaseTable table, String column, String value, 
+			String resultColumn) throws SQLException
+	{
+		if (!ConnectionManager.isInitialized())
+		{
+			try
+			{
+				return DatabaseAccessor.findMatchingData(table, column, value, resultColumn);
+			}
+			catch (DatabaseUnavailableException e)
+			{
+				throw unavailable(e);
+			}
+		}
+		
+		List<String> values = new ArrayList<>();
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openReadConnection(table.getDatabaseName(), 
+					table.getTableName() + ".find");
+			for (String tableName : getTableNames(table))
+			{
+				try (PreparedStatement statement = connection.prepareStatement("SELECT " + 
+						resultColumn + " FROM " + tableName + " WHERE " + column + " = ?"))
+				{
+					setParameter(statement, 1, table, column, value);
+					try (ResultSet result = statement.executeQuery())
+					{
+						while (result.next())
+						{
+							values.add(result.getString(1));
+						}
+					}
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		return values;
+	}
+	
+	/**
+	 * Finds the identifiers of the rows that have the given column values through the 
+	 * DatabaseAccessor. This is used for the searches made before the manager has been 
+	 * initialized.
+	 * @param table The table that is searched
+	 * @param columns The columns whose values are checked
+	 * @param values The values the rows must have, in the same order as the columns
+	 * @param limit How many identifiers are returned at most. 0 or less for no limit.
+	 * @return The identifiers of the matching rows
+	 * @throws SQLException If the rows couldn't be searched
+	 */
+	public static List<String> findMatchingIDs(DatabaseTable table, String[] columns, 
+			String[] values, int limit) throws SQLException
+	{
+		try
+		{
+			if (limit > 0)
+				return DatabaseAccessor.findMatchingIDs(table, columns, values, limit);
+			return DatabaseAccessor.findMatchingIDs(table, columns, values);
+		}
+		catch (DatabaseUnavailableException e)
+		{
+			throw unavailable(e);
+		}
+		catch (InvalidTableTypeException e)
+		{
+			throw new SQLException("Couldn't search table " + table.getTableName(), e);
+		}
+	}
+	
+	private static String getInsertTableName(Connection connection, DatabaseTable table) 
+			throws SQLException
+	{
+		List<String> tableNames = getTableNames(table);
+		String latestName = tableNames.get(tableNames.size() - 1);
+		if (maxRowsPerTable <= 0)
+			return latestName;
+		
+		// The count is made within the insert's transaction so that its earlier inserts 
+		// are included
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT COUNT(*) FROM " + latestName);
+				ResultSet result = statement.executeQuery())
+		{
+			if (!result.next() || result.getLong(1) < maxRowsPerTable)
+				return latestName;
+		}
+		
+		// Creating a table would commit the transaction, so it is done separately
+		int newAmount = tableNames.size() + 1;
+		String newName = table.getTableName() + newAmount;
+		Connection separate = null;
+		try
+		{
+			separate = ConnectionManager.openSeparateConnection(table.getDatabaseName(), 
+					table.getTableName() + ".split");
+			try (Statement statement = separate.createStatement())
+			{
+				statement.executeUpdate("CREATE TABLE IF NOT EXISTS " + newName + " LIKE " + 
+						latestName);
+			}
+			
+			// Another thread or node may have updated the index already
+			String indexName = indexDatabaseName + "." + indexTableName;
+			int updated;
+			try (PreparedStatement statement = separate.prepareStatement("UPDATE " + 
+					indexName + " SET latestIndex = ? WHERE tableName = ? AND latestIndex < ?"))
+			{
+				statement.setInt(1, newAmount);
+				statement.setString(2, table.getTableName());
+				statement.setInt(3, newAmount);
+				updated = statement.executeUpdate();
+			}
+			if (updated == 0 && !isIndexed(separate, indexName, table))
+			{
+				try (PreparedStatement statement = separate.prepareStatement("INSERT INTO " + 
+						indexName + " (tableName, latestIndex) VALUES (?, ?)"))
+				{
+					statement.setString(1, table.getTableName());
+					statement.setInt(2, newAmount);
+					statement.executeUpdate();
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(separate);
+		}
+		
+		synchronized (tableAmounts)
+		{
+			tableAmounts.put(table.getTableName(), new CachedAmount(newAmount));
+		}
+		
+		return newName;
+	}
+	
+	private static boolean isIndexed(Connection connection, String indexName, 
+			DatabaseTable table) throws SQLException
+	{
+		try (PreparedStatement statement = connection.prepareStatement(
+				"SELECT latestIndex FROM " + indexName + " WHERE tableName = ?"))
+		{
+			statement.setString(1, table.getTableName());
+			try (ResultSet result = statement.executeQuery())
+			{
+				return result.next();
+			}
+		}
+	}
+	
+	private static Map<String, String> readRowThroughAccessor(final DatabaseTable table, 
+			String id) throws SQLException
+	{
+		final Map<String, String> row = new HashMap<>();
+		try
+		{
+			boolean found = DatabaseAccessor.readObjectData(new DatabaseReadable()
+			{
+				@Override
+				public void setValue(String columnName, String readValue)
+				{
+					row.put(columnName, readValue);
+				}
+				
+				@Override
+				public DatabaseTable getTable()
+				{
+					return table;
+				}
+			}, id);
+			
+			return found ? row : null;
+		}
+		catch (DatabaseUnavailableException e)
+		{
+			throw unavailable(e);
+		}
+	}
+	
+	private static SQLException unavailable(DatabaseUnavailableException cause)
+	{
+		// Reported to the client as a temporary failure
+		return new SQLTransientConnectionException("The database is unavailable", cause);
+	}
+	
+	private static String buildWhereClause(List<String> conditionColumns)
+	{
+		StringBuilder whereClause = new StringBuilder();
+		for (String column : conditionColumns)
+		{
+			whereClause.append(whereClause.length() == 0 ? " WHERE " : " AND ");
+			whereClause.append(column).append(" = ?");
+		}
+		
+		return whereClause.toString();
+	}
+	
+	private static void setConditions(PreparedStatement statement, int firstIndex, 
+			DatabaseTable table, List<String> conditionColumns, 
+			Map<String, String> conditions) throws SQLException
+	{
+		int index = firstIndex;
+		for (String column : conditionColumns)
+		{
+			setParameter(statement, index ++, table, column, conditions.get(column));
+		}
+	}
+	
+	private static int getTableAmount(DatabaseTable table) throws SQLException
+	{
+		String tableName = table.getTableName();
+		synchronized (tableAmounts)
+		{
+			CachedAmount cached = tableAmounts.get(tableName);
+			if (cached != null && !cached.isExpired())
+				return cached.amount;
+		}
+		
+		// Reads the amount from the index table. If the table isn't indexed, it only has a
+		// single part
+		int amount = 1;
+		Connection connection = null;
+		try
+		{
+			connection = ConnectionManager.openConnection(indexDatabaseName, indexTableName + ".read");
+			try (PreparedStatement statement = connection.prepareStatement(
+					"SELECT latestIndex FROM " + indexTableName + " WHERE tableName = ?"))
+			{
+				statement.setString(1, tableName);
+				try (ResultSet result = statement.executeQuery())
+				{
+					if (result.next())
+						amount = Math.max(1, result.getInt(1));
+				}
+			}
+		}
+		finally
+		{
+			ConnectionManager.closeConnection(connection);
+		}
+		
+		synchronized (tableAmounts)
+		{
+			tableAmounts.put(tableName, new CachedAmount(amount));
+		}
+		
+		return amount;
+	}
+	
+	
+	// SUBCLASSES	-------------------------
+	
+	private static class CachedAmount
+	{
+		// ATTRIBUTES	---------------------
+		
+		private final int amount;
+		private final long readTime;
+		
+		
+		// CONSTRUCTOR	---------------------
+		
+		public CachedAmount(int amount)
+		{
+			this.amount = amount;
+			this.readTime = System.currentTimeMillis();
+		}
+		
+		
+		// OTHER METHODS	-----------------
+		
+		public boolean isExpired()
+		{
+			return System.currentTimeMillis() - this.readTime > TABLE_AMOUNT_CACHE_MILLIS;
+		}
+	}
+}